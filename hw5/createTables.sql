@@ -11,5 +11,126 @@ CREATE TABLE Reservations (
     cancellationStatus VARCHAR(3),
     reservationID INTEGER PRIMARY KEY,
     day INTEGER,
-    fid VARCHAR(20)
+    fid VARCHAR(100)
 );
+CREATE TABLE ReservationsArchive (
+    cost INTEGER,
+    username VARCHAR(20),
+    payStatus VARCHAR(3),
+    cancellationStatus VARCHAR(3),
+    reservationID INTEGER PRIMARY KEY,
+    day INTEGER,
+    fid VARCHAR(100)
+);
+CREATE INDEX ReservationsArchiveByUser ON ReservationsArchive (username);
+CREATE TABLE FlightChanges (
+    changeId BIGINT IDENTITY PRIMARY KEY,
+    fid INTEGER,
+    canceled INTEGER,
+    capacity INTEGER,
+    changedAt DATETIME2 DEFAULT SYSUTCDATETIME()
+);
+CREATE OR ALTER TRIGGER FlightChangeCapture ON Flights AFTER UPDATE AS
+    INSERT INTO FlightChanges (fid, canceled, capacity)
+    SELECT i.fid, i.canceled, i.capacity FROM inserted AS i JOIN deleted AS d ON i.fid = d.fid
+    WHERE EXISTS (SELECT i.canceled, i.capacity EXCEPT SELECT d.canceled, d.capacity);
+IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'FlightsByOriginDayPrice')
+    CREATE INDEX FlightsByOriginDayPrice ON Flights (origin_city, day_of_month, price)
+    INCLUDE (dest_city, actual_time, canceled);
+CREATE TABLE SeatHolds (
+    fid INTEGER,
+    reservationID INTEGER,
+    username VARCHAR(20),
+    confirmed INTEGER,
+    expiresAt BIGINT,
+    PRIMARY KEY (fid, reservationID)
+);
+CREATE INDEX SeatHoldsByReservation ON SeatHolds (reservationID);
+CREATE TABLE ReservationIds (
+    nextId INTEGER
+);
+INSERT INTO ReservationIds VALUES (1);
+-- @DELIMITER $$
+CREATE OR ALTER PROCEDURE BookReservation
+    @username VARCHAR(20),
+    @day INTEGER,
+    @fids VARCHAR(100),
+    @cost INTEGER,
+    @reservationId INTEGER OUTPUT,
+    @status INTEGER OUTPUT
+AS
+BEGIN
+    -- @status: 0 booked, 1 already booked on that day
+    -- @reservationId: allocated here when passed as NULL
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL SERIALIZABLE;
+    BEGIN TRANSACTION;
+    -- paid reservations may have been moved to the archive
+    IF EXISTS (SELECT * FROM Reservations
+               WHERE username = @username AND day = @day AND cancellationStatus = 'no')
+       OR EXISTS (SELECT * FROM ReservationsArchive
+                  WHERE username = @username AND day = @day AND cancellationStatus = 'no')
+    BEGIN
+        SET @status = 1;
+        COMMIT;
+        RETURN;
+    END
+    IF @reservationId IS NULL
+        UPDATE ReservationIds SET @reservationId = nextId, nextId = nextId + 1;
+    INSERT INTO Reservations VALUES (@cost, @username, 'no', 'no', @reservationId, @day, @fids);
+    SET @status = 0;
+    COMMIT;
+END
+$$
+CREATE OR ALTER PROCEDURE PayReservation
+    @username VARCHAR(20),
+    @reservationId INTEGER,
+    @balance INTEGER OUTPUT,
+    @cost INTEGER OUTPUT,
+    @status INTEGER OUTPUT
+AS
+BEGIN
+    -- @status: 0 paid, 1 no such unpaid reservation, 2 balance too low
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL SERIALIZABLE;
+    BEGIN TRANSACTION;
+    SELECT @cost = cost FROM Reservations WITH (UPDLOCK)
+    WHERE reservationID = @reservationId AND username = @username
+      AND payStatus = 'no' AND cancellationStatus = 'no';
+    IF @@ROWCOUNT = 0
+    BEGIN
+        SET @status = 1;
+        COMMIT;
+        RETURN;
+    END
+    SELECT @balance = balance FROM Users WITH (UPDLOCK) WHERE username = @username;
+    IF @balance < @cost
+    BEGIN
+        SET @status = 2;
+        COMMIT;
+        RETURN;
+    END
+    UPDATE Users SET @balance = balance = balance - @cost WHERE username = @username;
+    UPDATE Reservations SET payStatus = 'yes' WHERE reservationID = @reservationId;
+    SET @status = 0;
+    COMMIT;
+END
+$$
+CREATE OR ALTER PROCEDURE CancelReservation
+    @username VARCHAR(20),
+    @reservationId INTEGER,
+    @status INTEGER OUTPUT
+AS
+BEGIN
+    -- @status: 0 canceled, 1 no such active reservation
+    SET NOCOUNT ON;
+    SET XACT_ABORT ON;
+    SET TRANSACTION ISOLATION LEVEL SERIALIZABLE;
+    UPDATE Reservations SET cancellationStatus = 'yes'
+    WHERE reservationID = @reservationId AND username = @username AND cancellationStatus = 'no';
+    SET @status = CASE WHEN @@ROWCOUNT = 0 THEN 1 ELSE 0 END;
+END
+$$
+-- @DELIMITER ;
@@ -0,0 +1,253 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Caps how many commands on this node work against the database at once.
+ *
+ * Enabled by setting {@code flightapp.admission_max_concurrent} in
+ * dbconn.properties. A command that finds every slot taken waits in the queue
+ * of its class. Writes (book, pay, cancel and account commands) are always
+ * admitted ahead of reads (search, reservations), so a burst of searches
+ * cannot hold up payments.
+ *
+ * Each class has a bounded queue, {@code flightapp.admission_queue_write} and
+ * {@code flightapp.admission_queue_read} (default 64 each), and a deadline
+ * for how long a command may wait, {@code flightapp.admission_wait_ms_write}
+ * (default 2000) and {@code flightapp.admission_wait_ms_read} (default 500). A
+ * command is turned away at once when its queue is full, or when its deadline,
+ * or the {@link Deadline} of the command if sooner, passes before a slot frees
+ * up.
+ */
+public class AdmissionController {
+  private static AdmissionController shared;
+  private static boolean sharedLoaded;
+
+  /**
+   * Kinds of work, in the order they are admitted
+   */
+  public enum WorkClass {
+    WRITE, READ
+  }
+
+  // A command waiting for a slot
+  private static class Waiter {
+    boolean admitted;
+  }
+
+  private final int maxConcurrent;
+  private final int[] queueCapacity;
+  private final long[] maxWaitNanos;
+  private final List<ArrayDeque<Waiter>> queues = new ArrayList<>();
+  private int running;
+
+  // Metrics, per class
+  private final AtomicLongArray admitted;
+  private final AtomicLongArray rejected;
+  private final AtomicLongArray timedOut;
+  private final AtomicLongArray totalWaitNanos;
+  private final AtomicLongArray maxWaitNanosSeen;
+  private final int[] maxQueueDepth;
+
+  /**
+   * @param queueCapacity most commands waiting, per class in
+   *                      {@link WorkClass} order
+   * @param maxWaitMillis longest a command may wait, per class
+   */
+  public AdmissionController(int maxConcurrent, int[] queueCapacity, long[] maxWaitMillis) {
+    int classes = WorkClass.values().length;
+    this.maxConcurrent = maxConcurrent;
+    this.queueCapacity = queueCapacity.clone();
+    this.maxWaitNanos = new long[classes];
+    for (int i = 0; i < classes; i++) {
+      this.maxWaitNanos[i] = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis[i]);
+      queues.add(new ArrayDeque<>());
+    }
+    admitted = new AtomicLongArray(classes);
+    rejected = new AtomicLongArray(classes);
+    timedOut = new AtomicLongArray(classes);
+    totalWaitNanos = new AtomicLongArray(classes);
+    maxWaitNanosSeen = new AtomicLongArray(classes);
+    maxQueueDepth = new int[classes];
+  }
+
+  /**
+   * Return the controller configured in dbconn.properties, or null if
+   * admission control is not enabled
+   */
+  public static synchronized AdmissionController shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String maxConcurrent = config.getProperty("flightapp.admission_max_concurrent");
+      if (maxConcurrent != null) {
+        shared = new AdmissionController(Integer.parseInt(maxConcurrent.trim()),
+            new int[] { Integer.parseInt(config.getProperty("flightapp.admission_queue_write", "64").trim()),
+                Integer.parseInt(config.getProperty("flightapp.admission_queue_read", "64").trim()) },
+            new long[] { Long.parseLong(config.getProperty("flightapp.admission_wait_ms_write", "2000").trim()),
+                Long.parseLong(config.getProperty("flightapp.admission_wait_ms_read", "500").trim()) });
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Wait for a slot to run a command of the given class. Every successful call
+   * must be followed by {@link #release}.
+   *
+   * @return false if the command was turned away
+   */
+  public boolean admit(WorkClass workClass) throws InterruptedException {
+    int c = workClass.ordinal();
+    long start = System.nanoTime();
+    Waiter waiter = new Waiter();
+    synchronized (this) {
+      if (running < maxConcurrent && waitingAhead(c) == 0) {
+        running++;
+        admitted.incrementAndGet(c);
+        return true;
+      }
+      ArrayDeque<Waiter> queue = queues.get(c);
+      if (queue.size() >= queueCapacity[c]) {
+        rejected.incrementAndGet(c);
+        return false;
+      }
+      queue.add(waiter);
+      maxQueueDepth[c] = Math.max(maxQueueDepth[c], queue.size());
+      long deadline = start + maxWaitNanos[c];
+      Deadline command = Deadline.current();
+      boolean commandDeadline = command != null && command.remainingNanos() < maxWaitNanos[c];
+      if (commandDeadline) {
+        deadline = start + command.remainingNanos();
+      }
+      try {
+        while (!waiter.admitted) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            queue.remove(waiter);
+            timedOut.incrementAndGet(c);
+            if (commandDeadline) {
+              command.giveUp();
+            }
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+      } catch (InterruptedException e) {
+        if (waiter.admitted) {
+          release();
+        } else {
+          queue.remove(waiter);
+        }
+        throw e;
+      }
+    }
+    long waited = System.nanoTime() - start;
+    admitted.incrementAndGet(c);
+    totalWaitNanos.addAndGet(c, waited);
+    maxWaitNanosSeen.accumulateAndGet(c, waited, Math::max);
+    return true;
+  }
+
+  /**
+   * Give back the slot of a finished command, handing it to the first waiting
+   * command of the most urgent class
+   */
+  public synchronized void release() {
+    running--;
+    for (ArrayDeque<Waiter> queue : queues) {
+      Waiter next = queue.poll();
+      if (next != null) {
+        next.admitted = true;
+        running++;
+        notifyAll();
+        return;
+      }
+    }
+  }
+
+  // Commands waiting in this class or a more urgent one
+  private int waitingAhead(int c) {
+    int waiting = 0;
+    for (int i = 0; i <= c; i++) {
+      waiting += queues.get(i).size();
+    }
+    return waiting;
+  }
+
+  /**
+   * Number of commands running now
+   */
+  public synchronized int running() {
+    return running;
+  }
+
+  /**
+   * Number of commands of a class waiting now
+   */
+  public synchronized int queueDepth(WorkClass workClass) {
+    return queues.get(workClass.ordinal()).size();
+  }
+
+  /**
+   * Most commands of a class waiting at once
+   */
+  public synchronized int maxQueueDepth(WorkClass workClass) {
+    return maxQueueDepth[workClass.ordinal()];
+  }
+
+  /**
+   * Number of commands of a class let through
+   */
+  public long admitted(WorkClass workClass) {
+    return admitted.get(workClass.ordinal());
+  }
+
+  /**
+   * Number of commands of a class turned away because their queue was full
+   */
+  public long rejected(WorkClass workClass) {
+    return rejected.get(workClass.ordinal());
+  }
+
+  /**
+   * Number of commands of a class turned away because their deadline passed
+   */
+  public long timedOut(WorkClass workClass) {
+    return timedOut.get(workClass.ordinal());
+  }
+
+  /**
+   * Average time a command of a class waited before running, including
+   * commands admitted at once
+   */
+  public double averageWaitMillis(WorkClass workClass) {
+    long count = admitted(workClass);
+    return count == 0 ? 0 : totalWaitNanos.get(workClass.ordinal()) / 1e6 / count;
+  }
+
+  /**
+   * Longest time a command of a class waited before running
+   */
+  public double maxWaitMillis(WorkClass workClass) {
+    return maxWaitNanosSeen.get(workClass.ordinal()) / 1e6;
+  }
+
+  /**
+   * Describe the slots in use and, for each class, its queue and how long
+   * commands waited, one line each
+   */
+  public String report() {
+    StringBuilder report = new StringBuilder();
+    report.append(String.format("Admission: %d of %d running\n", running(), maxConcurrent));
+    for (WorkClass workClass : WorkClass.values()) {
+      report.append(String.format("Admission %s: %d admitted, %d rejected, %d timed out, %d queued (max %d), "
+          + "%.1f ms average wait (max %.1f)\n", workClass.name().toLowerCase(Locale.ROOT), admitted(workClass),
+          rejected(workClass), timedOut(workClass), queueDepth(workClass), maxQueueDepth(workClass),
+          averageWaitMillis(workClass), maxWaitMillis(workClass)));
+    }
+    return report.toString();
+  }
+}
@@ -0,0 +1,173 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * A non-blocking front for one {@link Query} session.
+ *
+ * Every call returns at once with a future of the string the matching
+ * {@code transaction_*} method returns. The calls of one session still run one
+ * at a time and in the order they were made, since a session's state (the
+ * logged in user, the last search) depends on the calls before it; calls of
+ * different sessions run in parallel.
+ *
+ * All sessions share one executor: a virtual thread per call when the JVM has
+ * them (Java 21 and later), otherwise a pool of
+ * {@code flightapp.async_threads} threads (default twice the number of
+ * processors).
+ */
+public class AsyncQuery implements AutoCloseable {
+  private static ExecutorService shared;
+
+  private static class Call {
+    final Function<Query, String> call;
+    final CompletableFuture<String> result = new CompletableFuture<>();
+
+    Call(Function<Query, String> call) {
+      this.call = call;
+    }
+  }
+
+  private final Query query;
+  private final Executor executor;
+  // Calls waiting for the one before them to finish
+  private final ArrayDeque<Call> pending = new ArrayDeque<>();
+  private boolean running;
+
+  public AsyncQuery(Query query) {
+    this(query, sharedExecutor());
+  }
+
+  public AsyncQuery(Query query, Executor executor) {
+    this.query = query;
+    this.executor = executor;
+  }
+
+  /**
+   * Return the executor shared by all sessions, creating it on first use
+   */
+  public static synchronized ExecutorService sharedExecutor() {
+    if (shared == null) {
+      try {
+        // looked up by reflection so the code still builds for Java 11
+        shared = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (ReflectiveOperationException e) {
+        int threads = Integer.parseInt(Query.config()
+            .getProperty("flightapp.async_threads", String.valueOf(2 * Runtime.getRuntime().availableProcessors()))
+            .trim());
+        shared = Executors.newFixedThreadPool(threads, r -> {
+          Thread thread = new Thread(r, "async-query");
+          thread.setDaemon(true);
+          return thread;
+        });
+      }
+    }
+    return shared;
+  }
+
+  public CompletableFuture<String> login(String username, String password) {
+    return submit(q -> q.transaction_login(username, password));
+  }
+
+  public CompletableFuture<String> createCustomer(String username, String password, int initAmount) {
+    return submit(q -> q.transaction_createCustomer(username, password, initAmount));
+  }
+
+  public CompletableFuture<String> search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries) {
+    return submit(q -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries));
+  }
+
+  public CompletableFuture<String> search(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, Query.SearchOrder order) {
+    return submit(q -> q.transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries, order));
+  }
+
+  public CompletableFuture<String> book(int itineraryId) {
+    return submit(q -> q.transaction_book(itineraryId));
+  }
+
+  public CompletableFuture<String> pay(int reservationId) {
+    return submit(q -> q.transaction_pay(reservationId));
+  }
+
+  public CompletableFuture<String> reservations() {
+    return submit(Query::transaction_reservations);
+  }
+
+  public CompletableFuture<String> cancel(int reservationId) {
+    return submit(q -> q.transaction_cancel(reservationId));
+  }
+
+  /**
+   * Run a command line as {@link FlightService#execute} would, including
+   * admission control
+   */
+  public CompletableFuture<String> execute(String command) {
+    return submit(q -> FlightService.execute(q, command));
+  }
+
+  /**
+   * Run a call after every call made before it on this session
+   */
+  public CompletableFuture<String> submit(Function<Query, String> call) {
+    Call pendingCall = new Call(call);
+    synchronized (this) {
+      pending.add(pendingCall);
+      if (!running) {
+        running = true;
+        runNext();
+      }
+    }
+    return pendingCall.result;
+  }
+
+  // Hand the next waiting call to the executor; it schedules the one after
+  // when it is done
+  private synchronized void runNext() {
+    Call next = pending.poll();
+    if (next == null) {
+      running = false;
+      return;
+    }
+    try {
+      executor.execute(() -> {
+        try {
+          next.result.complete(next.call.apply(query));
+        } catch (RuntimeException e) {
+          next.result.completeExceptionally(e);
+        } finally {
+          runNext();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // the executor is shut down, so nothing waiting can run either
+      next.result.completeExceptionally(e);
+      for (Call call : pending) {
+        call.result.completeExceptionally(e);
+      }
+      pending.clear();
+      running = false;
+    }
+  }
+
+  /**
+   * Close the session's connection once every call made so far has finished
+   */
+  @Override
+  public void close() {
+    submit(q -> {
+      try {
+        q.closeConnection();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      return "Goodbye\n";
+    }).join();
+  }
+}
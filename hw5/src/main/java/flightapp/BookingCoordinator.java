@@ -0,0 +1,552 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Group commit for bookings made by concurrent sessions.
+ *
+ * Enabled by setting {@code flightapp.group_commit_ms} in dbconn.properties.
+ * A single worker collects booking requests for up to that many milliseconds,
+ * or until {@code flightapp.group_commit_max_batch} (default 256) requests
+ * have arrived, then handles the whole batch in one SERIALIZABLE transaction
+ * per shard:
+ *
+ * <ol>
+ * <li>one query reads the capacity of every flight in the batch, and one the
+ * existing reservations of every user in the batch</li>
+ * <li>requests are validated in arrival order in memory: as for a single
+ * booking, a flight whose capacity is 0 cannot be booked, and a user cannot
+ * book two itineraries on one day, whether the other one is already in the
+ * database or earlier in the batch</li>
+ * <li>ids for the accepted requests are reserved with one update, and the
+ * reservations are inserted with one JDBC batch</li>
+ * </ol>
+ *
+ * Each caller gets the same string {@link Query#transaction_book} would have
+ * returned, once the batch has committed. A caller waits no longer than the
+ * deadline of its command; a request still queued by then is withdrawn, and
+ * a batch's statements stop at the latest deadline among its requests. If a
+ * shard's transaction fails, its requests fail and the other shards' commit.
+ */
+public class BookingCoordinator implements Closeable {
+  private static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES(?, ?, ?, ?, ?, ?, ?)";
+  private static final String FAILED = "Booking failed\n";
+
+  private static BookingCoordinator shared;
+  private static boolean sharedLoaded;
+
+  // States of a request
+  private static final int QUEUED = 0;
+  private static final int TAKEN = 1;
+  private static final int WITHDRAWN = 2;
+
+  private static class Request {
+    final String username;
+    final String fids;
+    final int cost;
+    final int day;
+    final long submittedNanos = System.nanoTime();
+    final Deadline deadline = Deadline.current();
+    final CompletableFuture<String> result = new CompletableFuture<>();
+    // Moves from QUEUED to TAKEN when a batch takes it, or to WITHDRAWN when
+    // its caller stops waiting first
+    final AtomicInteger state = new AtomicInteger(QUEUED);
+
+    Request(String username, String fids, int cost, int day) {
+      this.username = username;
+      this.fids = fids;
+      this.cost = cost;
+      this.day = day;
+    }
+  }
+
+  /**
+   * One shard's share of a batch, as a single SERIALIZABLE transaction.
+   * {@link DatabaseShards} runs it on the database; tests stand in for it.
+   */
+  interface ShardTransaction {
+    /**
+     * Capacity of each of these flights, leaving out flights that do not exist
+     */
+    Map<Integer, Integer> capacities(Set<Integer> fids) throws SQLException;
+
+    /**
+     * Days on which these users hold a live reservation, as {@link #dayKey}s
+     */
+    Set<String> bookedDays(Set<String> usernames) throws SQLException;
+
+    /**
+     * Reserve {@code count} consecutive reservation ids
+     *
+     * @return the first id
+     */
+    int allocateReservationIds(int count) throws SQLException;
+
+    void insert(int reservationId, String username, String fids, int cost, int day) throws SQLException;
+
+    /**
+     * Write the inserts and commit
+     */
+    void commit() throws SQLException;
+
+    /**
+     * Roll back after a failure; never throws
+     */
+    void abort();
+  }
+
+  /**
+   * Starts shard transactions
+   */
+  interface Shards {
+    ShardTransaction begin(int shard) throws SQLException, IOException;
+  }
+
+  private final Shards shards;
+  private final ShardRouter shardRouter;
+  private final long windowNanos;
+  private final int maxBatch;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Thread worker;
+  private volatile boolean closed;
+
+  // Metrics
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong maxBatchSize = new AtomicLong();
+  private final AtomicLong totalWaitNanos = new AtomicLong();
+  private final AtomicLong maxWaitNanos = new AtomicLong();
+  private final AtomicLong failedBatches = new AtomicLong();
+
+  /**
+   * @param shardRouter  shards holding Reservations, or null if not sharded
+   * @param windowMillis how long to collect requests after the first one
+   * @param maxBatch     most requests handled in one transaction
+   */
+  public BookingCoordinator(ConnectionFactory primary, ShardRouter shardRouter, long windowMillis, int maxBatch) {
+    this(new DatabaseShards(primary, shardRouter), shardRouter, windowMillis, maxBatch);
+  }
+
+  BookingCoordinator(Shards shards, ShardRouter shardRouter, long windowMillis, int maxBatch) {
+    this.shards = shards;
+    this.shardRouter = shardRouter;
+    this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+    this.maxBatch = maxBatch;
+    worker = new Thread(this::run, "booking-coordinator");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Return the coordinator configured in dbconn.properties, or null if group
+   * commit is not enabled
+   */
+  public static synchronized BookingCoordinator shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String window = config.getProperty("flightapp.group_commit_ms");
+      if (window != null) {
+        shared = new BookingCoordinator(ConnectionFactory.fromDbConn(), ShardRouter.shared(),
+            Long.parseLong(window.trim()),
+            Integer.parseInt(config.getProperty("flightapp.group_commit_max_batch", "256").trim()));
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Queue a booking and wait for its batch to commit
+   *
+   * @param fids fid of each flight, joined by "-"
+   * @return the booking result, in the format of {@link Query#transaction_book}
+   * @throws SQLTimeoutException if the deadline of the running command passed
+   *                             while the booking was still queued
+   */
+  public String book(String username, String fids, int cost, int day)
+      throws SQLTimeoutException, InterruptedException {
+    Request request = new Request(username, fids, cost, day);
+    if (closed) {
+      return FAILED;
+    }
+    queue.add(request);
+    if (closed && request.state.compareAndSet(QUEUED, WITHDRAWN)) {
+      // the worker may have stopped before seeing it
+      return FAILED;
+    }
+    try {
+      return Deadline.await(request.result);
+    } catch (TimeoutException e) {
+      if (request.state.compareAndSet(QUEUED, WITHDRAWN)) {
+        throw new SQLTimeoutException("Command deadline passed waiting for group commit");
+      }
+      // already in a batch, which completes every request it took
+      return request.result.join();
+    } catch (ExecutionException e) {
+      // results are never completed exceptionally
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private void run() {
+    List<Request> batch = new ArrayList<>();
+    try {
+      while (!closed) {
+        batch.add(queue.take());
+        long deadline = batch.get(0).submittedNanos + windowNanos;
+        while (batch.size() < maxBatch) {
+          long remaining = deadline - System.nanoTime();
+          Request next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+        batch.removeIf(request -> !request.state.compareAndSet(QUEUED, TAKEN));
+        try {
+          if (!batch.isEmpty()) {
+            recordBatch(batch);
+            commit(batch);
+          }
+        } catch (RuntimeException e) {
+          // keep serving later batches
+          e.printStackTrace();
+          fail(batch);
+        }
+        batch.clear();
+      }
+    } catch (InterruptedException e) {
+      // closing
+    }
+    batch.addAll(queue);
+    fail(batch);
+  }
+
+  // Complete every request not yet completed as failed
+  private void fail(List<Request> requests) {
+    for (Request request : requests) {
+      request.result.complete(FAILED);
+    }
+  }
+
+  private void commit(List<Request> batch) {
+    Map<Integer, List<Request>> byShard = new TreeMap<>();
+    for (Request request : batch) {
+      int shard = shardRouter == null ? 0 : shardRouter.shardOf(request.username);
+      byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(request);
+    }
+    for (Map.Entry<Integer, List<Request>> shardRequests : byShard.entrySet()) {
+      List<Request> requests = shardRequests.getValue();
+      ShardTransaction transaction = null;
+      try {
+        transaction = shards.begin(shardRequests.getKey());
+        ShardTransaction started = transaction;
+        Deadline deadline = latestDeadline(requests);
+        String[] results = deadline == null ? commit(started, requests)
+            : deadline.wrap(() -> commit(started, requests)).call();
+        for (int i = 0; i < requests.size(); i++) {
+          requests.get(i).result.complete(results[i]);
+        }
+      } catch (Exception e) {
+        e.printStackTrace();
+        failedBatches.incrementAndGet();
+        if (transaction != null) {
+          transaction.abort();
+        }
+        fail(requests);
+      }
+    }
+  }
+
+  // The deadline the batch's statements run under: the latest of its
+  // requests', or none if one of them has none
+  private static Deadline latestDeadline(List<Request> requests) {
+    Deadline latest = null;
+    for (Request request : requests) {
+      if (request.deadline == null) {
+        return null;
+      }
+      if (latest == null || request.deadline.remainingNanos() > latest.remainingNanos()) {
+        latest = request.deadline;
+      }
+    }
+    return latest;
+  }
+
+  // Validate and insert one shard's requests in a single transaction
+  private static String[] commit(ShardTransaction transaction, List<Request> requests) throws SQLException {
+    String[] results = new String[requests.size()];
+    Set<Integer> fids = new LinkedHashSet<>();
+    Set<String> usernames = new LinkedHashSet<>();
+    for (Request request : requests) {
+      for (int fid : parseFids(request.fids)) {
+        fids.add(fid);
+      }
+      usernames.add(request.username.toLowerCase(Locale.ROOT));
+    }
+    Map<Integer, Integer> capacities = transaction.capacities(fids);
+    Set<String> bookedDays = transaction.bookedDays(usernames);
+    List<Integer> accepted = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      Request request = requests.get(i);
+      if (!hasSeats(capacities, parseFids(request.fids))) {
+        results[i] = FAILED;
+      } else if (!bookedDays.add(dayKey(request.username, request.day))) {
+        results[i] = "You cannot book two flights in the same day\n";
+      } else {
+        accepted.add(i);
+      }
+    }
+    if (!accepted.isEmpty()) {
+      int reservationId = transaction.allocateReservationIds(accepted.size());
+      for (int i : accepted) {
+        Request request = requests.get(i);
+        transaction.insert(reservationId, request.username, request.fids, request.cost, request.day);
+        results[i] = "Booked flight(s), reservation ID: " + reservationId + "\n";
+        reservationId++;
+      }
+    }
+    transaction.commit();
+    return results;
+  }
+
+  // Same rule as a single booking: every flight exists and its capacity is
+  // not 0
+  private static boolean hasSeats(Map<Integer, Integer> capacities, int[] fids) {
+    for (int fid : fids) {
+      Integer capacity = capacities.get(fid);
+      if (capacity == null || capacity < 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Key of a user's booking on a day. Usernames are case insensitive.
+   */
+  static String dayKey(String username, int day) {
+    return username.toLowerCase(Locale.ROOT) + "/" + day;
+  }
+
+  private static int[] parseFids(String fids) {
+    String[] parts = fids.split("-");
+    int[] parsed = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      parsed[i] = Integer.parseInt(parts[i]);
+    }
+    return parsed;
+  }
+
+  private static String placeholders(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Runs shard transactions on the database, keeping one connection per
+   * shard open for the worker
+   */
+  private static class DatabaseShards implements Shards {
+    private final ConnectionFactory primary;
+    private final ShardRouter shardRouter;
+    private final Map<Integer, Connection> connections = new HashMap<>();
+    private Connection sequenceConn;
+
+    DatabaseShards(ConnectionFactory primary, ShardRouter shardRouter) {
+      this.primary = primary;
+      this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public ShardTransaction begin(int shard) throws SQLException, IOException {
+      Connection conn = connections.get(shard);
+      if (conn == null) {
+        conn = shardRouter == null ? primary.open() : shardRouter.shard(shard).open();
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connections.put(shard, conn);
+      }
+      // ids come from the batch's own transaction unless the database is sharded
+      if (shardRouter != null && sequenceConn == null) {
+        sequenceConn = shardRouter.shard(0).open();
+      }
+      conn.setAutoCommit(false);
+      return new DatabaseTransaction(shard, conn, shardRouter == null ? conn : sequenceConn);
+    }
+
+    private class DatabaseTransaction implements ShardTransaction {
+      private final int shard;
+      private final Connection conn;
+      private final Connection sequenceConn;
+      private PreparedStatement insert;
+
+      DatabaseTransaction(int shard, Connection conn, Connection sequenceConn) {
+        this.shard = shard;
+        this.conn = conn;
+        this.sequenceConn = sequenceConn;
+      }
+
+      @Override
+      public Map<Integer, Integer> capacities(Set<Integer> fids) throws SQLException {
+        Map<Integer, Integer> capacities = new HashMap<>();
+        String sql = "SELECT fid, capacity FROM Flights WHERE fid IN (" + placeholders(fids.size()) + ")";
+        try (PreparedStatement ps = Deadline.bind(conn.prepareStatement(sql))) {
+          int parameter = 1;
+          for (int fid : fids) {
+            ps.setInt(parameter++, fid);
+          }
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+              capacities.put(rs.getInt("fid"), rs.getInt("capacity"));
+            }
+          }
+        }
+        return capacities;
+      }
+
+      @Override
+      public Set<String> bookedDays(Set<String> usernames) throws SQLException {
+        Set<String> bookedDays = new HashSet<>();
+        // paid reservations may have been moved to the archive
+        String sql = "SELECT username, day FROM Reservations WHERE cancellationStatus = 'no' AND username IN ("
+            + placeholders(usernames.size()) + ") UNION ALL SELECT username, day FROM ReservationsArchive "
+            + "WHERE cancellationStatus = 'no' AND username IN (" + placeholders(usernames.size()) + ")";
+        try (PreparedStatement ps = Deadline.bind(conn.prepareStatement(sql))) {
+          int parameter = 1;
+          for (int copy = 0; copy < 2; copy++) {
+            for (String username : usernames) {
+              ps.setString(parameter++, username);
+            }
+          }
+          try (ResultSet rs = ps.executeQuery()) {
+            while (rs.next()) {
+              bookedDays.add(dayKey(rs.getString("username"), rs.getInt("day")));
+            }
+          }
+        }
+        return bookedDays;
+      }
+
+      @Override
+      public int allocateReservationIds(int count) throws SQLException {
+        return Query.allocateReservationIds(sequenceConn, count);
+      }
+
+      @Override
+      public void insert(int reservationId, String username, String fids, int cost, int day) throws SQLException {
+        if (insert == null) {
+          insert = Deadline.bind(conn.prepareStatement(INSERT_RESERVATION));
+        }
+        insert.setInt(1, cost);
+        insert.setString(2, username);
+        insert.setString(3, "no");
+        insert.setString(4, "no");
+        insert.setInt(5, reservationId);
+        insert.setInt(6, day);
+        insert.setString(7, fids);
+        insert.addBatch();
+      }
+
+      @Override
+      public void commit() throws SQLException {
+        try {
+          if (insert != null) {
+            insert.executeBatch();
+            insert.close();
+          }
+          conn.commit();
+        } catch (SQLException e) {
+          conn.rollback();
+          throw e;
+        } finally {
+          conn.setAutoCommit(true);
+        }
+      }
+
+      @Override
+      public void abort() {
+        // the connection may be broken; start the shard afresh
+        connections.remove(shard);
+        try {
+          conn.close();
+          if (DatabaseShards.this.sequenceConn != null) {
+            DatabaseShards.this.sequenceConn.close();
+            DatabaseShards.this.sequenceConn = null;
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void recordBatch(List<Request> batch) {
+    long now = System.nanoTime();
+    batches.incrementAndGet();
+    requests.addAndGet(batch.size());
+    maxBatchSize.accumulateAndGet(batch.size(), Math::max);
+    for (Request request : batch) {
+      long wait = now - request.submittedNanos;
+      totalWaitNanos.addAndGet(wait);
+      maxWaitNanos.accumulateAndGet(wait, Math::max);
+    }
+  }
+
+  public long batches() {
+    return batches.get();
+  }
+
+  public long requests() {
+    return requests.get();
+  }
+
+  public double averageBatchSize() {
+    long count = batches.get();
+    return count == 0 ? 0 : (double) requests.get() / count;
+  }
+
+  public long maxBatchSize() {
+    return maxBatchSize.get();
+  }
+
+  /**
+   * Average time a request waited for its batch to start
+   */
+  public double averageWaitMillis() {
+    long count = requests.get();
+    return count == 0 ? 0 : totalWaitNanos.get() / 1e6 / count;
+  }
+
+  public double maxWaitMillis() {
+    return maxWaitNanos.get() / 1e6;
+  }
+
+  /**
+   * Number of shard transactions that failed, failing their requests
+   */
+  public long failedBatches() {
+    return failedBatches.get();
+  }
+
+  /**
+   * One line on how bookings were batched, for tuning the window
+   */
+  public String report() {
+    return String.format("Group commit: %d batches, %.1f bookings per batch (max %d), %.1f ms average wait "
+        + "(max %.1f), %d failed\n", batches(), averageBatchSize(), maxBatchSize(), averageWaitMillis(),
+        maxWaitMillis(), failedBatches());
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    worker.interrupt();
+  }
+}
@@ -0,0 +1,615 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Durable write-ahead journal of accepted bookings, payments and
+ * cancellations, applied to the database asynchronously.
+ *
+ * Enabled by setting {@code flightapp.journal_dir} in dbconn.properties.
+ * Once a write has been validated, {@link #append} records it in a memory
+ * mapped segment file and returns after the segment has been forced to disk.
+ * A flusher thread forces segments every {@code flightapp.journal_flush_ms}
+ * (default 2) milliseconds, so concurrent writers share one fsync. An applier
+ * thread then writes entries to the database in order, in batches of up to
+ * {@code flightapp.journal_apply_batch} (default 500), and checkpoints the
+ * last applied sequence number.
+ *
+ * On startup, entries after the checkpoint are replayed. Every database
+ * statement is idempotent, so replaying an entry that was applied just
+ * before a crash is harmless.
+ *
+ * A batch that fails is retried every {@code flightapp.journal_retry_ms}
+ * (default 1000) milliseconds. After {@code flightapp.journal_max_attempts}
+ * (default 10) failures its entries are applied one at a time, and an entry
+ * that fails that many times on its own is set aside in the {@code poison}
+ * file, in the segment format, for an operator to inspect and replay. The
+ * next command of its user fails with the reason, rather than running
+ * against state that is missing the entry.
+ *
+ * Validation reads the database, so a user's earlier entries must be applied
+ * first; see {@link #awaitApplied}. Users must be served by a single process
+ * while the journal is enabled.
+ */
+public class BookingJournal implements Closeable {
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String CHECKPOINT = "checkpoint";
+  private static final String POISON = "poison";
+  // length and crc of each entry
+  private static final int ENTRY_HEADER_BYTES = 2 * Integer.BYTES;
+
+  private static BookingJournal shared;
+  private static boolean sharedLoaded;
+
+  public static final byte BOOK = 1;
+  public static final byte PAY = 2;
+  public static final byte CANCEL = 3;
+
+  /**
+   * One accepted write
+   */
+  public static class Entry {
+    public final long seq;
+    public final byte type;
+    public final int reservationId;
+    public final String username;
+    public final int cost;
+    public final int day;
+    public final String fids;
+
+    public Entry(long seq, byte type, int reservationId, String username, int cost, int day, String fids) {
+      this.seq = seq;
+      this.type = type;
+      this.reservationId = reservationId;
+      this.username = username;
+      this.cost = cost;
+      this.day = day;
+      this.fids = fids;
+    }
+  }
+
+  /**
+   * Writes a batch of entries to the database
+   */
+  public interface Applier {
+    /**
+     * Apply the entries in order. Must be idempotent, as entries may be
+     * applied again after a crash.
+     */
+    void apply(List<Entry> entries) throws SQLException, IOException;
+  }
+
+  private final Path dir;
+  private final int segmentBytes;
+  private final int applyBatch;
+  private final Applier applier;
+
+  // Guarded by this
+  private MappedByteBuffer segment;
+  private final List<Path> segments = new ArrayList<>();
+  private final List<Long> segmentFirstSeqs = new ArrayList<>();
+  private long nextSeq;
+  private long writtenSeq;
+  private long durableSeq;
+  private long appliedSeq;
+  private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+  private final Map<String, Long> lastSeqByUser = new HashMap<>();
+  // Entries set aside since their user's last wait, by username
+  private final Map<String, Long> poisonedByUser = new HashMap<>();
+  private long poisoned;
+  private boolean closed;
+
+  private volatile int maxAttempts = 10;
+  private volatile long retryMillis = 1000;
+
+  private final Map<String, Object> userLocks = new ConcurrentHashMap<>();
+  private final Thread flusher;
+  private final Thread applierThread;
+  private final long flushMillis;
+
+  /**
+   * Open the journal in {@code dir}, recovering any entries that were not
+   * applied, and start the flusher and applier threads.
+   */
+  public BookingJournal(Path dir, int segmentBytes, long flushMillis, int applyBatch, Applier applier)
+      throws IOException {
+    this.dir = dir;
+    this.segmentBytes = segmentBytes;
+    this.flushMillis = flushMillis;
+    this.applyBatch = applyBatch;
+    this.applier = applier;
+    Files.createDirectories(dir);
+    recover();
+    openSegment();
+    flusher = new Thread(this::flushLoop, "journal-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+    applierThread = new Thread(this::applyLoop, "journal-applier");
+    applierThread.setDaemon(true);
+    applierThread.start();
+  }
+
+  /**
+   * Return the journal configured in dbconn.properties, or null if it is not
+   * enabled
+   */
+  public static synchronized BookingJournal shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String dir = config.getProperty("flightapp.journal_dir");
+      if (dir != null) {
+        try {
+          shared = new BookingJournal(Paths.get(dir.trim()),
+              Integer.parseInt(config.getProperty("flightapp.journal_segment_bytes", "16777216").trim()),
+              Long.parseLong(config.getProperty("flightapp.journal_flush_ms", "2").trim()),
+              Integer.parseInt(config.getProperty("flightapp.journal_apply_batch", "500").trim()),
+              new DatabaseApplier(ConnectionFactory.fromDbConn(), ShardRouter.shared()));
+          shared.setRetries(Integer.parseInt(config.getProperty("flightapp.journal_max_attempts", "10").trim()),
+              Long.parseLong(config.getProperty("flightapp.journal_retry_ms", "1000").trim()));
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * How often a failing batch or entry is tried before it is split up or set
+   * aside, and how long to wait between tries
+   */
+  void setRetries(int maxAttempts, long retryMillis) {
+    this.maxAttempts = maxAttempts;
+    this.retryMillis = retryMillis;
+  }
+
+  /**
+   * Lock to hold while validating and appending a user's writes, so two
+   * sessions of the same user cannot both pass validation against the same
+   * state
+   */
+  public Object userLock(String username) {
+    return userLocks.computeIfAbsent(username.toLowerCase(Locale.ROOT), name -> new Object());
+  }
+
+  /**
+   * Durably record a write.
+   *
+   * @return the entry's sequence number, once the entry is on disk
+   */
+  public long append(byte type, int reservationId, String username, int cost, int day, String fids)
+      throws IOException, InterruptedException {
+    long seq;
+    synchronized (this) {
+      if (closed) {
+        throw new IOException("Journal is closed");
+      }
+      seq = nextSeq++;
+      Entry entry = new Entry(seq, type, reservationId, username, cost, day, fids);
+      byte[] encoded = encode(entry);
+      if (segment.remaining() < encoded.length + ENTRY_HEADER_BYTES) {
+        segment.force();
+        openSegment();
+      }
+      segment.put(encoded);
+      writtenSeq = seq;
+      pending.addLast(entry);
+      lastSeqByUser.put(username.toLowerCase(Locale.ROOT), seq);
+      while (durableSeq < seq) {
+        if (closed) {
+          throw new IOException("Journal closed before entry " + seq + " was on disk");
+        }
+        wait();
+      }
+    }
+    return seq;
+  }
+
+  /**
+   * Wait until every entry the user has appended is in the database or set
+   * aside
+   *
+   * @throws SQLTimeoutException if the deadline of the running command
+   *                             passes first
+   * @throws SQLException        if one of the user's entries was set aside
+   *                             since the last wait; later waits succeed
+   */
+  public synchronized void awaitApplied(String username) throws InterruptedException, SQLException {
+    String key = username.toLowerCase(Locale.ROOT);
+    Long seq = lastSeqByUser.get(key);
+    try {
+      while (seq != null && appliedSeq < seq && !closed) {
+        Deadline.waitOn(this);
+      }
+    } catch (TimeoutException e) {
+      throw new SQLTimeoutException("Command deadline passed waiting for the journal to apply " + seq);
+    }
+    Long poison = poisonedByUser.remove(key);
+    if (poison != null) {
+      throw new SQLException("Journal entry " + poison + " of " + username + " could not be applied and was set "
+          + "aside in " + dir.resolve(POISON));
+    }
+  }
+
+  /**
+   * Number of entries appended but not yet applied
+   */
+  public synchronized int backlog() {
+    return pending.size();
+  }
+
+  public synchronized long appliedSeq() {
+    return appliedSeq;
+  }
+
+  /**
+   * Number of entries set aside because they could not be applied
+   */
+  public synchronized long poisoned() {
+    return poisoned;
+  }
+
+  // Force written entries to disk and wake their writers
+  private void flushLoop() {
+    while (true) {
+      try {
+        Thread.sleep(flushMillis);
+        MappedByteBuffer toForce;
+        long seq;
+        synchronized (this) {
+          if (closed) {
+            return;
+          }
+          if (writtenSeq == durableSeq) {
+            continue;
+          }
+          toForce = segment;
+          seq = writtenSeq;
+        }
+        toForce.force();
+        synchronized (this) {
+          durableSeq = Math.max(durableSeq, seq);
+          notifyAll();
+        }
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  // Apply durable entries to the database in order
+  private void applyLoop() {
+    List<Entry> batch = new ArrayList<>();
+    // failures of the batch at the head of pending, and whether entries are
+    // being applied one at a time to find one that keeps failing
+    int attempts = 0;
+    boolean oneAtATime = false;
+    while (true) {
+      try {
+        synchronized (this) {
+          while (!closed && (pending.isEmpty() || pending.peekFirst().seq > durableSeq)) {
+            wait();
+          }
+          if (closed) {
+            return;
+          }
+          batch.clear();
+          for (Entry entry : pending) {
+            if (batch.size() == (oneAtATime ? 1 : applyBatch) || entry.seq > durableSeq) {
+              break;
+            }
+            batch.add(entry);
+          }
+        }
+        try {
+          applier.apply(batch);
+        } catch (SQLException | IOException | RuntimeException e) {
+          e.printStackTrace();
+          if (++attempts < maxAttempts) {
+            Thread.sleep(retryMillis);
+          } else if (batch.size() > 1) {
+            oneAtATime = true;
+            attempts = 0;
+          } else {
+            setAside(batch.get(0));
+            attempts = 0;
+            oneAtATime = false;
+          }
+          continue;
+        }
+        attempts = 0;
+        oneAtATime = false;
+        applied(batch);
+      } catch (InterruptedException e) {
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  // Record that the entries at the head of pending are done
+  private void applied(List<Entry> batch) throws IOException {
+    long last = batch.get(batch.size() - 1).seq;
+    writeCheckpoint(last);
+    synchronized (this) {
+      for (int i = 0; i < batch.size(); i++) {
+        pending.removeFirst();
+      }
+      appliedSeq = last;
+      notifyAll();
+    }
+    deleteAppliedSegments(last);
+  }
+
+  // Move an entry that keeps failing to the poison file and go on without it
+  private void setAside(Entry entry) throws IOException {
+    try (FileChannel channel = FileChannel.open(dir.resolve(POISON), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      channel.write(ByteBuffer.wrap(encode(entry)));
+      channel.force(true);
+    }
+    synchronized (this) {
+      poisonedByUser.put(entry.username.toLowerCase(Locale.ROOT), entry.seq);
+      poisoned++;
+    }
+    applied(Collections.singletonList(entry));
+  }
+
+  private void recover() throws IOException {
+    Path checkpoint = dir.resolve(CHECKPOINT);
+    if (Files.exists(checkpoint)) {
+      appliedSeq = Long.parseLong(new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim());
+    }
+    nextSeq = appliedSeq + 1;
+    List<Path> existing = new ArrayList<>();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      files.forEach(existing::add);
+    }
+    Collections.sort(existing);
+    for (Path file : existing) {
+      segments.add(file);
+      segmentFirstSeqs.add(firstSeq(file));
+      ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+      Entry entry;
+      while ((entry = decode(data)) != null) {
+        nextSeq = Math.max(nextSeq, entry.seq + 1);
+        if (entry.seq > appliedSeq) {
+          pending.addLast(entry);
+          lastSeqByUser.put(entry.username.toLowerCase(Locale.ROOT), entry.seq);
+        }
+      }
+    }
+    writtenSeq = nextSeq - 1;
+    durableSeq = writtenSeq;
+  }
+
+  // Start a new segment for entries from nextSeq on. A recovered segment that
+  // already starts at nextSeq holds no entries, only perhaps a torn write, so
+  // it is emptied and written again rather than listed twice.
+  private void openSegment() throws IOException {
+    Path file = dir.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+    boolean reused = !segments.isEmpty() && segments.get(segments.size() - 1).equals(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    }
+    if (!reused) {
+      segments.add(file);
+      segmentFirstSeqs.add(nextSeq);
+    }
+  }
+
+  private void writeCheckpoint(long seq) throws IOException {
+    Path temp = dir.resolve(CHECKPOINT + ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.wrap(Long.toString(seq).getBytes(StandardCharsets.UTF_8)));
+      channel.force(true);
+    }
+    Files.move(temp, dir.resolve(CHECKPOINT), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Delete segments whose entries have all been applied
+  private void deleteAppliedSegments(long applied) throws IOException {
+    List<Path> toDelete = new ArrayList<>();
+    synchronized (this) {
+      // a segment is done once the next one starts at or before applied + 1;
+      // the last one is being written and is never deleted
+      while (segments.size() > 1 && segmentFirstSeqs.get(1) <= applied + 1) {
+        toDelete.add(segments.remove(0));
+        segmentFirstSeqs.remove(0);
+      }
+    }
+    for (Path file : toDelete) {
+      Files.deleteIfExists(file);
+    }
+  }
+
+  private static long firstSeq(Path file) {
+    String name = file.getFileName().toString();
+    return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+  }
+
+  static byte[] encode(Entry entry) {
+    byte[] username = entry.username.getBytes(StandardCharsets.UTF_8);
+    byte[] fids = entry.fids == null ? new byte[0] : entry.fids.getBytes(StandardCharsets.UTF_8);
+    int bodyBytes = Long.BYTES + 1 + 3 * Integer.BYTES + 2 * Short.BYTES + username.length + fids.length;
+    ByteBuffer buffer = ByteBuffer.allocate(ENTRY_HEADER_BYTES + bodyBytes);
+    buffer.putInt(bodyBytes).putInt(0);
+    buffer.putLong(entry.seq).put(entry.type).putInt(entry.reservationId).putInt(entry.cost).putInt(entry.day);
+    buffer.putShort((short) username.length).put(username);
+    buffer.putShort((short) fids.length).put(fids);
+    CRC32 crc = new CRC32();
+    crc.update(buffer.array(), ENTRY_HEADER_BYTES, bodyBytes);
+    buffer.putInt(Integer.BYTES, (int) crc.getValue());
+    return buffer.array();
+  }
+
+  /**
+   * Read the next entry, or return null at the end of the written part of a
+   * segment or at a torn write
+   */
+  static Entry decode(ByteBuffer data) {
+    if (data.remaining() < ENTRY_HEADER_BYTES) {
+      return null;
+    }
+    int bodyBytes = data.getInt(data.position());
+    int expectedCrc = data.getInt(data.position() + Integer.BYTES);
+    if (bodyBytes <= 0 || bodyBytes > data.remaining() - ENTRY_HEADER_BYTES) {
+      return null;
+    }
+    CRC32 crc = new CRC32();
+    ByteBuffer body = data.duplicate();
+    body.position(data.position() + ENTRY_HEADER_BYTES).limit(data.position() + ENTRY_HEADER_BYTES + bodyBytes);
+    crc.update(body.duplicate());
+    if ((int) crc.getValue() != expectedCrc) {
+      return null;
+    }
+    data.position(data.position() + ENTRY_HEADER_BYTES + bodyBytes);
+    long seq = body.getLong();
+    byte type = body.get();
+    int reservationId = body.getInt();
+    int cost = body.getInt();
+    int day = body.getInt();
+    byte[] username = new byte[body.getShort()];
+    body.get(username);
+    byte[] fids = new byte[body.getShort()];
+    body.get(fids);
+    return new Entry(seq, type, reservationId, new String(username, StandardCharsets.UTF_8), cost, day,
+        fids.length == 0 ? null : new String(fids, StandardCharsets.UTF_8));
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (this) {
+      closed = true;
+      try {
+        // entries still waiting for the flusher are on disk once this returns
+        segment.force();
+        durableSeq = writtenSeq;
+      } finally {
+        notifyAll();
+      }
+    }
+    flusher.interrupt();
+    applierThread.interrupt();
+  }
+
+  /**
+   * Applies entries to the Reservations and Users tables, on the user's shard
+   * if the database is sharded
+   */
+  public static class DatabaseApplier implements Applier {
+    private static final String BOOK_SQL = "INSERT INTO Reservations SELECT ?, ?, 'no', 'no', ?, ?, ? "
+        + "WHERE NOT EXISTS (SELECT * FROM Reservations WHERE reservationID = ?)";
+    // charge only while the reservation is still unpaid, then mark it paid
+    private static final String CHARGE_SQL = "UPDATE Users SET balance = balance - ? WHERE username = ? "
+        + "AND EXISTS (SELECT * FROM Reservations WHERE reservationID = ? AND payStatus = 'no')";
+    private static final String MARK_PAID_SQL = "UPDATE Reservations SET payStatus = 'yes' "
+        + "WHERE reservationID = ? AND payStatus = 'no'";
+    private static final String CANCEL_SQL = "UPDATE Reservations SET cancellationStatus = 'yes' "
+        + "WHERE reservationID = ? AND cancellationStatus = 'no'";
+
+    private final ConnectionFactory primary;
+    private final ShardRouter shardRouter;
+    private final Map<Integer, Connection> connections = new HashMap<>();
+
+    public DatabaseApplier(ConnectionFactory primary, ShardRouter shardRouter) {
+      this.primary = primary;
+      this.shardRouter = shardRouter;
+    }
+
+    @Override
+    public void apply(List<Entry> entries) throws SQLException, IOException {
+      Map<Integer, List<Entry>> byShard = new TreeMap<>();
+      for (Entry entry : entries) {
+        int shard = shardRouter == null ? 0 : shardRouter.shardOf(entry.username);
+        byShard.computeIfAbsent(shard, s -> new ArrayList<>()).add(entry);
+      }
+      for (Map.Entry<Integer, List<Entry>> shardEntries : byShard.entrySet()) {
+        Connection conn = connection(shardEntries.getKey());
+        try {
+          applyInOrder(conn, shardEntries.getValue());
+        } catch (SQLException e) {
+          connections.remove(shardEntries.getKey());
+          conn.close();
+          throw e;
+        }
+      }
+    }
+
+    private Connection connection(int shard) throws SQLException, IOException {
+      Connection conn = connections.get(shard);
+      if (conn == null) {
+        conn = shardRouter == null ? primary.open() : shardRouter.shard(shard).open();
+        connections.put(shard, conn);
+      }
+      return conn;
+    }
+
+    // Runs of entries of the same type are sent as one JDBC batch; the whole
+    // list commits as one transaction
+    private static void applyInOrder(Connection conn, List<Entry> entries) throws SQLException {
+      conn.setAutoCommit(false);
+      try (PreparedStatement book = conn.prepareStatement(BOOK_SQL);
+          PreparedStatement charge = conn.prepareStatement(CHARGE_SQL);
+          PreparedStatement markPaid = conn.prepareStatement(MARK_PAID_SQL);
+          PreparedStatement cancel = conn.prepareStatement(CANCEL_SQL)) {
+        byte batchType = 0;
+        for (Entry entry : entries) {
+          if (entry.type != batchType) {
+            flush(batchType, book, charge, markPaid, cancel);
+            batchType = entry.type;
+          }
+          if (entry.type == BOOK) {
+            book.setInt(1, entry.cost);
+            book.setString(2, entry.username);
+            book.setInt(3, entry.reservationId);
+            book.setInt(4, entry.day);
+            book.setString(5, entry.fids);
+            book.setInt(6, entry.reservationId);
+            book.addBatch();
+          } else if (entry.type == PAY) {
+            // each payment must charge before it marks the reservation paid
+            charge.setInt(1, entry.cost);
+            charge.setString(2, entry.username);
+            charge.setInt(3, entry.reservationId);
+            charge.executeUpdate();
+            markPaid.setInt(1, entry.reservationId);
+            markPaid.executeUpdate();
+          } else if (entry.type == CANCEL) {
+            cancel.setInt(1, entry.reservationId);
+            cancel.addBatch();
+          }
+        }
+        flush(batchType, book, charge, markPaid, cancel);
+        conn.commit();
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+
+    private static void flush(byte type, PreparedStatement book, PreparedStatement charge,
+        PreparedStatement markPaid, PreparedStatement cancel) throws SQLException {
+      if (type == BOOK) {
+        book.executeBatch();
+      } else if (type == CANCEL) {
+        cancel.executeBatch();
+      }
+    }
+  }
+}
@@ -0,0 +1,39 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+
+/**
+ * Opens new application-to-database connections. Used by tools and shared
+ * components that need more than the single connection held by a
+ * {@code Query}.
+ */
+public interface ConnectionFactory {
+
+  /**
+   * Open a new connection, configured the same way as
+   * {@link Query#openConnectionFromCredential}
+   *
+   * @throws SQLException
+   * @throws IOException
+   */
+  Connection open() throws SQLException, IOException;
+
+  /**
+   * Return a factory that connects by using the dbconn.properties file
+   */
+  static ConnectionFactory fromDbConn() {
+    return Query::openConnectionFromDbConn;
+  }
+
+  /**
+   * Return a factory that connects by using the provided parameters, or the
+   * dbconn.properties file if {@code serverURL} is null.
+   */
+  static ConnectionFactory fromCredential(String serverURL, String dbName, String adminName, String password) {
+    if (serverURL == null) {
+      return fromDbConn();
+    }
+    return () -> Query.openConnectionFromCredential(serverURL, dbName, adminName, password);
+  }
+}
@@ -0,0 +1,111 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A fixed-size pool of database connections shared by all sessions, for work
+ * that runs outside a session's own connection, such as the per-day queries
+ * of a flexible-date search.
+ *
+ * Connections are opened on demand, up to {@code flightapp.pool_size}
+ * (default 4) in dbconn.properties. A connection that failed should be handed
+ * back with {@link #discard} so it is not reused.
+ */
+public class ConnectionPool implements Closeable {
+  private static ConnectionPool shared;
+
+  private final ConnectionFactory connections;
+  private final int size;
+  private final BlockingQueue<Connection> idle;
+  private final Semaphore permits;
+
+  public ConnectionPool(ConnectionFactory connections, int size) {
+    this.connections = connections;
+    this.size = size;
+    this.idle = new ArrayBlockingQueue<>(size);
+    this.permits = new Semaphore(size);
+  }
+
+  /**
+   * Return the pool configured in dbconn.properties
+   */
+  public static synchronized ConnectionPool shared() {
+    if (shared == null) {
+      int size = Integer.parseInt(Query.config().getProperty("flightapp.pool_size", "4").trim());
+      shared = new ConnectionPool(ConnectionFactory.fromDbConn(), size);
+    }
+    return shared;
+  }
+
+  /**
+   * Most connections open at once
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Take a connection, waiting if all are in use, but no longer than the
+   * deadline of the running command. Every connection taken must be handed
+   * back to {@link #release} or {@link #discard}.
+   */
+  public Connection acquire() throws SQLException {
+    Deadline deadline = Deadline.current();
+    try {
+      if (deadline == null) {
+        permits.acquire();
+      } else if (!permits.tryAcquire(deadline.remainingNanos(), TimeUnit.NANOSECONDS)) {
+        deadline.giveUp();
+        throw new SQLTimeoutException("Command deadline passed waiting for a connection");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a connection", e);
+    }
+    Connection conn = idle.poll();
+    if (conn != null) {
+      return conn;
+    }
+    try {
+      return connections.open();
+    } catch (SQLException | IOException | RuntimeException e) {
+      permits.release();
+      throw e instanceof SQLException ? (SQLException) e : new SQLException(e);
+    }
+  }
+
+  /**
+   * Hand back a connection for reuse
+   */
+  public void release(Connection conn) {
+    idle.offer(conn);
+    permits.release();
+  }
+
+  /**
+   * Hand back a connection that failed, closing it
+   */
+  public void discard(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      // already broken
+    }
+    permits.release();
+  }
+
+  @Override
+  public void close() {
+    Connection conn;
+    while ((conn = idle.poll()) != null) {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+}
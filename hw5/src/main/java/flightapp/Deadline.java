@@ -0,0 +1,260 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * The time by which a command has to finish.
+ *
+ * {@link FlightService#execute} gives each command a deadline of
+ * {@code flightapp.command_timeout_ms} (default 30000, 0 for none), or of
+ * {@code flightapp.command_timeout_ms.<command>} when set for that command.
+ * While the command runs, its deadline is the current deadline of the thread:
+ * statements passed to {@link #bind} get the remaining time as their query
+ * timeout; waits for a connection, an admission slot, a group commit, the
+ * booking journal or a coalesced search give up when it runs out; and when it
+ * passes every statement still running is canceled. The command then fails
+ * the way it fails on any database error, and counts as a timeout of its
+ * command; one that finishes as the deadline passes does not.
+ */
+public class Deadline {
+  private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+  private static final Map<String, AtomicLong> timedOut = new ConcurrentHashMap<>();
+  private static ScheduledExecutorService alarms;
+
+  private final long deadlineNanos;
+  // Statements bound while the command runs, canceled when time is up
+  private final Set<Statement> statements = ConcurrentHashMap.newKeySet();
+  private volatile boolean passed;
+  // set when the deadline made part of the command fail
+  private volatile boolean gaveUp;
+
+  private Deadline(long deadlineNanos) {
+    this.deadlineNanos = deadlineNanos;
+  }
+
+  /**
+   * Return a deadline {@code millis} from now
+   */
+  public static Deadline after(long millis) {
+    return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+  }
+
+  /**
+   * Return the deadline configured for a command, or null if it has none
+   */
+  public static Deadline forCommand(String command) {
+    Properties config = Query.config();
+    String millis = config.getProperty("flightapp.command_timeout_ms." + command,
+        config.getProperty("flightapp.command_timeout_ms", "30000"));
+    long timeout = Long.parseLong(millis.trim());
+    return timeout <= 0 ? null : after(timeout);
+  }
+
+  /**
+   * Return the deadline of the command running on this thread, or null
+   */
+  public static Deadline current() {
+    return current.get();
+  }
+
+  /**
+   * Run work with this as the thread's current deadline, canceling its
+   * statements if the deadline passes first
+   */
+  public <T> T run(Supplier<T> work) {
+    Deadline outer = current.get();
+    current.set(this);
+    ScheduledFuture<?> alarm = alarms().schedule(this::expire, remainingNanos(), TimeUnit.NANOSECONDS);
+    try {
+      return work.get();
+    } finally {
+      alarm.cancel(false);
+      statements.clear();
+      if (outer == null) {
+        current.remove();
+      } else {
+        current.set(outer);
+      }
+    }
+  }
+
+  /**
+   * Return work that runs under this deadline on whichever thread runs it, for
+   * parts of a command handed to other threads
+   */
+  public <T> Callable<T> wrap(Callable<T> work) {
+    return () -> {
+      Deadline outer = current.get();
+      current.set(this);
+      try {
+        return work.call();
+      } finally {
+        if (outer == null) {
+          current.remove();
+        } else {
+          current.set(outer);
+        }
+      }
+    };
+  }
+
+  /**
+   * Give a statement the time left to the current deadline as its query
+   * timeout; does nothing when the thread has no deadline
+   *
+   * @throws SQLTimeoutException if the deadline already passed
+   */
+  public static <S extends Statement> S bind(S statement) throws SQLException {
+    Deadline deadline = current.get();
+    if (deadline == null) {
+      return statement;
+    }
+    long remaining = deadline.remainingNanos();
+    if (remaining <= 0) {
+      statement.close();
+      deadline.gaveUp = true;
+      throw new SQLTimeoutException("Command deadline passed");
+    }
+    // the driver counts whole seconds; the alarm cancels on time
+    statement.setQueryTimeout((int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(remaining + 999_999_999L)));
+    deadline.statements.add(statement);
+    return statement;
+  }
+
+  /**
+   * Wait for a result computed on another thread for the command running on
+   * this one, giving up when its deadline passes; waits without limit when
+   * the thread has no deadline
+   *
+   * @throws TimeoutException if the deadline passed first, which then counts
+   *                          as a timeout of the command
+   */
+  public static <T> T await(Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+    Deadline deadline = current.get();
+    if (deadline == null) {
+      return future.get();
+    }
+    try {
+      return future.get(Math.max(0, deadline.remainingNanos()), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      deadline.passed = true;
+      deadline.gaveUp = true;
+      throw e;
+    }
+  }
+
+  /**
+   * Wait on a monitor the caller holds until notified, or until the deadline
+   * of the running command passes; waits without limit when the thread has
+   * no deadline. Callers loop on their condition, as with
+   * {@link Object#wait}.
+   *
+   * @throws TimeoutException if the deadline has passed, which then counts as
+   *                          a timeout of the command
+   */
+  public static void waitOn(Object monitor) throws InterruptedException, TimeoutException {
+    Deadline deadline = current.get();
+    if (deadline == null) {
+      monitor.wait();
+      return;
+    }
+    long remaining = deadline.remainingNanos();
+    if (remaining <= 0) {
+      deadline.passed = true;
+      deadline.gaveUp = true;
+      throw new TimeoutException("Command deadline passed");
+    }
+    TimeUnit.NANOSECONDS.timedWait(monitor, remaining);
+  }
+
+  /**
+   * Time left, in nanoseconds; zero or less once the deadline has passed
+   */
+  public long remainingNanos() {
+    return deadlineNanos - System.nanoTime();
+  }
+
+  /**
+   * Whether the deadline passed while work was running under it
+   */
+  public boolean passed() {
+    return passed;
+  }
+
+  /**
+   * Whether work running under the deadline failed because it passed: a wait
+   * gave up, a statement was refused, or a statement still open was canceled
+   */
+  public boolean gaveUp() {
+    return gaveUp;
+  }
+
+  /**
+   * Record that a wait of the command gave up because the deadline passed
+   */
+  void giveUp() {
+    passed = true;
+    gaveUp = true;
+  }
+
+  private void expire() {
+    passed = true;
+    for (Statement statement : statements) {
+      try {
+        if (!statement.isClosed()) {
+          statement.cancel();
+          gaveUp = true;
+        }
+      } catch (SQLException e) {
+        // already closed or finished
+      }
+    }
+  }
+
+  private static synchronized ScheduledExecutorService alarms() {
+    if (alarms == null) {
+      ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "command-deadlines");
+        thread.setDaemon(true);
+        return thread;
+      });
+      executor.setRemoveOnCancelPolicy(true);
+      alarms = executor;
+    }
+    return alarms;
+  }
+
+  /**
+   * Count a command that ran past its deadline
+   */
+  public static void recordTimeout(String command) {
+    timedOut.computeIfAbsent(command, c -> new AtomicLong()).incrementAndGet();
+  }
+
+  /**
+   * Number of times a command ran past its deadline
+   */
+  public static long timedOut(String command) {
+    AtomicLong count = timedOut.get(command);
+    return count == null ? 0 : count.get();
+  }
+
+  /**
+   * One line with the number of timeouts of each command that had any
+   */
+  public static String report() {
+    StringBuilder report = new StringBuilder("Timeouts:");
+    Map<String, AtomicLong> byCommand = new TreeMap<>(timedOut);
+    if (byCommand.isEmpty()) {
+      report.append(" none");
+    }
+    for (Map.Entry<String, AtomicLong> command : byCommand.entrySet()) {
+      report.append(' ').append(command.getKey()).append(' ').append(command.getValue().get());
+    }
+    return report.append('\n').toString();
+  }
+}
@@ -0,0 +1,146 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Flights leaving each city on each day, ordered by price, for finding the
+ * cheapest itineraries without pairing up every connection.
+ *
+ * The index is a permutation of the rows of a {@link FlightSnapshot}. The
+ * snapshot already keeps each day and origin city in one contiguous range;
+ * within each range the index orders rows by price, then flight time, then
+ * fid. Canceled flights are skipped when searching, so the index stays valid
+ * as the change feed updates the snapshot.
+ *
+ * Two-hop itineraries are produced by a k-way merge: every first leg is paired
+ * with the cheapest remaining second leg out of its destination, and only the
+ * cheapest pair is expanded at each step.
+ */
+public class FareIndex {
+  private final FlightSnapshot flights;
+  private final int[] byPrice;
+
+  private FareIndex(FlightSnapshot flights, int[] byPrice) {
+    this.flights = flights;
+    this.byPrice = byPrice;
+  }
+
+  /**
+   * Index the flights in a snapshot
+   */
+  public static FareIndex build(FlightSnapshot flights) {
+    int rows = flights.size();
+    int[] byPrice = new int[rows];
+    int start = 0;
+    while (start < rows) {
+      int end = start + 1;
+      while (end < rows && flights.dayOfMonth(end) == flights.dayOfMonth(start)
+          && flights.originId(end) == flights.originId(start)) {
+        end++;
+      }
+      // rows are already in time and fid order, so sorting on price alone
+      // with the position as tie breaker keeps that order among equal prices
+      long[] keys = new long[end - start];
+      for (int row = start; row < end; row++) {
+        keys[row - start] = ((long) flights.price(row) << 32) | (row - start);
+      }
+      Arrays.sort(keys);
+      for (int i = 0; i < keys.length; i++) {
+        byPrice[start + i] = start + (int) keys[i];
+      }
+      start = end;
+    }
+    return new FareIndex(flights, byPrice);
+  }
+
+  // A first leg and its position in the list of second legs
+  private static class Pair {
+    final int first;
+    final int[] seconds;
+    int next;
+    Itinerary itinerary;
+
+    Pair(int first, int[] seconds) {
+      this.first = first;
+      this.seconds = seconds;
+    }
+  }
+
+  /**
+   * Return the cheapest itineraries, ordered by {@link Itinerary#BY_PRICE}
+   *
+   * @return the itineraries, or null if a city is not spelled as in the
+   *         snapshot and the database has to be asked instead
+   */
+  public List<Itinerary> cheapest(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries) {
+    int origin = flights.stringId(originCity);
+    int dest = flights.stringId(destinationCity);
+    if (origin < 0 || dest < 0) {
+      return null;
+    }
+    List<Itinerary> direct = new ArrayList<>();
+    int[] directRows = legs(dayOfMonth, origin, dest, numberOfItineraries);
+    for (int row : directRows) {
+      direct.add(new Itinerary(flights.flight(row)));
+    }
+    if (directFlight) {
+      return direct;
+    }
+
+    PriorityQueue<Pair> candidates = new PriorityQueue<>(
+        (a, b) -> Itinerary.BY_PRICE.compare(a.itinerary, b.itinerary));
+    Map<Integer, int[]> secondLegs = new HashMap<>();
+    int end = flights.firstRow(dayOfMonth, origin + 1);
+    for (int i = flights.firstRow(dayOfMonth, origin); i < end; i++) {
+      int first = byPrice[i];
+      if (flights.canceled(first)) {
+        continue;
+      }
+      int[] seconds = secondLegs.computeIfAbsent(flights.destId(first),
+          stop -> legs(dayOfMonth, stop, dest, Integer.MAX_VALUE));
+      if (seconds.length > 0) {
+        Pair pair = new Pair(first, seconds);
+        pair.itinerary = new Itinerary(flights.flight(first), flights.flight(seconds[0]));
+        candidates.add(pair);
+      }
+    }
+
+    // merge the direct flights with the cheapest connections
+    List<Itinerary> itineraries = new ArrayList<>();
+    int nextDirect = 0;
+    while (itineraries.size() < numberOfItineraries && (nextDirect < direct.size() || !candidates.isEmpty())) {
+      Pair pair = candidates.peek();
+      if (pair == null || nextDirect < direct.size()
+          && Itinerary.BY_PRICE.compare(direct.get(nextDirect), pair.itinerary) <= 0) {
+        itineraries.add(direct.get(nextDirect++));
+        continue;
+      }
+      candidates.poll();
+      itineraries.add(pair.itinerary);
+      if (++pair.next < pair.seconds.length) {
+        pair.itinerary = new Itinerary(flights.flight(pair.first), flights.flight(pair.seconds[pair.next]));
+        candidates.add(pair);
+      }
+    }
+    return itineraries;
+  }
+
+  // Rows of flights from origin to dest on the day, cheapest first, at most
+  // limit of them
+  private int[] legs(int dayOfMonth, int origin, int dest, int limit) {
+    int[] rows = new int[8];
+    int count = 0;
+    int end = flights.firstRow(dayOfMonth, origin + 1);
+    for (int i = flights.firstRow(dayOfMonth, origin); i < end && count < limit; i++) {
+      int row = byPrice[i];
+      if (flights.destId(row) == dest && !flights.canceled(row)) {
+        if (count == rows.length) {
+          rows = Arrays.copyOf(rows, count * 2);
+        }
+        rows[count++] = row;
+      }
+    }
+    return Arrays.copyOf(rows, count);
+  }
+}
@@ -0,0 +1,56 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Keeps each session in its own file under a directory, such as a volume
+ * mounted by every FlightService node, so sessions survive restarts.
+ *
+ * A session is written to a temporary file which then replaces the old one,
+ * so a reader sees either the old session or the new one, never part of one.
+ */
+public class FileSessionStore implements SessionStore {
+  private static final String SUFFIX = ".session";
+
+  private final Path dir;
+
+  public FileSessionStore(Path dir) {
+    this.dir = dir;
+  }
+
+  @Override
+  public Session load(String sessionId) throws IOException {
+    try {
+      return Session.decode(Files.readAllBytes(file(sessionId)));
+    } catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  @Override
+  public void save(String sessionId, Session session) throws IOException {
+    Path file = file(sessionId);
+    Files.createDirectories(dir);
+    Path temp = Files.createTempFile(dir, sessionId, ".tmp");
+    try {
+      Files.write(temp, session.encode());
+      try {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+      }
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  @Override
+  public void remove(String sessionId) throws IOException {
+    Files.deleteIfExists(file(sessionId));
+  }
+
+  private Path file(String sessionId) {
+    return dir.resolve(SessionStore.checkId(sessionId) + SUFFIX);
+  }
+}
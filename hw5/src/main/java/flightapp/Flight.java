@@ -0,0 +1,83 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * One row of Flights as a search, booking or reservation sees it. Instances
+ * never change, so one per flight can be shared by every session through the
+ * {@link FlightRegistry}.
+ */
+public final class Flight {
+  public final int fid;
+  public final int dayOfMonth;
+  public final String carrierId;
+  public final String flightNum;
+  public final String originCity;
+  public final String destCity;
+  public final int time;
+  public final int capacity;
+  public final int price;
+
+  public Flight(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity, String destCity,
+      int time, int capacity, int price) {
+    this.fid = fid;
+    this.dayOfMonth = dayOfMonth;
+    this.carrierId = carrierId;
+    this.flightNum = flightNum;
+    this.originCity = originCity;
+    this.destCity = destCity;
+    this.time = time;
+    this.capacity = capacity;
+    this.price = price;
+  }
+
+  /**
+   * Whether this flight has exactly these values
+   */
+  boolean matches(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity, String destCity,
+      int time, int capacity, int price) {
+    return this.fid == fid && this.dayOfMonth == dayOfMonth && this.time == time && this.capacity == capacity
+        && this.price == price && Objects.equals(this.carrierId, carrierId) && Objects.equals(this.flightNum, flightNum)
+        && Objects.equals(this.originCity, originCity) && Objects.equals(this.destCity, destCity);
+  }
+
+  /**
+   * Append this flight in the format of {@link #toString}
+   */
+  public void appendTo(Appendable out) throws IOException {
+    out.append("ID: ");
+    ResponseWriter.appendInt(out, fid);
+    out.append(" Day: ");
+    ResponseWriter.appendInt(out, dayOfMonth);
+    out.append(" Carrier: ").append(carrierId).append(" Number: ").append(flightNum).append(" Origin: ")
+        .append(originCity).append(" Dest: ").append(destCity).append(" Duration: ");
+    ResponseWriter.appendInt(out, time);
+    out.append(" Capacity: ");
+    ResponseWriter.appendInt(out, capacity);
+    out.append(" Price: ");
+    ResponseWriter.appendInt(out, price);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Flight)) {
+      return false;
+    }
+    Flight other = (Flight) o;
+    return matches(other.fid, other.dayOfMonth, other.carrierId, other.flightNum, other.originCity, other.destCity,
+        other.time, other.capacity, other.price);
+  }
+
+  @Override
+  public int hashCode() {
+    return fid;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    ResponseWriter.writeTo(sb, this::appendTo);
+    return sb.toString();
+  }
+}
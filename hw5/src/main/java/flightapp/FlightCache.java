@@ -0,0 +1,93 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Process-wide cache of the Flights table, shared by all sessions.
+ *
+ * Enabled by setting {@code flightapp.snapshot_path} in dbconn.properties.
+ * The snapshot is kept current by a {@link FlightChangeFeed} polling every
+ * {@code flightapp.change_poll_ms} (default 1000) milliseconds; when the feed
+ * falls more than {@code flightapp.max_staleness_ms} (default 5000) behind,
+ * {@link #flights()} returns null and callers query the database instead.
+ * The shared cache also passes each change on to the {@link FlightRegistry}.
+ */
+public class FlightCache {
+  private static FlightCache shared;
+  private static boolean sharedLoaded;
+
+  private final FlightSnapshot flights;
+  private final FlightChangeFeed feed;
+  private FareIndex fares;
+
+  public FlightCache(FlightSnapshot flights, FlightChangeFeed feed) {
+    this.flights = flights;
+    this.feed = feed;
+  }
+
+  /**
+   * Return the cache configured in dbconn.properties, loading it on first use,
+   * or null if no cache is configured or it could not be loaded
+   */
+  public static synchronized FlightCache shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      String path = Query.config().getProperty("flightapp.snapshot_path");
+      if (path != null) {
+        try {
+          shared = load(Paths.get(path.trim()), ConnectionFactory.fromDbConn(), Query.config());
+          shared.feed().addListener(FlightRegistry.shared());
+        } catch (SQLException | IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Load the snapshot, falling back to a scan of Flights, and start following
+   * changes
+   */
+  public static FlightCache load(Path path, ConnectionFactory connections, Properties config)
+      throws SQLException, IOException {
+    long pollMillis = Long.parseLong(config.getProperty("flightapp.change_poll_ms", "1000").trim());
+    long maxStalenessMillis = Long.parseLong(config.getProperty("flightapp.max_staleness_ms", "5000").trim());
+    long lastChangeId;
+    try (Connection conn = connections.open()) {
+      lastChangeId = FlightChangeFeed.latestChangeId(conn);
+    }
+    FlightSnapshot flights = FlightSnapshot.load(path, connections);
+    FlightChangeFeed feed = new FlightChangeFeed(connections, flights, pollMillis, maxStalenessMillis);
+    feed.start(lastChangeId);
+    return new FlightCache(flights, feed);
+  }
+
+  /**
+   * Return the cached flights, or null if they may be staler than the bound
+   */
+  public FlightSnapshot flights() {
+    return feed.isFresh() ? flights : null;
+  }
+
+  /**
+   * Return the cached flights indexed by price, building the index on first
+   * use, or null if they may be staler than the bound
+   */
+  public synchronized FareIndex fares() {
+    if (!feed.isFresh()) {
+      return null;
+    }
+    if (fares == null) {
+      fares = FareIndex.build(flights);
+    }
+    return fares;
+  }
+
+  public FlightChangeFeed feed() {
+    return feed;
+  }
+}
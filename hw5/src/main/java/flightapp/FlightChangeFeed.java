@@ -0,0 +1,220 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps cached flights in step with the Flights table by polling the
+ * FlightChanges log, which a trigger in createTables.sql fills whenever the
+ * canceled flag or capacity of a flight is updated.
+ *
+ * Each change is applied to the cached {@link FlightSnapshot} and passed on
+ * to registered listeners, such as the {@link FlightRegistry}. The feed is considered
+ * fresh while its last successful poll is within the staleness bound;
+ * readers should go to the database when it is not.
+ *
+ * To try it locally, update a flight in a local copy of the Flights table,
+ * e.g. {@code UPDATE Flights SET canceled = 1 WHERE fid = 60454}.
+ */
+public class FlightChangeFeed implements Closeable {
+  private static final String MAX_CHANGE = "SELECT ISNULL(MAX(changeId), 0) AS changeId FROM FlightChanges";
+  private static final String NEXT_CHANGES = "SELECT TOP (?) changeId, fid, canceled, capacity, "
+      + "DATEDIFF_BIG(millisecond, changedAt, SYSUTCDATETIME()) AS lag_ms FROM FlightChanges "
+      + "WHERE changeId > ? ORDER BY changeId";
+  private static final int MAX_CHANGES_PER_POLL = 1000;
+
+  /**
+   * Notified after a change has been applied to the cached flights
+   */
+  public interface Listener {
+    void flightChanged(int fid, boolean canceled, int capacity);
+  }
+
+  private final ConnectionFactory connections;
+  private final FlightSnapshot flights;
+  private final long pollMillis;
+  private final long maxStalenessMillis;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService poller;
+
+  private Connection conn;
+  private PreparedStatement nextChangesStatement;
+  private long lastChangeId;
+
+  // Metrics
+  private volatile long lastPollMillis;
+  private volatile long lastApplyLagMillis;
+  private final AtomicLong maxApplyLagMillis = new AtomicLong();
+  private final AtomicLong appliedChanges = new AtomicLong();
+  private final AtomicLong failedPolls = new AtomicLong();
+
+  /**
+   * @param flights            cached flights to keep up to date
+   * @param pollMillis         time between polls
+   * @param maxStalenessMillis how long the cache may go without a successful
+   *                           poll before it stops being fresh
+   */
+  public FlightChangeFeed(ConnectionFactory connections, FlightSnapshot flights, long pollMillis,
+      long maxStalenessMillis) {
+    this.connections = connections;
+    this.flights = flights;
+    this.pollMillis = pollMillis;
+    this.maxStalenessMillis = maxStalenessMillis;
+    this.poller = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "flight-change-feed");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  /**
+   * Return the id of the latest logged change. Read this before loading the
+   * flights being cached so no change is missed.
+   */
+  public static long latestChangeId(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(MAX_CHANGE)) {
+      rs.next();
+      return rs.getLong("changeId");
+    }
+  }
+
+  /**
+   * Start polling for changes after {@code lastChangeId}
+   */
+  public synchronized void start(long lastChangeId) {
+    this.lastChangeId = lastChangeId;
+    this.lastPollMillis = System.currentTimeMillis();
+    poller.scheduleWithFixedDelay(this::pollQuietly, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Whether the cached flights are within the staleness bound
+   */
+  public boolean isFresh() {
+    return System.currentTimeMillis() - lastPollMillis <= maxStalenessMillis;
+  }
+
+  /**
+   * Apply all changes logged since the last poll.
+   *
+   * @return number of changes applied
+   */
+  public synchronized int poll() throws SQLException, IOException {
+    if (conn == null) {
+      conn = connections.open();
+      nextChangesStatement = conn.prepareStatement(NEXT_CHANGES);
+    }
+    int applied = 0;
+    boolean more = true;
+    while (more) {
+      nextChangesStatement.clearParameters();
+      nextChangesStatement.setInt(1, MAX_CHANGES_PER_POLL);
+      nextChangesStatement.setLong(2, lastChangeId);
+      int read = 0;
+      try (ResultSet rs = nextChangesStatement.executeQuery()) {
+        while (rs.next()) {
+          int fid = rs.getInt("fid");
+          boolean canceled = rs.getInt("canceled") == 1;
+          int capacity = rs.getInt("capacity");
+          int row = flights.row(fid);
+          if (row >= 0) {
+            flights.update(row, canceled, capacity);
+          }
+          for (Listener listener : listeners) {
+            notifyListener(listener, fid, canceled, capacity);
+          }
+          lastChangeId = rs.getLong("changeId");
+          recordLag(rs.getLong("lag_ms"));
+          read++;
+        }
+      }
+      applied += read;
+      more = read == MAX_CHANGES_PER_POLL;
+    }
+    lastPollMillis = System.currentTimeMillis();
+    return applied;
+  }
+
+  private void pollQuietly() {
+    try {
+      poll();
+    } catch (SQLException | IOException | RuntimeException e) {
+      // a failed poll must not end the scheduled task, which would leave the
+      // cached flights stale without anyone noticing
+      failedPolls.incrementAndGet();
+      e.printStackTrace();
+      closeConnection();
+    }
+  }
+
+  // A listener that throws is skipped for this change, so the change still
+  // counts as applied and does not fail every poll after it
+  private static void notifyListener(Listener listener, int fid, boolean canceled, int capacity) {
+    try {
+      listener.flightChanged(fid, canceled, capacity);
+    } catch (RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private void recordLag(long lagMillis) {
+    appliedChanges.incrementAndGet();
+    lastApplyLagMillis = lagMillis;
+    maxApplyLagMillis.accumulateAndGet(lagMillis, Math::max);
+  }
+
+  /**
+   * Milliseconds between the most recently applied change being logged and
+   * being applied
+   */
+  public long lastApplyLagMillis() {
+    return lastApplyLagMillis;
+  }
+
+  public long maxApplyLagMillis() {
+    return maxApplyLagMillis.get();
+  }
+
+  public long appliedChanges() {
+    return appliedChanges.get();
+  }
+
+  public long failedPolls() {
+    return failedPolls.get();
+  }
+
+  /**
+   * Milliseconds since the last successful poll
+   */
+  public long stalenessMillis() {
+    return System.currentTimeMillis() - lastPollMillis;
+  }
+
+  private synchronized void closeConnection() {
+    if (conn != null) {
+      try {
+        conn.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      conn = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    poller.shutdownNow();
+    closeConnection();
+  }
+}
@@ -0,0 +1,546 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import com.microsoft.sqlserver.jdbc.ISQLServerBulkData;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopy;
+import com.microsoft.sqlserver.jdbc.SQLServerBulkCopyOptions;
+import com.microsoft.sqlserver.jdbc.SQLServerConnection;
+
+/**
+ * Bulk loads the HW3 Flights, Carriers, Months and Weekdays csv files.
+ *
+ * The flights file is parsed by a single reader thread into reusable columnar
+ * batches, which are written by a set of writer threads, each on its own
+ * connection. Writers use the SQL Server bulk copy API when the connection
+ * supports it and JDBC batches otherwise.
+ *
+ * Usage: FlightLoader [options] <data directory>
+ *
+ * -threads N    number of writer connections (default 4)
+ * -batch N      rows per batch and per commit (default 5000)
+ * -flights FILE flights file name in the data directory (default
+ *               flights-small.csv)
+ * -nobulk       always write with JDBC batches
+ * -replace      delete existing rows before loading
+ */
+public class FlightLoader {
+  private static final String[] FLIGHT_COLUMNS = { "fid", "month_id", "day_of_month", "day_of_week_id", "carrier_id",
+      "flight_num", "origin_city", "origin_state", "dest_city", "dest_state", "departure_delay", "taxi_out",
+      "arrival_delay", "canceled", "actual_time", "distance", "capacity", "price" };
+  private static final boolean[] STRING_COLUMN = new boolean[FLIGHT_COLUMNS.length];
+  private static final int VARCHAR_PRECISION = 100;
+  private static final long POLL_MILLIS = 100;
+  private static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  // Marks an empty numeric field, which is loaded as NULL
+  static final int NULL_INT = Integer.MIN_VALUE;
+
+  static {
+    for (int column : new int[] { 4, 6, 7, 8, 9 }) {
+      STRING_COLUMN[column] = true;
+    }
+  }
+
+  private final ConnectionFactory connections;
+  private final int threads;
+  private final int batchSize;
+  private final boolean allowBulkCopy;
+
+  public FlightLoader(ConnectionFactory connections, int threads, int batchSize, boolean allowBulkCopy) {
+    if (threads < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("threads and batch size must be positive");
+    }
+    this.connections = connections;
+    this.threads = threads;
+    this.batchSize = batchSize;
+    this.allowBulkCopy = allowBulkCopy;
+  }
+
+  public static void main(String[] args) throws Exception {
+    int threads = 4;
+    int batchSize = 5000;
+    String flightsFile = "flights-small.csv";
+    boolean allowBulkCopy = true;
+    boolean replace = false;
+    String dataDir = null;
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+      case "-threads":
+        threads = Integer.parseInt(args[++i]);
+        break;
+      case "-batch":
+        batchSize = Integer.parseInt(args[++i]);
+        break;
+      case "-flights":
+        flightsFile = args[++i];
+        break;
+      case "-nobulk":
+        allowBulkCopy = false;
+        break;
+      case "-replace":
+        replace = true;
+        break;
+      default:
+        dataDir = args[i];
+      }
+    }
+    if (dataDir == null) {
+      System.err.println("Usage: FlightLoader [-threads N] [-batch N] [-flights FILE] [-nobulk] [-replace] <data directory>");
+      System.exit(1);
+    }
+
+    Path dir = Paths.get(dataDir);
+    FlightLoader loader = new FlightLoader(ConnectionFactory.fromDbConn(), threads, batchSize, allowBulkCopy);
+    if (replace) {
+      loader.deleteAll();
+    }
+    report("Carriers", loader.loadLookup(dir.resolve("carriers.csv"), "Carriers", false));
+    report("Months", loader.loadLookup(dir.resolve("months.csv"), "Months", true));
+    report("Weekdays", loader.loadLookup(dir.resolve("weekdays.csv"), "Weekdays", true));
+    report("Flights", loader.loadFlights(dir.resolve(flightsFile)));
+  }
+
+  private static void report(String table, LoadResult result) {
+    System.out.println(String.format("%s: %d rows in %.2f s (%.0f rows/s)", table, result.rows,
+        result.nanos / 1e9, result.rowsPerSecond()));
+  }
+
+  /**
+   * Number of rows written and the time it took
+   */
+  public static class LoadResult {
+    public final long rows;
+    public final long nanos;
+
+    LoadResult(long rows, long nanos) {
+      this.rows = rows;
+      this.nanos = nanos;
+    }
+
+    public double rowsPerSecond() {
+      return nanos == 0 ? 0 : rows * 1e9 / nanos;
+    }
+  }
+
+  /**
+   * Delete all rows from the tables this loader writes
+   */
+  public void deleteAll() throws SQLException, IOException {
+    try (Connection conn = connections.open(); Statement statement = conn.createStatement()) {
+      for (String table : new String[] { "Flights", "Carriers", "Months", "Weekdays" }) {
+        statement.executeUpdate("DELETE FROM " + table);
+      }
+    }
+  }
+
+  /**
+   * Load a two column (id, name) lookup table in a single transaction.
+   *
+   * @param intKey whether the id column is an integer (Months, Weekdays) or a
+   *               string (Carriers)
+   */
+  public LoadResult loadLookup(Path file, String table, boolean intKey) throws SQLException, IOException {
+    long start = System.nanoTime();
+    long rows = 0;
+    StringDictionary dictionary = new StringDictionary();
+    try (Connection conn = connections.open();
+        CsvReader csv = new CsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8));
+        PreparedStatement insert = conn.prepareStatement("INSERT INTO " + table + " VALUES (?, ?)")) {
+      conn.setAutoCommit(false);
+      try {
+        while (csv.nextLine()) {
+          if (intKey) {
+            insert.setInt(1, csv.nextInt());
+          } else {
+            insert.setString(1, csv.nextString(dictionary));
+          }
+          insert.setString(2, csv.nextString(dictionary));
+          insert.addBatch();
+          rows++;
+          if (rows % batchSize == 0) {
+            insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+        conn.commit();
+      } catch (SQLException | RuntimeException e) {
+        conn.rollback();
+        throw e;
+      } finally {
+        conn.setAutoCommit(true);
+      }
+    }
+    return new LoadResult(rows, System.nanoTime() - start);
+  }
+
+  /**
+   * Stream the flights file into the Flights table across {@code threads}
+   * parallel connections, committing every batch.
+   */
+  public LoadResult loadFlights(Path file) throws SQLException, IOException, InterruptedException {
+    long start = System.nanoTime();
+    BlockingQueue<FlightBatch> free = new ArrayBlockingQueue<>(threads * 2);
+    BlockingQueue<FlightBatch> full = new ArrayBlockingQueue<>(threads * 2);
+    for (int i = 0; i < threads * 2; i++) {
+      free.add(new FlightBatch(batchSize));
+    }
+
+    List<Connection> writerConnections = new ArrayList<>();
+    try {
+      for (int i = 0; i < threads; i++) {
+        writerConnections.add(connections.open());
+      }
+    } catch (SQLException | IOException e) {
+      for (Connection conn : writerConnections) {
+        conn.close();
+      }
+      throw e;
+    }
+
+    AtomicLong written = new AtomicLong();
+    AtomicReference<Exception> failure = new AtomicReference<>();
+    List<Thread> writers = new ArrayList<>();
+    for (Connection conn : writerConnections) {
+      Thread writer = new Thread(() -> {
+        try {
+          writeBatches(conn, full, free, written);
+        } catch (Exception e) {
+          failure.compareAndSet(null, e);
+        } finally {
+          try {
+            conn.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }
+      }, "flight-loader-" + writers.size());
+      writer.start();
+      writers.add(writer);
+    }
+
+    StringDictionary dictionary = new StringDictionary();
+    try (CsvReader csv = new CsvReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+      FlightBatch batch = take(free, failure);
+      while (batch != null && csv.nextLine()) {
+        batch.read(csv, dictionary);
+        if (batch.size == batchSize) {
+          batch = put(full, batch, failure) ? take(free, failure) : null;
+        }
+      }
+      if (batch != null && batch.size > 0) {
+        put(full, batch, failure);
+      }
+    } finally {
+      for (Thread writer : writers) {
+        while (writer.isAlive() && !full.offer(FlightBatch.END, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+          if (failure.get() != null) {
+            full.clear();
+          }
+        }
+      }
+      for (Thread writer : writers) {
+        writer.join();
+      }
+    }
+
+    Exception e = failure.get();
+    if (e instanceof SQLException) {
+      throw (SQLException) e;
+    } else if (e != null) {
+      throw new IllegalStateException("Failed to load flights", e);
+    }
+    return new LoadResult(written.get(), System.nanoTime() - start);
+  }
+
+  // Take a batch, giving up once a writer has failed
+  private static FlightBatch take(BlockingQueue<FlightBatch> queue, AtomicReference<Exception> failure)
+      throws InterruptedException {
+    while (failure.get() == null) {
+      FlightBatch batch = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+      if (batch != null) {
+        batch.size = 0;
+        return batch;
+      }
+    }
+    return null;
+  }
+
+  // Hand a batch to the writers, giving up once a writer has failed
+  private static boolean put(BlockingQueue<FlightBatch> queue, FlightBatch batch, AtomicReference<Exception> failure)
+      throws InterruptedException {
+    while (failure.get() == null) {
+      if (queue.offer(batch, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeBatches(Connection conn, BlockingQueue<FlightBatch> full, BlockingQueue<FlightBatch> free,
+      AtomicLong written) throws SQLException, InterruptedException {
+    boolean bulkCopy = allowBulkCopy && conn.isWrapperFor(SQLServerConnection.class);
+    conn.setAutoCommit(false);
+    try (PreparedStatement insert = conn.prepareStatement(INSERT_FLIGHT)) {
+      for (FlightBatch batch = full.take(); batch != FlightBatch.END; batch = full.take()) {
+        if (bulkCopy) {
+          batch.bulkCopy(conn, batchSize);
+        } else {
+          batch.insert(insert);
+        }
+        conn.commit();
+        written.addAndGet(batch.size);
+        free.put(batch);
+      }
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * A reusable batch of parsed flights, stored column by column
+   */
+  static class FlightBatch implements ISQLServerBulkData {
+    private static final long serialVersionUID = 1L;
+
+    // Signals the end of the input to a writer
+    static final FlightBatch END = new FlightBatch(0);
+
+    final int[][] ints = new int[FLIGHT_COLUMNS.length][];
+    final String[][] strings = new String[FLIGHT_COLUMNS.length][];
+    int size;
+
+    // position of the bulk copy cursor
+    private int row = -1;
+
+    FlightBatch(int capacity) {
+      for (int column = 0; column < FLIGHT_COLUMNS.length; column++) {
+        if (STRING_COLUMN[column]) {
+          strings[column] = new String[capacity];
+        } else {
+          ints[column] = new int[capacity];
+        }
+      }
+    }
+
+    void read(CsvReader csv, StringDictionary dictionary) throws IOException {
+      for (int column = 0; column < FLIGHT_COLUMNS.length; column++) {
+        if (STRING_COLUMN[column]) {
+          strings[column][size] = csv.nextString(dictionary);
+        } else {
+          ints[column][size] = csv.nextInt();
+        }
+      }
+      size++;
+    }
+
+    void insert(PreparedStatement insert) throws SQLException {
+      for (int i = 0; i < size; i++) {
+        for (int column = 0; column < FLIGHT_COLUMNS.length; column++) {
+          if (STRING_COLUMN[column]) {
+            insert.setString(column + 1, strings[column][i]);
+          } else if (ints[column][i] == NULL_INT) {
+            insert.setNull(column + 1, Types.INTEGER);
+          } else {
+            insert.setInt(column + 1, ints[column][i]);
+          }
+        }
+        insert.addBatch();
+      }
+      insert.executeBatch();
+    }
+
+    void bulkCopy(Connection conn, int batchSize) throws SQLException {
+      row = -1;
+      try (SQLServerBulkCopy copy = new SQLServerBulkCopy(conn)) {
+        SQLServerBulkCopyOptions options = new SQLServerBulkCopyOptions();
+        options.setBatchSize(batchSize);
+        options.setKeepNulls(true);
+        copy.setBulkCopyOptions(options);
+        copy.setDestinationTableName("Flights");
+        copy.writeToServer(this);
+      }
+    }
+
+    @Override
+    public Set<Integer> getColumnOrdinals() {
+      Set<Integer> ordinals = new TreeSet<>();
+      for (int column = 1; column <= FLIGHT_COLUMNS.length; column++) {
+        ordinals.add(column);
+      }
+      return ordinals;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+      return FLIGHT_COLUMNS[column - 1];
+    }
+
+    @Override
+    public int getColumnType(int column) {
+      return STRING_COLUMN[column - 1] ? Types.VARCHAR : Types.INTEGER;
+    }
+
+    @Override
+    public int getPrecision(int column) {
+      return STRING_COLUMN[column - 1] ? VARCHAR_PRECISION : 10;
+    }
+
+    @Override
+    public int getScale(int column) {
+      return 0;
+    }
+
+    @Override
+    public Object[] getRowData() {
+      Object[] data = new Object[FLIGHT_COLUMNS.length];
+      for (int column = 0; column < FLIGHT_COLUMNS.length; column++) {
+        if (STRING_COLUMN[column]) {
+          data[column] = strings[column][row];
+        } else if (ints[column][row] != NULL_INT) {
+          data[column] = ints[column][row];
+        }
+      }
+      return data;
+    }
+
+    @Override
+    public boolean next() {
+      return ++row < size;
+    }
+  }
+
+  /**
+   * Minimal csv reader that parses fields in place from a reusable line buffer.
+   * Integers are parsed without creating strings and repeated strings are
+   * shared through a {@link StringDictionary}.
+   */
+  static class CsvReader implements Closeable {
+    private final Reader in;
+    private final char[] buffer = new char[1 << 16];
+    private int bufferPos;
+    private int bufferLimit;
+
+    private char[] line = new char[256];
+    private int lineLength;
+    private int pos;
+
+    CsvReader(Reader in) {
+      this.in = in;
+    }
+
+    /**
+     * Advance to the next non-empty line, returning false at the end of the input
+     */
+    boolean nextLine() throws IOException {
+      lineLength = 0;
+      pos = 0;
+      while (true) {
+        if (bufferPos == bufferLimit) {
+          bufferLimit = in.read(buffer);
+          bufferPos = 0;
+          if (bufferLimit <= 0) {
+            bufferLimit = 0;
+            return lineLength > 0;
+          }
+        }
+        char c = buffer[bufferPos++];
+        if (c == '\n') {
+          if (lineLength > 0) {
+            return true;
+          }
+        } else if (c != '\r') {
+          if (lineLength == line.length) {
+            line = Arrays.copyOf(line, line.length * 2);
+          }
+          line[lineLength++] = c;
+        }
+      }
+    }
+
+    /**
+     * Parse the next field as an integer, ignoring any fractional part. Returns
+     * {@link FlightLoader#NULL_INT} for an empty field.
+     */
+    int nextInt() throws IOException {
+      int end = fieldEnd();
+      int i = pos;
+      if (i < end && line[i] == '"') {
+        i++;
+      }
+      boolean negative = i < end && line[i] == '-';
+      if (negative) {
+        i++;
+      }
+      int value = 0;
+      boolean digits = false;
+      for (; i < end && line[i] >= '0' && line[i] <= '9'; i++) {
+        value = value * 10 + (line[i] - '0');
+        digits = true;
+      }
+      pos = end + 1;
+      if (!digits) {
+        return NULL_INT;
+      }
+      return negative ? -value : value;
+    }
+
+    /**
+     * Return the next field as a string, unquoting it if needed
+     */
+    String nextString(StringDictionary dictionary) throws IOException {
+      if (pos < lineLength && line[pos] == '"') {
+        // unescape doubled quotes in place
+        int write = pos;
+        int i = pos + 1;
+        while (i < lineLength) {
+          if (line[i] == '"') {
+            if (i + 1 < lineLength && line[i + 1] == '"') {
+              line[write++] = '"';
+              i += 2;
+              continue;
+            }
+            i++;
+            break;
+          }
+          line[write++] = line[i++];
+        }
+        String value = dictionary.intern(line, pos, write);
+        while (i < lineLength && line[i] != ',') {
+          i++;
+        }
+        pos = i + 1;
+        return value;
+      }
+      int end = fieldEnd();
+      String value = dictionary.intern(line, pos, end);
+      pos = end + 1;
+      return value;
+    }
+
+    private int fieldEnd() throws IOException {
+      if (pos > lineLength) {
+        throw new IOException("Too few fields in line: " + new String(line, 0, lineLength));
+      }
+      int end = pos;
+      while (end < lineLength && line[end] != ',') {
+        end++;
+      }
+      return end;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
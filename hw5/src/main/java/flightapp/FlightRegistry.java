@@ -0,0 +1,160 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide registry of {@link Flight} records, so that a flight found by
+ * many searches, in many sessions, is one object in memory.
+ *
+ * Every search, booking and reservations read asks the registry for its
+ * flights. A flight is looked up by fid and reused while its values are
+ * unchanged; a flight whose capacity or cancellation changed gets a new record
+ * that replaces the old one for later lookups. Carrier, flight number and city
+ * strings are shared the same way.
+ *
+ * When a {@link FlightCache} is configured the registry follows its change
+ * feed and drops the record of each flight that changes, so the old values
+ * are not held once no session uses them.
+ *
+ * The registry holds at most {@code flightapp.flight_registry_max} flights
+ * (default 200000, 0 to share nothing). When it is full it starts over
+ * empty, so memory stays bounded and the flights in use fill it again.
+ *
+ * Usage: FlightRegistry [sessions] [itineraries per session] measures the
+ * heap held per session by search results with and without the registry.
+ */
+public class FlightRegistry implements FlightChangeFeed.Listener {
+  private static FlightRegistry shared;
+
+  private final int maxFlights;
+  private final ConcurrentHashMap<Integer, Flight> flights = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+
+  /**
+   * @param maxFlights most flights kept, 0 to share nothing
+   */
+  public FlightRegistry(int maxFlights) {
+    this.maxFlights = maxFlights;
+  }
+
+  /**
+   * Return the registry configured in dbconn.properties
+   */
+  public static synchronized FlightRegistry shared() {
+    if (shared == null) {
+      shared = new FlightRegistry(
+          Integer.parseInt(Query.config().getProperty("flightapp.flight_registry_max", "200000").trim()));
+    }
+    return shared;
+  }
+
+  /**
+   * Return the shared record of a flight with these values, creating it if
+   * there is none
+   */
+  public Flight flight(int fid, int dayOfMonth, String carrierId, String flightNum, String originCity,
+      String destCity, int time, int capacity, int price) {
+    Flight known = flights.get(fid);
+    if (known != null && known.matches(fid, dayOfMonth, carrierId, flightNum, originCity, destCity, time, capacity,
+        price)) {
+      return known;
+    }
+    Flight flight = new Flight(fid, dayOfMonth, intern(carrierId), intern(flightNum), intern(originCity),
+        intern(destCity), time, capacity, price);
+    if (maxFlights > 0) {
+      if (known == null && flights.size() >= maxFlights) {
+        flights.clear();
+        strings.clear();
+      }
+      flights.put(fid, flight);
+    }
+    return flight;
+  }
+
+  // The shared copy of a string
+  private String intern(String value) {
+    if (value == null || maxFlights == 0) {
+      return value;
+    }
+    String known = strings.putIfAbsent(value, value);
+    return known == null ? value : known;
+  }
+
+  /**
+   * Drop the record of a changed flight; the next lookup creates a new one
+   */
+  @Override
+  public void flightChanged(int fid, boolean canceled, int capacity) {
+    flights.remove(fid);
+  }
+
+  /**
+   * Number of flights held
+   */
+  public int size() {
+    return flights.size();
+  }
+
+  /**
+   * Measure the heap held by the search results of many sessions, once with
+   * each session reading its own copies of the flights, as rows from the
+   * database are, and once with the flights shared through a registry
+   */
+  public static void main(String[] args) {
+    int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int itineraries = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+    // the flights of the popular routes most sessions search
+    int distinctFlights = 5000;
+
+    long copied = heapPerSession(sessions, itineraries, distinctFlights, null);
+    long shared = heapPerSession(sessions, itineraries, distinctFlights, new FlightRegistry(200000));
+    System.out.println(String.format("%d sessions with %d itineraries each, over %d distinct flights", sessions,
+        itineraries, distinctFlights));
+    System.out.println(String.format("  copied per session: %,d bytes", copied));
+    System.out.println(String.format("  shared per session: %,d bytes", shared));
+  }
+
+  // Bytes of heap per session held by the search results of the sessions
+  private static long heapPerSession(int sessions, int itineraries, int distinctFlights, FlightRegistry registry) {
+    Random random = new Random(1);
+    long before = usedHeap();
+    List<List<Itinerary>> results = new ArrayList<>();
+    for (int s = 0; s < sessions; s++) {
+      List<Itinerary> searchResult = new ArrayList<>();
+      for (int i = 0; i < itineraries; i++) {
+        int first = random.nextInt(distinctFlights);
+        if (random.nextBoolean()) {
+          searchResult.add(new Itinerary(read(first, registry)));
+        } else {
+          searchResult.add(new Itinerary(read(first, registry), read((first + 1) % distinctFlights, registry)));
+        }
+      }
+      results.add(searchResult);
+    }
+    long used = usedHeap() - before;
+    // keep the results reachable until measured
+    return results.size() == sessions ? used / sessions : 0;
+  }
+
+  // A flight as a search reads it, with fresh strings as from a result set
+  private static Flight read(int fid, FlightRegistry registry) {
+    String carrier = new String(new char[] { 'A', (char) ('A' + fid % 20) });
+    String number = String.valueOf(fid % 9000 + 1);
+    String origin = "Origin City " + fid % 300;
+    String dest = "Destination City " + (fid + 1) % 300;
+    if (registry == null) {
+      return new Flight(fid, fid % 31 + 1, carrier, number, origin, dest, 60 + fid % 300, fid % 20, 100 + fid % 900);
+    }
+    return registry.flight(fid, fid % 31 + 1, carrier, number, origin, dest, 60 + fid % 300, fid % 20,
+        100 + fid % 900);
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
@@ -11,8 +11,108 @@ public class FlightService {
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
+    StringBuilder sb = new StringBuilder();
+    ResponseWriter.writeTo(sb, out -> execute(q, command, out));
+    return sb.toString();
+  }
+
+  /**
+   * Execute the specified command on the database query connection, writing
+   * the response into {@code out} as it is rendered
+   */
+  public static void execute(Query q, String command, Appendable out) throws IOException {
     String[] tokens = tokenize(command.trim());
-    String response;
+    AdmissionController.WorkClass workClass = tokens.length == 0 ? null : workClass(tokens[0]);
+    Deadline deadline = workClass == null ? null : Deadline.forCommand(tokens[0]);
+    if (deadline == null) {
+      admit(q, tokens, workClass, out);
+      return;
+    }
+    try {
+      deadline.run(() -> {
+        try {
+          admit(q, tokens, workClass, out);
+          return null;
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    if (deadline.gaveUp()) {
+      Deadline.recordTimeout(tokens[0]);
+    }
+  }
+
+  /**
+   * Execute a command of the session with this id: its saved state is
+   * restored before the command runs and saved again if the command changed
+   * it, so consecutive commands of a session may run in different processes
+   */
+  public static void execute(Query q, SessionStore store, String sessionId, String command, Appendable out)
+      throws IOException, SQLException {
+    Session session = store.load(sessionId);
+    q.restore(session == null ? new Session(null, null) : session);
+    int changes = q.sessionChanges();
+    execute(q, command, out);
+    if (q.sessionChanges() != changes) {
+      store.save(sessionId, q.session());
+    }
+  }
+
+  /**
+   * Execute a command once admission control lets it through
+   */
+  private static void admit(Query q, String[] tokens, AdmissionController.WorkClass workClass, Appendable out)
+      throws IOException {
+    AdmissionController admission = AdmissionController.shared();
+    if (admission == null || workClass == null) {
+      execute(q, tokens, out);
+      return;
+    }
+    try {
+      if (!admission.admit(workClass)) {
+        out.append("Server is busy, please try again later\n");
+        return;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      out.append("Server is busy, please try again later\n");
+      return;
+    }
+    try {
+      execute(q, tokens, out);
+    } finally {
+      admission.release();
+    }
+  }
+
+  /**
+   * Return the kind of database work a command does, or null if it does none
+   */
+  private static AdmissionController.WorkClass workClass(String command) {
+    switch (command) {
+    case "create":
+    case "login":
+    case "book":
+    case "bookmany":
+    case "pay":
+    case "payall":
+    case "cancel":
+      return AdmissionController.WorkClass.WRITE;
+    case "search":
+    case "reservations":
+      return AdmissionController.WorkClass.READ;
+    default:
+      return null;
+    }
+  }
+
+  // Search and reservations stream their response into out; every other
+  // command returns it in response
+  private static void execute(Query q, String[] tokens, Appendable out) throws IOException {
+    String response = null;
 
     // empty input
     if (tokens.length == 0) {
@@ -44,19 +144,30 @@ public class FlightService {
 
     // search
     else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
+      if (tokens.length == 6 || tokens.length == 7) {
         String originCity = tokens[1];
         String destinationCity = tokens[2];
         boolean direct = tokens[3].equals("1");
         try {
-          int day = Integer.valueOf(tokens[4]);
           int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
+          int dash = tokens[4].indexOf('-');
+          if (tokens.length == 7 && !tokens[6].equals("time") && !tokens[6].equals("price")) {
+            response = "Error: Please order search results by time or price";
+          } else if (dash > 0) {
+            // a range of days, first-last
+            int firstDay = Integer.valueOf(tokens[4].substring(0, dash));
+            int lastDay = Integer.valueOf(tokens[4].substring(dash + 1));
+            q.transaction_search(originCity, destinationCity, direct, firstDay, lastDay, count,
+                tokens.length == 6 ? Query.SearchOrder.TIME : Query.SearchOrder.valueOf(tokens[6].toUpperCase()), out);
+          } else {
+            q.transaction_search(originCity, destinationCity, direct, Integer.valueOf(tokens[4]), count,
+                tokens.length == 6 ? Query.SearchOrder.TIME : Query.SearchOrder.valueOf(tokens[6].toUpperCase()), out);
+          }
         } catch (NumberFormatException e) {
           response = "Failed to parse integer";
         }
       } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
+        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date | first-last> <nb itineraries> [time|price]";
       }
     }
 
@@ -70,9 +181,32 @@ public class FlightService {
       }
     }
 
+    // bookmany
+    else if (tokens[0].equals("bookmany")) {
+      if (tokens.length >= 2) {
+        try {
+          List<Integer> itinerary_ids = new ArrayList<>();
+          for (int i = 1; i < tokens.length; i++) {
+            itinerary_ids.add(Integer.parseInt(tokens[i]));
+          }
+          q.transaction_bookMany(itinerary_ids, out);
+        } catch (NumberFormatException e) {
+          response = "Failed to parse integer";
+        }
+      } else {
+        response = "Error: Please provide at least one itinerary_id";
+      }
+    }
+
     // reservations
     else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
+      if (tokens.length == 1) {
+        q.transaction_reservations(false, out);
+      } else if (tokens.length == 2 && tokens[1].equals("all")) {
+        q.transaction_reservations(true, out);
+      } else {
+        response = "Error: Please use reservations [all]";
+      }
     }
 
     // pay
@@ -85,6 +219,19 @@ public class FlightService {
       }
     }
 
+    // payall
+    else if (tokens[0].equals("payall")) {
+      try {
+        List<Integer> reservation_ids = new ArrayList<>();
+        for (int i = 1; i < tokens.length; i++) {
+          reservation_ids.add(Integer.parseInt(tokens[i]));
+        }
+        q.transaction_payAll(reservation_ids, out);
+      } catch (NumberFormatException e) {
+        response = "Failed to parse integer";
+      }
+    }
+
     // cancel
     else if (tokens[0].equals("cancel")) {
       if (tokens.length == 2) {
@@ -95,6 +242,11 @@ public class FlightService {
       }
     }
 
+    // stats
+    else if (tokens[0].equals("stats")) {
+      response = stats();
+    }
+
     // quit
     else if (tokens[0].equals("quit")) {
       response = "Goodbye\n";
@@ -105,20 +257,37 @@ public class FlightService {
       response = "Error: unrecognized command '" + tokens[0] + "'";
     }
 
-    return response;
+    if (response != null) {
+      out.append(response);
+    }
+  }
+
+  /**
+   * Return the metrics of the shared components of this process, one line
+   * each
+   */
+  private static String stats() {
+    SearchCoalescer coalescer = SearchCoalescer.shared();
+    BookingCoordinator coordinator = BookingCoordinator.shared();
+    AdmissionController admission = AdmissionController.shared();
+    return (coalescer == null ? "Search coalescing: off\n" : coalescer.report())
+        + (coordinator == null ? "Group commit: off\n" : coordinator.report())
+        + (admission == null ? "Admission: off\n" : admission.report()) + Deadline.report();
   }
 
   /**
    * Establishes an application-to-database connection and runs the Flights
    * application REPL
    * 
-   * @param args
+   * @param args optionally a session id; the session is then kept in the
+   *             configured {@link SessionStore} rather than in this process
    * @throws IOException
    */
   public static void main(String[] args) throws IOException, SQLException {
+    WarmStart.runIfEnabled();
     /* prepare the database connection stuff */
     Query q = new Query();
-    menu(q);
+    menu(q, args.length > 0 ? SessionStore.checkId(args[0]) : null);
     q.closeConnection();
   }
 
@@ -127,20 +296,27 @@ public class FlightService {
    * application-to-database connection
    * 
    * @param q
+   * @param sessionId id of the session in the shared store, or null to keep
+   *                  the session in q
    * @throws IOException
    */
-  private static void menu(Query q) throws IOException {
+  private static void menu(Query q, String sessionId) throws IOException, SQLException {
+    // responses are written into this buffer and flushed once per command
+    Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
     while (true) {
       // print the command options
       System.out.println();
       System.out.println(" *** Please enter one of the following commands *** ");
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
-      System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search <origin city> <destination city> <direct> <day of the month | first day-last day> <num itineraries> [time|price]");
       System.out.println("> book <itinerary id>");
+      System.out.println("> bookmany <itinerary id> [itinerary id ...]");
       System.out.println("> pay <reservation id>");
-      System.out.println("> reservations");
+      System.out.println("> payall [reservation id ...]");
+      System.out.println("> reservations [all]");
       System.out.println("> cancel <reservation id>");
+      System.out.println("> stats");
       System.out.println("> quit");
 
       // read an input command from the REPL
@@ -149,9 +325,14 @@ public class FlightService {
       String command = r.readLine();
 
       // execute the given input command
-      String response = execute(q, command);
-      System.out.print(response);
-      if (response.equals("Goodbye\n")) {
+      if (sessionId == null) {
+        execute(q, command, out);
+      } else {
+        execute(q, SessionStore.shared(), sessionId, command, out);
+      }
+      out.flush();
+      String[] tokens = tokenize(command.trim());
+      if (tokens.length > 0 && tokens[0].equals("quit")) {
         break;
       }
     }
@@ -160,7 +341,7 @@ public class FlightService {
   /**
    * Tokenize a string into a string array
    */
-  private static String[] tokenize(String command) {
+  static String[] tokenize(String command) {
     String regex = "\"([^\"]*)\"|(\\S+)";
     Matcher m = Pattern.compile(regex).matcher(command);
     List<String> tokens = new ArrayList<>();
@@ -0,0 +1,473 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * A compact, read-mostly copy of the Flights table.
+ *
+ * Flights are stored column by column as int arrays, with cities and carriers
+ * encoded as ids into a string dictionary. Rows are ordered by day, origin
+ * city, flight time and fid, so all flights leaving a city on a given day are
+ * one contiguous range.
+ *
+ * The same layout is used in memory and on disk, so a snapshot file is opened
+ * by memory mapping it without deserializing any rows. File layout (little
+ * endian):
+ *
+ * <pre>
+ * header:     magic, version, rows, dictionary size, dictionary bytes (ints),
+ *             source fingerprint, body checksum (longs)
+ * body:       one int column per field, in COLUMNS order
+ *             dictionary entries (int length + UTF-8 bytes)
+ * </pre>
+ */
+public class FlightSnapshot {
+  private static final int MAGIC = 0x464C534E; // "FLSN"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 5 * Integer.BYTES + 2 * Long.BYTES;
+
+  // Column order in the body
+  static final int FID = 0;
+  static final int DAY = 1;
+  static final int CARRIER = 2;
+  static final int FLIGHT_NUM = 3;
+  static final int ORIGIN = 4;
+  static final int DEST = 5;
+  static final int TIME = 6;
+  static final int CAPACITY = 7;
+  static final int PRICE = 8;
+  static final int CANCELED = 9;
+  // Row numbers ordered by fid, used to look up a row by fid
+  static final int FID_ORDER = 10;
+  private static final int COLUMNS = 11;
+
+  private static final String SCAN_FLIGHTS = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+      + "actual_time, capacity, price, canceled FROM Flights ORDER BY fid";
+  private static final String SCAN_DAY = "SELECT fid, day_of_month, carrier_id, flight_num, origin_city, dest_city, "
+      + "actual_time, capacity, price, canceled FROM Flights WHERE day_of_month = ? ORDER BY fid";
+  private static final String FINGERPRINT = "SELECT COUNT_BIG(*) AS num_rows, CHECKSUM_AGG(BINARY_CHECKSUM(fid, "
+      + "day_of_month, carrier_id, flight_num, origin_city, dest_city, actual_time, capacity, price, canceled)) "
+      + "AS checksum FROM Flights";
+
+  private final ByteBuffer data;
+  private final IntBuffer[] columns = new IntBuffer[COLUMNS];
+  private final int rows;
+  private final long fingerprint;
+  private final String[] strings;
+  private final StringDictionary dictionary = new StringDictionary();
+
+  private FlightSnapshot(ByteBuffer data) {
+    this.data = data.order(ByteOrder.LITTLE_ENDIAN);
+    rows = data.getInt(8);
+    int dictionarySize = data.getInt(12);
+    fingerprint = data.getLong(20);
+    for (int c = 0; c < COLUMNS; c++) {
+      ByteBuffer column = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+      column.position(columnOffset(c, rows));
+      column.limit(columnOffset(c + 1, rows));
+      columns[c] = column.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+    }
+    strings = new String[dictionarySize];
+    ByteBuffer entries = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    entries.position(columnOffset(COLUMNS, rows));
+    for (int id = 0; id < dictionarySize; id++) {
+      byte[] bytes = new byte[entries.getInt()];
+      entries.get(bytes);
+      strings[id] = dictionary.intern(new String(bytes, StandardCharsets.UTF_8));
+    }
+  }
+
+  /**
+   * Build a snapshot file from the Flights table
+   *
+   * Usage: FlightSnapshot <snapshot file>
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("Usage: FlightSnapshot <snapshot file>");
+      System.exit(1);
+    }
+    long start = System.nanoTime();
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      FlightSnapshot snapshot = scan(conn);
+      snapshot.write(Paths.get(args[0]));
+      System.out.println(String.format("Wrote %d flights in %.2f s", snapshot.size(), (System.nanoTime() - start) / 1e9));
+    }
+  }
+
+  /**
+   * Open the snapshot file if it is intact and matches the Flights table,
+   * otherwise scan the Flights table and rewrite the file.
+   *
+   * @param file        snapshot file, which need not exist
+   * @param connections used to validate the snapshot and to fall back to a scan
+   */
+  public static FlightSnapshot load(Path file, ConnectionFactory connections) throws SQLException, IOException {
+    try (Connection conn = connections.open()) {
+      long current = fingerprint(conn);
+      FlightSnapshot snapshot = open(file);
+      if (snapshot != null && snapshot.fingerprint == current) {
+        return snapshot;
+      }
+      snapshot = scan(conn, current);
+      try {
+        snapshot.write(file);
+      } catch (IOException e) {
+        // still usable from memory
+        e.printStackTrace();
+      }
+      return snapshot;
+    }
+  }
+
+  /**
+   * Memory map a snapshot file.
+   *
+   * @return the snapshot, or null if the file is missing, truncated, from
+   *         another version or fails its checksum
+   */
+  public static FlightSnapshot open(Path file) throws IOException {
+    if (!Files.isRegularFile(file) || Files.size(file) < HEADER_BYTES) {
+      return null;
+    }
+    // A private mapping lets cached flights be updated in place without
+    // touching the file
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      ByteBuffer data = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      if (data.getInt(0) != MAGIC || data.getInt(4) != VERSION) {
+        return null;
+      }
+      int rows = data.getInt(8);
+      long expectedSize = (long) columnOffset(COLUMNS, rows) + data.getInt(16);
+      if (rows < 0 || expectedSize != channel.size() || checksum(data) != data.getLong(28)) {
+        return null;
+      }
+      return new FlightSnapshot(data);
+    }
+  }
+
+  /**
+   * Read the whole Flights table into an in-memory snapshot
+   */
+  public static FlightSnapshot scan(Connection conn) throws SQLException {
+    return scan(conn, fingerprint(conn));
+  }
+
+  /**
+   * Read the flights of one day into an in-memory snapshot. The snapshot has
+   * no fingerprint, as it does not stand for the whole table.
+   */
+  public static FlightSnapshot scanDay(Connection conn, int dayOfMonth) throws SQLException {
+    try (PreparedStatement statement = Deadline.bind(conn.prepareStatement(SCAN_DAY))) {
+      statement.setFetchSize(10000);
+      statement.setInt(1, dayOfMonth);
+      try (ResultSet rs = statement.executeQuery()) {
+        return read(rs, 0L);
+      }
+    }
+  }
+
+  private static FlightSnapshot scan(Connection conn, long fingerprint) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.setFetchSize(10000);
+      try (ResultSet rs = statement.executeQuery(SCAN_FLIGHTS)) {
+        return read(rs, fingerprint);
+      }
+    }
+  }
+
+  private static FlightSnapshot read(ResultSet rs, long fingerprint) throws SQLException {
+    StringDictionary dictionary = new StringDictionary();
+    int[][] values = new int[COLUMNS][1024];
+    int rows = 0;
+    while (rs.next()) {
+      if (rows == values[0].length) {
+        for (int c = 0; c < COLUMNS; c++) {
+          values[c] = Arrays.copyOf(values[c], rows * 2);
+        }
+      }
+      values[FID][rows] = rs.getInt("fid");
+      values[DAY][rows] = rs.getInt("day_of_month");
+      values[CARRIER][rows] = dictionary.id(rs.getString("carrier_id"));
+      values[FLIGHT_NUM][rows] = rs.getInt("flight_num");
+      values[ORIGIN][rows] = dictionary.id(rs.getString("origin_city"));
+      values[DEST][rows] = dictionary.id(rs.getString("dest_city"));
+      values[TIME][rows] = rs.getInt("actual_time");
+      values[CAPACITY][rows] = rs.getInt("capacity");
+      values[PRICE][rows] = rs.getInt("price");
+      values[CANCELED][rows] = rs.getInt("canceled");
+      rows++;
+    }
+    return of(values, rows, dictionary, fingerprint);
+  }
+
+  /**
+   * Build an in-memory snapshot from rows that were read in fid order
+   *
+   * @param values one array per column, indexed by input row; the fid order
+   *               column is ignored
+   */
+  static FlightSnapshot of(int[][] values, int rows, StringDictionary dictionary, long fingerprint) {
+    return new FlightSnapshot(encode(values, rows, dictionary, fingerprint));
+  }
+
+  /**
+   * Return a value that changes whenever the contents of the Flights table do
+   */
+  static long fingerprint(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(FINGERPRINT)) {
+      rs.next();
+      return (rs.getLong("num_rows") << 32) ^ (rs.getInt("checksum") & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * Encode rows that were read in fid order into the snapshot layout, sorting
+   * them by day, origin, time and fid.
+   */
+  private static ByteBuffer encode(int[][] values, int rows, StringDictionary dictionary, long fingerprint) {
+    int[] order = sortedRows(values, rows);
+    byte[][] entries = new byte[dictionary.size()][];
+    int dictionaryBytes = 0;
+    for (int id = 0; id < entries.length; id++) {
+      entries[id] = dictionary.get(id).getBytes(StandardCharsets.UTF_8);
+      dictionaryBytes += Integer.BYTES + entries[id].length;
+    }
+
+    ByteBuffer data = ByteBuffer.allocate(columnOffset(COLUMNS, rows) + dictionaryBytes)
+        .order(ByteOrder.LITTLE_ENDIAN);
+    data.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(entries.length).putInt(dictionaryBytes);
+    data.putLong(fingerprint).putLong(0);
+    for (int c = 0; c < FID_ORDER; c++) {
+      for (int row = 0; row < rows; row++) {
+        data.putInt(values[c][order[row]]);
+      }
+    }
+    // rows were read in fid order, so the new position of each input row is its
+    // fid order
+    int[] fidOrder = new int[rows];
+    for (int row = 0; row < rows; row++) {
+      fidOrder[order[row]] = row;
+    }
+    for (int row = 0; row < rows; row++) {
+      data.putInt(fidOrder[row]);
+    }
+    for (byte[] entry : entries) {
+      data.putInt(entry.length).put(entry);
+    }
+    data.putLong(28, checksum(data));
+    return data.clear();
+  }
+
+  /**
+   * Write this snapshot to a file, replacing it atomically
+   */
+  public void write(Path file) throws IOException {
+    Path parent = file.toAbsolutePath().getParent();
+    Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+    try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+      ByteBuffer contents = data.duplicate();
+      contents.clear();
+      while (contents.hasRemaining()) {
+        channel.write(contents);
+      }
+      channel.force(true);
+    }
+    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Number of flights
+   */
+  public int size() {
+    return rows;
+  }
+
+  /**
+   * Fingerprint of the Flights table this snapshot was taken from
+   */
+  public long fingerprint() {
+    return fingerprint;
+  }
+
+  public int fid(int row) {
+    return columns[FID].get(row);
+  }
+
+  public int dayOfMonth(int row) {
+    return columns[DAY].get(row);
+  }
+
+  public String carrierId(int row) {
+    return strings[columns[CARRIER].get(row)];
+  }
+
+  public int flightNum(int row) {
+    return columns[FLIGHT_NUM].get(row);
+  }
+
+  public int originId(int row) {
+    return columns[ORIGIN].get(row);
+  }
+
+  public String originCity(int row) {
+    return strings[originId(row)];
+  }
+
+  public int destId(int row) {
+    return columns[DEST].get(row);
+  }
+
+  public String destCity(int row) {
+    return strings[destId(row)];
+  }
+
+  public int time(int row) {
+    return columns[TIME].get(row);
+  }
+
+  public int capacity(int row) {
+    return columns[CAPACITY].get(row);
+  }
+
+  public int price(int row) {
+    return columns[PRICE].get(row);
+  }
+
+  public boolean canceled(int row) {
+    return columns[CANCELED].get(row) == 1;
+  }
+
+  /**
+   * Return the flight in a row as it would be read from the database
+   */
+  public Flight flight(int row) {
+    return FlightRegistry.shared().flight(fid(row), dayOfMonth(row), carrierId(row), String.valueOf(flightNum(row)),
+        originCity(row), destCity(row), time(row), capacity(row), price(row));
+  }
+
+  /**
+   * Apply an operational change to a cached flight. Only the in-memory copy
+   * changes, never the snapshot file.
+   */
+  void update(int row, boolean canceled, int capacity) {
+    columns[CANCELED].put(row, canceled ? 1 : 0);
+    columns[CAPACITY].put(row, capacity);
+  }
+
+  /**
+   * Number of entries in the city and carrier dictionary
+   */
+  public int dictionarySize() {
+    return strings.length;
+  }
+
+  /**
+   * Return the dictionary id of a city or carrier, or -1 if no flight uses it
+   */
+  public int stringId(String s) {
+    return dictionary.find(s);
+  }
+
+  /**
+   * Return the city or carrier with the given dictionary id
+   */
+  public String string(int id) {
+    return strings[id];
+  }
+
+  /**
+   * Return the row of the flight with the given fid, or -1 if there is none
+   */
+  public int row(int fid) {
+    IntBuffer fidOrder = columns[FID_ORDER];
+    int low = 0;
+    int high = rows - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int row = fidOrder.get(mid);
+      int midFid = fid(row);
+      if (midFid < fid) {
+        low = mid + 1;
+      } else if (midFid > fid) {
+        high = mid - 1;
+      } else {
+        return row;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Return the first row of flights leaving {@code originId} on
+   * {@code dayOfMonth}. Those flights end at
+   * {@code firstRow(dayOfMonth, originId + 1)}.
+   */
+  public int firstRow(int dayOfMonth, int originId) {
+    IntBuffer days = columns[DAY];
+    IntBuffer origins = columns[ORIGIN];
+    int low = 0;
+    int high = rows;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int day = days.get(mid);
+      if (day < dayOfMonth || (day == dayOfMonth && origins.get(mid) < originId)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private static int columnOffset(int column, int rows) {
+    return HEADER_BYTES + column * rows * Integer.BYTES;
+  }
+
+  private static long checksum(ByteBuffer data) {
+    ByteBuffer body = data.duplicate();
+    body.position(HEADER_BYTES);
+    body.limit(data.capacity());
+    CRC32 crc = new CRC32();
+    crc.update(body);
+    return crc.getValue();
+  }
+
+  // Return input rows ordered by day, origin, time and input position
+  private static int[] sortedRows(int[][] values, int rows) {
+    long[] keys = new long[rows];
+    boolean packable = rows < (1 << 22);
+    for (int row = 0; row < rows && packable; row++) {
+      int day = values[DAY][row];
+      int origin = values[ORIGIN][row];
+      int time = values[TIME][row];
+      packable = day >= 0 && day < 64 && origin >= 0 && origin < (1 << 16) && time >= 0 && time < (1 << 16);
+      keys[row] = ((long) day << 54) | ((long) origin << 38) | ((long) time << 22) | row;
+    }
+    int[] order = new int[rows];
+    if (packable) {
+      Arrays.sort(keys);
+      for (int row = 0; row < rows; row++) {
+        order[row] = (int) (keys[row] & ((1 << 22) - 1));
+      }
+      return order;
+    }
+    Integer[] boxed = new Integer[rows];
+    for (int row = 0; row < rows; row++) {
+      boxed[row] = row;
+    }
+    Arrays.sort(boxed, Comparator.<Integer>comparingInt(row -> values[DAY][row])
+        .thenComparingInt(row -> values[ORIGIN][row]).thenComparingInt(row -> values[TIME][row]));
+    for (int row = 0; row < rows; row++) {
+      order[row] = boxed[row];
+    }
+    return order;
+  }
+}
@@ -0,0 +1,36 @@
+package flightapp;
+
+import java.io.*;
+import java.util.concurrent.*;
+
+/**
+ * Keeps encoded sessions in this process, for a single FlightService node or
+ * for tests. Sessions are stored encoded, as a shared store would hold them,
+ * so no two sessions share mutable state.
+ */
+public class InMemorySessionStore implements SessionStore {
+  private final ConcurrentHashMap<String, byte[]> sessions = new ConcurrentHashMap<>();
+
+  @Override
+  public Session load(String sessionId) throws IOException {
+    byte[] encoded = sessions.get(SessionStore.checkId(sessionId));
+    return encoded == null ? null : Session.decode(encoded);
+  }
+
+  @Override
+  public void save(String sessionId, Session session) {
+    sessions.put(SessionStore.checkId(sessionId), session.encode());
+  }
+
+  @Override
+  public void remove(String sessionId) {
+    sessions.remove(SessionStore.checkId(sessionId));
+  }
+
+  /**
+   * Number of sessions held
+   */
+  public int size() {
+    return sessions.size();
+  }
+}
@@ -0,0 +1,131 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * One result of a flight search: a direct flight, or flights on the same day
+ * connecting through other cities
+ */
+public class Itinerary {
+  /**
+   * Cheapest first, then shortest, then fewest flights, then by fids
+   */
+  public static final Comparator<Itinerary> BY_PRICE = (a, b) -> {
+    int order = Integer.compare(a.cost(), b.cost());
+    if (order == 0) {
+      order = Integer.compare(a.totalTime, b.totalTime);
+    }
+    if (order == 0) {
+      order = Integer.compare(a.flights.size(), b.flights.size());
+    }
+    for (int i = 0; order == 0 && i < a.flights.size(); i++) {
+      order = Integer.compare(a.flights.get(i).fid, b.flights.get(i).fid);
+    }
+    return order;
+  };
+
+  /**
+   * Shortest first, then fewest flights, then by fids, the order a search by
+   * time returns
+   */
+  public static final Comparator<Itinerary> BY_TIME = (a, b) -> {
+    int order = Integer.compare(a.totalTime, b.totalTime);
+    if (order == 0) {
+      order = Integer.compare(a.flights.size(), b.flights.size());
+    }
+    for (int i = 0; order == 0 && i < a.flights.size(); i++) {
+      order = Integer.compare(a.flights.get(i).fid, b.flights.get(i).fid);
+    }
+    return order;
+  };
+
+  private final List<Flight> flights;
+  private final int totalTime;
+
+  public Itinerary(List<Flight> flights) {
+    this.flights = Collections.unmodifiableList(new ArrayList<>(flights));
+    int time = 0;
+    for (Flight flight : flights) {
+      time += flight.time;
+    }
+    this.totalTime = time;
+  }
+
+  public Itinerary(Flight flight) {
+    this(Collections.singletonList(flight));
+  }
+
+  public Itinerary(Flight first, Flight second) {
+    this(Arrays.asList(first, second));
+  }
+
+  public List<Flight> flights() {
+    return flights;
+  }
+
+  /**
+   * Total flight time in minutes
+   */
+  public int totalTime() {
+    return totalTime;
+  }
+
+  /**
+   * Total price of all flights
+   */
+  public int cost() {
+    int cost = 0;
+    for (Flight flight : flights) {
+      cost += flight.price;
+    }
+    return cost;
+  }
+
+  public int day() {
+    return flights.get(0).dayOfMonth;
+  }
+
+  /**
+   * The fid of each flight joined by "-", as stored in Reservations
+   */
+  public String fids() {
+    StringBuilder sb = new StringBuilder();
+    for (Flight flight : flights) {
+      if (sb.length() > 0) {
+        sb.append('-');
+      }
+      sb.append(flight.fid);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Whether every flight had seats left when searched
+   */
+  public boolean seatsAvailable() {
+    for (Flight flight : flights) {
+      if (flight.capacity < 1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Append this itinerary in the search output format, numbered {@code index}
+   */
+  public void appendTo(Appendable out, int index) throws IOException {
+    out.append("Itinerary ");
+    ResponseWriter.appendInt(out, index);
+    out.append(": ");
+    ResponseWriter.appendInt(out, flights.size());
+    out.append(" flight(s), ");
+    ResponseWriter.appendInt(out, totalTime);
+    out.append(" minutes\n");
+    for (Flight flight : flights) {
+      flight.appendTo(out);
+      out.append('\n');
+    }
+  }
+}
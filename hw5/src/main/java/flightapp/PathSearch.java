@@ -0,0 +1,197 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Finds the best itineraries of up to a given number of flights on one day,
+ * treating the day's flights as a graph between cities.
+ *
+ * Partial itineraries are expanded best first, ordered by their weight (total
+ * time or total price) plus the lightest flight into the destination, which no
+ * completed itinerary can beat. Itineraries therefore complete in weight
+ * order, and the search stops once the next partial itinerary is heavier than
+ * the last of the requested number. Flights are also skipped when they reach a
+ * city from which the destination is more flights away than the itinerary has
+ * left, found by a breadth-first search back from the destination. No
+ * itinerary visits a city twice.
+ */
+public class PathSearch {
+  private final FlightSnapshot flights;
+
+  public PathSearch(FlightSnapshot flights) {
+    this.flights = flights;
+  }
+
+  // A partial itinerary, linked back to its first flight
+  private static class Path {
+    final Path previous;
+    final int row;
+    final int city;
+    final int legs;
+    final int weight;
+    final int bound;
+
+    Path(Path previous, int row, int city, int weight, int bound) {
+      this.previous = previous;
+      this.row = row;
+      this.city = city;
+      this.legs = previous == null ? 1 : previous.legs + 1;
+      this.weight = weight;
+      this.bound = bound;
+    }
+
+    boolean visits(int city) {
+      for (Path path = this; path != null; path = path.previous) {
+        if (path.city == city) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Return the best itineraries from {@code originCity} to
+   * {@code destinationCity}, ordered by {@link Itinerary#BY_TIME} or
+   * {@link Itinerary#BY_PRICE}
+   *
+   * @param maxFlights most flights in one itinerary
+   */
+  public List<Itinerary> search(String originCity, String destinationCity, int dayOfMonth, int maxFlights,
+      int numberOfItineraries, Query.SearchOrder order) {
+    List<Itinerary> itineraries = new ArrayList<>();
+    int origin = city(originCity);
+    int dest = city(destinationCity);
+    if (origin < 0 || dest < 0 || origin == dest || numberOfItineraries <= 0) {
+      return itineraries;
+    }
+    boolean byPrice = order == Query.SearchOrder.PRICE;
+    int[] hops = hopsTo(dest, dayOfMonth, maxFlights - 1);
+    int lightest = lightestInto(dest, dayOfMonth, byPrice);
+
+    PriorityQueue<Path> frontier = new PriorityQueue<>((a, b) -> Integer.compare(a.bound, b.bound));
+    List<Path> complete = new ArrayList<>();
+    int worst = Integer.MAX_VALUE;
+    expand(null, origin, origin, dest, dayOfMonth, maxFlights, hops, lightest, byPrice, worst, frontier);
+    while (!frontier.isEmpty() && frontier.peek().bound <= worst) {
+      Path path = frontier.poll();
+      if (path.city == dest) {
+        complete.add(path);
+        if (complete.size() == numberOfItineraries) {
+          worst = path.weight;
+        }
+      } else if (path.legs < maxFlights) {
+        expand(path, path.city, origin, dest, dayOfMonth, maxFlights, hops, lightest, byPrice, worst, frontier);
+      }
+    }
+
+    for (Path path : complete) {
+      itineraries.add(itinerary(path));
+    }
+    itineraries.sort(byPrice ? Itinerary.BY_PRICE : Itinerary.BY_TIME);
+    return new ArrayList<>(itineraries.subList(0, Math.min(numberOfItineraries, itineraries.size())));
+  }
+
+  // Queue every flight out of the end of a partial itinerary that can still
+  // reach the destination within the bound
+  private void expand(Path path, int from, int origin, int dest, int dayOfMonth, int maxFlights, int[] hops,
+      int lightest, boolean byPrice, int worst, PriorityQueue<Path> frontier) {
+    int legs = path == null ? 1 : path.legs + 1;
+    int end = flights.firstRow(dayOfMonth, from + 1);
+    for (int row = flights.firstRow(dayOfMonth, from); row < end; row++) {
+      int to = flights.destId(row);
+      if (flights.canceled(row) || to == origin || legs + hops[to] > maxFlights
+          || path != null && path.visits(to)) {
+        continue;
+      }
+      int weight = (path == null ? 0 : path.weight) + (byPrice ? flights.price(row) : flights.time(row));
+      int bound = to == dest ? weight : weight + lightest;
+      if (bound <= worst) {
+        frontier.add(new Path(path, row, to, weight, bound));
+      }
+    }
+  }
+
+  // Fewest flights from each city to the destination on the day, counting up
+  // to limit; cities further away are left at Integer.MAX_VALUE / 2
+  private int[] hopsTo(int dest, int dayOfMonth, int limit) {
+    int cities = flights.dictionarySize();
+    List<List<Integer>> into = new ArrayList<>(cities);
+    for (int i = 0; i < cities; i++) {
+      into.add(null);
+    }
+    int end = flights.firstRow(dayOfMonth + 1, 0);
+    for (int row = flights.firstRow(dayOfMonth, 0); row < end; row++) {
+      if (!flights.canceled(row)) {
+        List<Integer> from = into.get(flights.destId(row));
+        if (from == null) {
+          from = new ArrayList<>();
+          into.set(flights.destId(row), from);
+        }
+        from.add(flights.originId(row));
+      }
+    }
+    int[] hops = new int[cities];
+    Arrays.fill(hops, Integer.MAX_VALUE / 2);
+    hops[dest] = 0;
+    List<Integer> level = Collections.singletonList(dest);
+    for (int distance = 1; distance <= limit && !level.isEmpty(); distance++) {
+      List<Integer> next = new ArrayList<>();
+      for (int city : level) {
+        List<Integer> from = into.get(city);
+        for (int i = 0; from != null && i < from.size(); i++) {
+          if (hops[from.get(i)] > distance) {
+            hops[from.get(i)] = distance;
+            next.add(from.get(i));
+          }
+        }
+      }
+      level = next;
+    }
+    return hops;
+  }
+
+  // Lightest flight into the destination on the day
+  private int lightestInto(int dest, int dayOfMonth, boolean byPrice) {
+    int lightest = Integer.MAX_VALUE / 2;
+    int end = flights.firstRow(dayOfMonth + 1, 0);
+    for (int row = flights.firstRow(dayOfMonth, 0); row < end; row++) {
+      if (flights.destId(row) == dest && !flights.canceled(row)) {
+        lightest = Math.min(lightest, byPrice ? flights.price(row) : flights.time(row));
+      }
+    }
+    return lightest;
+  }
+
+  // Dictionary id of a city, matched as the database would: ignoring case and
+  // trailing spaces
+  private int city(String name) {
+    int id = flights.stringId(name);
+    if (id >= 0) {
+      return id;
+    }
+    String wanted = stripTrailing(name);
+    for (int i = 0; i < flights.dictionarySize(); i++) {
+      if (stripTrailing(flights.string(i)).equalsIgnoreCase(wanted)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private static String stripTrailing(String s) {
+    int end = s.length();
+    while (end > 0 && s.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return s.substring(0, end);
+  }
+
+  private Itinerary itinerary(Path path) {
+    LinkedList<Flight> legs = new LinkedList<>();
+    for (; path != null; path = path.previous) {
+      legs.addFirst(flights.flight(path.row));
+    }
+    return new Itinerary(legs);
+  }
+}
@@ -3,6 +3,7 @@ package flightapp;
 import java.io.*;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -18,7 +19,67 @@ public class Query {
   // DB Connection
   private Connection conn;
   private String username;
-  private String searchResult;
+  // Itineraries returned by the last search, in the order they were numbered
+  private List<Itinerary> searchResult;
+  // Counts logins and searches, so callers can tell whether the session changed
+  private int sessionChanges;
+  // Reused to render the responses returned as Strings
+  private final StringBuilder responseBuffer = new StringBuilder(1024);
+
+  // Users and Reservations are partitioned across these shards, null if the
+  // database is not sharded
+  private final ShardRouter shardRouter;
+  private final Map<Integer, Connection> shardConnections = new HashMap<>();
+  // Connection to the database holding the logged in user's rows
+  private Connection userConn;
+
+  // Read replicas for read-only transactions, null if none are configured
+  private final ReplicaRouter replicaRouter;
+  private final Map<ReplicaRouter.Replica, Connection> replicaConnections = new HashMap<>();
+  // Reads of the session's own reservations stay on the primary for this long
+  // after a write, so they are not served by a lagging replica
+  private final long readYourWritesMillis;
+  private long lastWriteMillis;
+
+  // Accepted writes are journaled and applied in the background, null if the
+  // journal is not enabled
+  private final BookingJournal journal;
+
+  // Batches bookings from concurrent sessions into shared transactions, null
+  // if group commit is not enabled
+  private final BookingCoordinator bookingCoordinator;
+
+  // Shares executions of identical concurrent searches, null if turned off
+  private final SearchCoalescer searchCoalescer;
+
+  // Rules out searches between cities with no route that day, null if the
+  // pre-check is not enabled
+  private final RouteReachability routeReachability;
+
+  // Seats held for unpaid reservations, null if seat holds are not enabled
+  private final SeatHolds seatHolds;
+
+  // Live reservations of each user, shared by all sessions, null if the cache
+  // is not enabled
+  private final ReservationCache reservationCache;
+
+  // Most flights in an itinerary that is not direct, one more than
+  // flightapp.max_stops (default 1). More than one stop needs the flight
+  // cache, flightapp.snapshot_path.
+  private final int maxFlights;
+
+  // Runs the days of day-range searches in parallel, created on first use
+  private static ExecutorService parallelSearches;
+
+  // Settings from dbconn.properties, loaded on first use
+  private static Properties config;
+
+  // Largest response buffer kept between commands, in chars
+  private static final int MAX_RETAINED_RESPONSE = 1 << 16;
+
+  // Days of the month a day-range search may cover
+  private static final int FIRST_DAY = 1;
+  private static final int LAST_DAY = 31;
 
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
@@ -28,10 +89,37 @@ public class Query {
   private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
   private PreparedStatement checkFlightCapacityStatement;
 
+  // Reads of the reservations command
+  private static final String LIVE_RESERVATIONS = "SELECT * FROM Reservations WHERE username = ? "
+      + "AND cancellationStatus = ? ORDER BY reservationID";
+  private static final String FLIGHT_BY_FID = "SELECT * FROM Flights WHERE fid = ?";
+
+  // Days of a user's reservations that are not canceled, for the same-day
+  // rule. Paid reservations may have been moved to the archive.
+  private static final String BOOKED_DAYS = "SELECT day FROM Reservations WHERE username = ? "
+      + "AND cancellationStatus = 'no' UNION ALL SELECT day FROM ReservationsArchive WHERE username = ? "
+      + "AND cancellationStatus = 'no'";
+  private static final String ARCHIVED_DAYS = "SELECT day FROM ReservationsArchive WHERE username = ? "
+      + "AND cancellationStatus = 'no'";
+
   // For check dangling
   private static final String TRANCOUNT_SQL = "SELECT @@TRANCOUNT AS tran_count";
   private PreparedStatement tranCountStatement;
 
+  // Reserves a block of reservation ids, returning the first one
+  private static final String ALLOCATE_RESERVATION_IDS = "UPDATE ReservationIds SET nextId = nextId + ? "
+      + "OUTPUT deleted.nextId AS firstId";
+
+  // Write transactions, run server side by the procedures in createTables.sql.
+  // Each returns one of the status codes below in its last parameter.
+  private static final String BOOK_RESERVATION = "{call BookReservation(?, ?, ?, ?, ?, ?)}";
+  private static final int BOOK_SAME_DAY = 1;
+  private static final String PAY_RESERVATION = "{call PayReservation(?, ?, ?, ?, ?)}";
+  private static final int PAY_PAID = 0;
+  private static final int PAY_INSUFFICIENT_BALANCE = 2;
+  private static final String CANCEL_RESERVATION = "{call CancelReservation(?, ?, ?)}";
+  private static final int CANCEL_CANCELED = 0;
+
   // TODO: YOUR CODE HERE
 
   public Query() throws SQLException, IOException {
@@ -43,6 +131,27 @@ public class Query {
         : openConnectionFromCredential(serverURL, dbName, adminName, password);
 
     prepareStatements();
+    userConn = conn;
+    shardRouter = ShardRouter.shared();
+    replicaRouter = ReplicaRouter.shared();
+    journal = BookingJournal.shared();
+    bookingCoordinator = BookingCoordinator.shared();
+    searchCoalescer = SearchCoalescer.shared();
+    routeReachability = RouteReachability.shared();
+    seatHolds = SeatHolds.shared();
+    if (seatHolds != null && bookingCoordinator != null && journal == null) {
+      // group commit allocates ids and inserts without taking holds
+      throw new IllegalStateException("flightapp.seat_hold_seconds cannot be used with flightapp.group_commit_ms");
+    }
+    reservationCache = ReservationCache.shared();
+    // starts moving finished reservations to the archive when scheduled
+    ReservationArchiver.shared();
+    maxFlights = Integer.parseInt(config().getProperty("flightapp.max_stops", "1").trim()) + 1;
+    if (maxFlights > 2 && config().getProperty("flightapp.snapshot_path") == null) {
+      // without cached flights every multi-stop search would read the whole day
+      throw new IllegalStateException("flightapp.max_stops above 1 needs flightapp.snapshot_path");
+    }
+    readYourWritesMillis = Long.parseLong(config().getProperty("flightapp.read_your_writes_ms", "30000").trim());
   }
 
   /**
@@ -62,6 +171,24 @@ public class Query {
     return openConnectionFromCredential(serverURL, dbName, adminName, password);
   }
 
+  /**
+   * Return the settings in the dbconn.properties file, or no settings if there
+   * is no such file
+   */
+  public static synchronized Properties config() {
+    if (config == null) {
+      config = new Properties();
+      try (FileInputStream in = new FileInputStream("dbconn.properties")) {
+        config.load(in);
+      } catch (FileNotFoundException e) {
+        // connecting by credential, nothing else is configured
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    return config;
+  }
+
   /**
    * Return a connecion by using the provided parameter.
    *
@@ -98,9 +225,151 @@ public class Query {
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
+    for (Connection replicaConn : replicaConnections.values()) {
+      replicaConn.close();
+    }
+    replicaConnections.clear();
+    for (Connection shardConn : shardConnections.values()) {
+      shardConn.close();
+    }
+    shardConnections.clear();
     conn.close();
   }
 
+  /**
+   * Return this session's connection to a shard, opening it on first use
+   */
+  private Connection shardConnection(int shard) throws SQLException {
+    Connection shardConn = shardConnections.get(shard);
+    if (shardConn == null) {
+      try {
+        shardConn = shardRouter.shard(shard).open();
+      } catch (IOException e) {
+        throw new SQLException(e);
+      }
+      shardConnections.put(shard, shardConn);
+    }
+    return shardConn;
+  }
+
+  /**
+   * Return the connection to the database holding the given user's rows
+   */
+  private Connection userConnection(String username) throws SQLException {
+    return shardRouter == null ? conn : shardConnection(shardRouter.shardOf(username));
+  }
+
+  /**
+   * Reserve {@code count} consecutive reservation ids, which are unique across
+   * all shards. Runs in the current transaction when the database is not
+   * sharded.
+   *
+   * @return the first reserved id
+   */
+  private int allocateReservationIds(int count) throws SQLException {
+    return allocateReservationIds(globalConnection(), count);
+  }
+
+  /**
+   * Prepare a statement that stops at the deadline of the running command
+   */
+  private static PreparedStatement prepare(Connection c, String sql) throws SQLException {
+    return Deadline.bind(c.prepareStatement(sql));
+  }
+
+  /**
+   * Prepare a stored procedure call that stops at the deadline of the running
+   * command
+   */
+  private static CallableStatement prepareCall(Connection c, String sql) throws SQLException {
+    return Deadline.bind(c.prepareCall(sql));
+  }
+
+  /**
+   * Return the connection to the database holding rows shared by all users:
+   * reservation ids and seat holds
+   */
+  private Connection globalConnection() throws SQLException {
+    return shardRouter == null ? conn : shardConnection(0);
+  }
+
+  /**
+   * Reserve {@code count} consecutive reservation ids from the ReservationIds
+   * table on {@code sequenceConn}
+   *
+   * @return the first reserved id
+   */
+  static int allocateReservationIds(Connection sequenceConn, int count) throws SQLException {
+    try (PreparedStatement allocate = prepare(sequenceConn, ALLOCATE_RESERVATION_IDS)) {
+      allocate.setInt(1, count);
+      try (ResultSet rs = allocate.executeQuery()) {
+        rs.next();
+        return rs.getInt("firstId");
+      }
+    }
+  }
+
+  /**
+   * Roll back the current transaction after a failure
+   */
+  private static void rollback(Connection c) {
+    try {
+      if (!c.getAutoCommit()) {
+        c.rollback();
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Pick a read replica for a read-only transaction.
+   *
+   * @param readsOwnWrites whether the transaction must see this session's
+   *                       recent writes
+   * @return the replica, or null to run the transaction on the primary
+   */
+  private ReplicaRouter.Replica acquireReplica(boolean readsOwnWrites) {
+    if (replicaRouter == null
+        || (readsOwnWrites && System.currentTimeMillis() - lastWriteMillis < readYourWritesMillis)) {
+      return null;
+    }
+    return replicaRouter.acquire();
+  }
+
+  /**
+   * Return this session's connection to a replica, opening it on first use
+   */
+  private Connection replicaConnection(ReplicaRouter.Replica replica) throws SQLException {
+    Connection replicaConn = replicaConnections.get(replica);
+    if (replicaConn == null) {
+      try {
+        replicaConn = replica.open();
+      } catch (IOException e) {
+        throw new SQLException(e);
+      }
+      replicaConnections.put(replica, replicaConn);
+    }
+    return replicaConn;
+  }
+
+  /**
+   * Take a replica out of rotation after a failed transaction and drop this
+   * session's connection to it
+   */
+  private void replicaFailed(ReplicaRouter.Replica replica, SQLException se) {
+    se.printStackTrace();
+    replicaRouter.markFailed(replica);
+    Connection replicaConn = replicaConnections.remove(replica);
+    try {
+      if (replicaConn != null) {
+        replicaConn.close();
+      }
+    } catch (SQLException e) {
+      // already broken
+    }
+  }
+
   /**
    * Clear the data in any custom tables created.
    * 
@@ -108,12 +377,31 @@ public class Query {
    */
   public void clearTables() {
     try {
-      PreparedStatement ps1 = conn.prepareStatement("DELETE FROM Users");
-      ps1.executeUpdate();
-      ps1.close();
-      PreparedStatement ps2 = conn.prepareStatement("DELETE FROM Reservations");
-      ps2.executeUpdate();
-      ps2.close();
+      int shards = shardRouter == null ? 1 : shardRouter.size();
+      for (int shard = 0; shard < shards; shard++) {
+        Connection shardConn = shardRouter == null ? conn : shardConnection(shard);
+        PreparedStatement ps1 = prepare(shardConn, "DELETE FROM Users");
+        ps1.executeUpdate();
+        ps1.close();
+        PreparedStatement ps2 = prepare(shardConn, "DELETE FROM Reservations");
+        ps2.executeUpdate();
+        ps2.close();
+        PreparedStatement ps6 = prepare(shardConn, "DELETE FROM ReservationsArchive");
+        ps6.executeUpdate();
+        ps6.close();
+        PreparedStatement ps4 = prepare(shardConn, "UPDATE ReservationIds SET nextId = 1");
+        ps4.executeUpdate();
+        ps4.close();
+      }
+      PreparedStatement ps3 = prepare(conn, "DELETE FROM FlightChanges");
+      ps3.executeUpdate();
+      ps3.close();
+      PreparedStatement ps5 = prepare(globalConnection(), "DELETE FROM SeatHolds");
+      ps5.executeUpdate();
+      ps5.close();
+      if (reservationCache != null) {
+        reservationCache.invalidateAll();
+      }
     } catch (SQLException se) {
       se.printStackTrace();
       se.getErrorCode();
@@ -129,6 +417,48 @@ public class Query {
     // TODO: YOUR CODE HERE
   }
 
+  /**
+   * Prepare each canned read on a connection and fetch its result columns, so
+   * the server has parsed and bound them before the first command needs them
+   *
+   * @return the number of statements prepared
+   */
+  static int prepareCanned(Connection c) throws SQLException {
+    List<String> canned = Arrays.asList(CHECK_FLIGHT_CAPACITY, LIVE_RESERVATIONS, FLIGHT_BY_FID,
+        searchDirectSql(true), searchDirectSql(false), searchIndirectSql(true), searchIndirectSql(false));
+    for (String sql : canned) {
+      try (PreparedStatement ps = c.prepareStatement(sql)) {
+        ps.getMetaData();
+      }
+    }
+    return canned.size();
+  }
+
+  /**
+   * Return the logged in user and last search of this session
+   */
+  public Session session() {
+    return new Session(username, searchResult);
+  }
+
+  /**
+   * Continue a session saved by this or another process, replacing the
+   * logged in user and last search
+   */
+  public void restore(Session session) throws SQLException {
+    userConn = session.username() == null ? conn : userConnection(session.username());
+    username = session.username();
+    searchResult = session.searchResult();
+  }
+
+  /**
+   * Number of logins and searches run, which changes whenever
+   * {@link #session} would
+   */
+  public int sessionChanges() {
+    return sessionChanges;
+  }
+
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
@@ -144,8 +474,9 @@ public class Query {
       return "User already logged in\n";
     }
     try {
+      Connection shardConn = userConnection(username);
       String sql = "SELECT count(*) AS count FROM Users WHERE username = ?";
-      PreparedStatement ps = conn.prepareStatement(sql);
+      PreparedStatement ps = prepare(shardConn, sql);
       ps.clearParameters();
       ps.setString(1, username.toLowerCase());
       ResultSet rs = ps.executeQuery();
@@ -154,7 +485,7 @@ public class Query {
       rs.close();
       if (numUser != 0) {
         String sql2 = "SELECT hashVal, saltVal FROM Users WHERE username = ?";
-        PreparedStatement ps2 = conn.prepareStatement(sql2);
+        PreparedStatement ps2 = prepare(shardConn, sql2);
         ps2.clearParameters();
         ps2.setString(1, username.toLowerCase());
         ResultSet rs2 = ps2.executeQuery();
@@ -174,6 +505,8 @@ public class Query {
         }
         if (Arrays.equals(hash, result_hash)) {
           this.username = username;
+          this.userConn = shardConn;
+          sessionChanges++;
           return "Logged in as " + username + "\n";
         }
       }
@@ -215,8 +548,9 @@ public class Query {
       return "Failed to create user\n";
     }
     try {
+      Connection shardConn = userConnection(username);
       String sql = "SELECT count(*) AS count FROM Users WHERE username = ?";
-      PreparedStatement ps = conn.prepareStatement(sql);
+      PreparedStatement ps = prepare(shardConn, sql);
       ps.clearParameters();
       ps.setString(1, username.toLowerCase());
       ResultSet rs = ps.executeQuery();
@@ -225,7 +559,7 @@ public class Query {
       rs.close();
       if (numUser == 0) {
         String insert = "INSERT INTO Users VALUES (?, ?, ?, ?)";
-        PreparedStatement ps2 = conn.prepareStatement(insert);
+        PreparedStatement ps2 = prepare(shardConn, insert);
         ps2.clearParameters();
         ps2.setString(1, username);
         ps2.setBytes(2, hash);
@@ -279,145 +613,367 @@ public class Query {
    */
   public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
       int numberOfItineraries) {
+    return transaction_search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+        SearchOrder.TIME);
+  }
+
+  /**
+   * Implement the search function with a choice of ranking.
+   *
+   * With {@link SearchOrder#PRICE}, direct and two-hop itineraries are ranked
+   * together by total price, then total flight time, then fids, and the
+   * cheapest {@code numberOfItineraries} are returned.
+   *
+   * @see #transaction_search(String, String, boolean, int, int)
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, SearchOrder order) {
+    return respond(out -> transaction_search(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries, order, out));
+  }
+
+  /**
+   * Implement the search function, writing the response into {@code out}
+   *
+   * @see #transaction_search(String, String, boolean, int, int, SearchOrder)
+   */
+  public void transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, SearchOrder order, Appendable out) throws IOException {
     try {
-      StringBuffer sb = new StringBuffer();
-      ArrayList<ArrayList<Flight>> searchResult = new ArrayList<ArrayList<Flight>>();
-      try {
-        ArrayList<Flight> FlightList = new ArrayList<Flight>();
-        String searchDirect = "SELECT TOP (?) F.day_of_month as Day, "
-          + "F.carrier_id as Carrier, F.flight_num as Number, F.fid as fid, "
-          + "F.origin_city as Origin, F.dest_city as Destination, "
-          + "F.actual_time as Duration, F.capacity as Capacity, F.price as Price\n " + "FROM FLIGHTS as F "
-          + "WHERE F.origin_city = ? AND F.dest_city = ? AND F.day_of_month = ? " + "AND F.canceled != 1 "
-          + "ORDER BY F.actual_time, F.fid ASC";
-        String searchIndirect = "SELECT TOP (?) F1.day_of_month as Day1, "
-          + "F1.carrier_id as Carrier1, F1.flight_num as Number1, F1.origin_city as Origin1, "
-          + "F1.dest_city as Destination1, F1.actual_time as Duration1, F1.capacity as Capacity1, "
-          + "F1.price as Price1, F2.day_of_month as Day2, F2.carrier_id as Carrier2, "
-          + "F2.flight_num as Number2, F2.origin_city as Origin2, F2.dest_city as Destination2, "
-          + "F2.actual_time as Duration2, F2.capacity as Capacity2, F2.price as Price2, "
-          + "F1.fid as fid1, F2.fid as fid2, F1.actual_time + F2.actual_time as Total_time "
-          + "FROM FLIGHTS as F1, FLIGHTS as F2 "
-          + "WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? "
-          + "AND F1.day_of_month = ? AND F2.day_of_month = F1.day_of_month AND F1.canceled != 1 "
-          + "AND F2.canceled != 1 " + "ORDER BY Total_time, F1.fid, F2.fid ASC";
-        PreparedStatement directStatement = conn.prepareStatement(searchDirect);
-        PreparedStatement indirectStatement = conn.prepareStatement(searchIndirect);
-        directStatement.clearParameters();
-        directStatement.setInt(1, numberOfItineraries);
-        directStatement.setString(2, originCity);
-        directStatement.setString(3, destinationCity);
-        directStatement.setInt(4, dayOfMonth);
-        ResultSet results = directStatement.executeQuery();
-        while (results.next()) {
-          Flight itinerary = helper(results);
-          FlightList.add(itinerary);
-        }
-        results.close();
-        if (!directFlight) {
-          int size = FlightList.size();
-          int index = 0;
-          searchResult = new ArrayList<ArrayList<Flight>>();
-
-          indirectStatement.clearParameters();
-          indirectStatement.setInt(1, numberOfItineraries);
-          indirectStatement.setString(2, originCity);
-          indirectStatement.setString(3, destinationCity);
-          indirectStatement.setInt(4, dayOfMonth);
-          ResultSet result2 = indirectStatement.executeQuery();
-
-          while (result2.next() && (numberOfItineraries - size) > 0) {
-            Flight Itinerary1 = new Flight();
-            Flight Itinerary2 = new Flight();
-            Itinerary1.capacity = result2.getInt("capacity1");
-            Itinerary2.capacity = result2.getInt("capacity2");
-            Itinerary1.carrierId = result2.getString("Carrier1");
-            Itinerary2.carrierId = result2.getString("Carrier2");
-            Itinerary1.dayOfMonth = result2.getInt("Day1");
-            Itinerary2.dayOfMonth = result2.getInt("Day2");
-            Itinerary1.destCity = result2.getString("Destination1");
-            Itinerary2.destCity = result2.getString("Destination2");
-            Itinerary1.fid = result2.getInt("fid1");
-            Itinerary2.fid = result2.getInt("fid2");
-            Itinerary1.flightNum = result2.getString("Number1");
-            Itinerary2.flightNum = result2.getString("Number2");
-            Itinerary1.originCity = result2.getString("Origin1");
-            Itinerary2.originCity = result2.getString("Origin2");
-            Itinerary1.price = result2.getInt("Price1");
-            Itinerary2.price = result2.getInt("Price2");
-            Itinerary1.time = result2.getInt("Duration1");
-            Itinerary2.time = result2.getInt("Duration2");
-            int totalTime = result2.getInt("Total_time");
-
-            while (totalTime >= FlightList.get(0).time && FlightList.size() != 0) {
-              sb.append("Itinerary " + index + ": 1 flight(s), " + FlightList.get(0).time + " minutes\n");
-              searchResult.add(new ArrayList<Flight>());
-              if (FlightList.get(0).capacity != 0) {
-                searchResult.get(searchResult.size() - 1).add(FlightList.get(0));
-              }
-              index++;
-              sb.append(FlightList.get(0).toString() + "\n");
-              FlightList.remove(0);
-            }
-            sb.append("Itinerary " + index + ": 2 flight(s), " + totalTime + " minutes\n");
-            searchResult.add(new ArrayList<Flight>());
-            if (Itinerary1.capacity != 0 && Itinerary2.capacity != 0) {
-              searchResult.get(searchResult.size() - 1).add(Itinerary1);
-              searchResult.get(searchResult.size() - 1).add(Itinerary2);
-            }
-            index++;
-            sb.append(Itinerary1.toString() + "\n");
-            sb.append(Itinerary2.toString() + "\n");
-            size++;
-          }
-          result2.close();
-          for (int i = 0; i < FlightList.size(); i++) {
-            searchResult.add(new ArrayList<Flight>());
-            if (FlightList.get(i).capacity != 0) {
-              searchResult.get(searchResult.size() - 1).add(FlightList.get(i));
-            }
-            sb.append("Itinerary " + index + ": 1 flight(s), " + FlightList.get(i).time + " minutes\n");
-            sb.append(FlightList.get(i).toString() + "\n");
-            index++;
-          }
-        } else {
-          for (int i = 0; i < FlightList.size(); i++) {
-            searchResult.add(new ArrayList<Flight>());
-            searchResult.get(searchResult.size() - 1).add(FlightList.get(i));
-            sb.append("Itinerary " + i + ": 1 flight(s), " + FlightList.get(i).time + " minutes\n");
-            sb.append(FlightList.get(i).toString() + "\n");
-          }
+      if (prechecked(directFlight)
+          && !routeReachability.mayMatch(originCity, destinationCity, directFlight, dayOfMonth)) {
+        searchResult = new ArrayList<>();
+        sessionChanges++;
+        out.append("No flights match your selection\n");
+        return;
+      }
+      SearchCoalescer.Search search = () -> findItineraries(originCity, destinationCity, directFlight, dayOfMonth,
+          numberOfItineraries, order);
+      List<Itinerary> itineraries = searchCoalescer == null ? search.run()
+          : searchCoalescer.search(SearchCoalescer.key(originCity, destinationCity, directFlight, dayOfMonth,
+              numberOfItineraries, order), search);
+      searchResult = itineraries;
+      sessionChanges++;
+      if (itineraries.isEmpty()) {
+        if (prechecked(directFlight) && numberOfItineraries > 0) {
+          routeReachability.recordFalsePositive();
         }
-        this.searchResult = sb.toString();
-        return sb.toString();
-      } catch (SQLException se) {
-        se.getErrorCode();
-        se.getMessage();
-        se.printStackTrace();
+        out.append("No flights match your selection\n");
+        return;
       }
-      this.searchResult = sb.toString();
-      return sb.toString();
+      render(itineraries, out);
+    } catch (SQLException se) {
+      se.printStackTrace();
+      out.append("Failed to search\n");
     } finally {
       checkDanglingTransaction();
     }
   }
 
-  private Flight helper(ResultSet results) {
-    Flight F = new Flight();
+  /**
+   * Implement the search function over a range of days.
+   *
+   * Each day from {@code firstDay} to {@code lastDay} is searched at the same
+   * time on connections from the shared {@link ConnectionPool}, and the results
+   * are merged into one list of the best {@code numberOfItineraries}
+   * itineraries across all days, which can then be booked by number. Ties
+   * between days are broken by fids, as within a day. Both days must be days
+   * of the month, 1 to 31.
+   *
+   * @return the same as {@link #transaction_search(String, String, boolean, int, int)}
+   */
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int firstDay,
+      int lastDay, int numberOfItineraries, SearchOrder order) {
+    return respond(out -> transaction_search(originCity, destinationCity, directFlight, firstDay, lastDay,
+        numberOfItineraries, order, out));
+  }
+
+  /**
+   * Implement the search function over a range of days, writing the response
+   * into {@code out}
+   *
+   * @see #transaction_search(String, String, boolean, int, int, int, SearchOrder)
+   */
+  public void transaction_search(String originCity, String destinationCity, boolean directFlight, int firstDay,
+      int lastDay, int numberOfItineraries, SearchOrder order, Appendable out) throws IOException {
+    if (firstDay < FIRST_DAY || lastDay > LAST_DAY) {
+      out.append("Failed to search\n");
+      return;
+    }
+    List<Future<List<Itinerary>>> days = new ArrayList<>();
     try {
-      F.capacity = results.getInt("capacity");        // helps find all for indirect flights
-      F.carrierId = results.getString("Carrier");
-      F.dayOfMonth = results.getInt("Day");
-      F.destCity = results.getString("Destination");
-      F.fid = results.getInt("fid");
-      F.flightNum = results.getString("Number");
-      F.originCity = results.getString("Origin");
-      F.price = results.getInt("Price");
-      F.time = results.getInt("Duration");
-    } catch (SQLException e) {
-      e.printStackTrace();
+      Deadline deadline = Deadline.current();
+      for (int day = firstDay; day <= lastDay; day++) {
+        int dayOfMonth = day;
+        Callable<List<Itinerary>> search = () -> searchDay(originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries, order);
+        days.add(parallelSearches().submit(deadline == null ? search : deadline.wrap(search)));
+      }
+      List<Itinerary> itineraries = new ArrayList<>();
+      for (Future<List<Itinerary>> day : days) {
+        itineraries.addAll(Deadline.await(day));
+      }
+      itineraries.sort(order == SearchOrder.PRICE ? Itinerary.BY_PRICE : Itinerary.BY_TIME);
+      searchResult = new ArrayList<>(itineraries.subList(0, Math.min(numberOfItineraries, itineraries.size())));
+      sessionChanges++;
+      if (searchResult.isEmpty()) {
+        out.append("No flights match your selection\n");
+        return;
+      }
+      render(searchResult, out);
+    } catch (ExecutionException e) {
+      e.getCause().printStackTrace();
+      cancel(days);
+      out.append("Failed to search\n");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      cancel(days);
+      out.append("Failed to search\n");
+    } catch (TimeoutException e) {
+      cancel(days);
+      out.append("Failed to search\n");
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  // Drops the days of a failed day-range search that have not started. Days
+  // already running are left to finish, as other sessions may be waiting on
+  // them through the coalescer; the deadline cancels their statements.
+  private static void cancel(List<Future<List<Itinerary>>> days) {
+    for (Future<List<Itinerary>> day : days) {
+      day.cancel(false);
+    }
+  }
+
+  // Searches one day of a day range on a pooled connection, so that the days
+  // can run in parallel without sharing this session's connection
+  private List<Itinerary> searchDay(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, SearchOrder order) throws SQLException {
+    if (prechecked(directFlight)
+        && !routeReachability.mayMatch(originCity, destinationCity, directFlight, dayOfMonth)) {
+      return new ArrayList<>();
+    }
+    SearchCoalescer.Search search = () -> {
+      List<Itinerary> cached = cachedSearch(originCity, destinationCity, directFlight, dayOfMonth,
+          numberOfItineraries, order);
+      if (cached != null) {
+        return cached;
+      }
+      ConnectionPool pool = ConnectionPool.shared();
+      Connection pooled = pool.acquire();
+      try {
+        List<Itinerary> found = search(pooled, originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries, order);
+        pool.release(pooled);
+        return found;
+      } catch (SQLException | RuntimeException e) {
+        pool.discard(pooled);
+        throw e;
+      }
+    };
+    List<Itinerary> itineraries = searchCoalescer == null ? search.run()
+        : searchCoalescer.search(SearchCoalescer.key(originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries, order), search);
+    if (itineraries.isEmpty() && prechecked(directFlight) && numberOfItineraries > 0) {
+      routeReachability.recordFalsePositive();
+    }
+    return itineraries;
+  }
+
+  /**
+   * Threads running the days of day-range searches, one per pooled connection
+   */
+  private static synchronized ExecutorService parallelSearches() {
+    if (parallelSearches == null) {
+      parallelSearches = Executors.newFixedThreadPool(ConnectionPool.shared().size(), r -> {
+        Thread thread = new Thread(r, "day-search");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return parallelSearches;
+  }
+
+  // Whether the route pre-check applies to a search; it only knows direct and
+  // one-stop routes
+  private boolean prechecked(boolean directFlight) {
+    return routeReachability != null && (directFlight || maxFlights <= 2);
+  }
+
+  // Answers a multi-stop search or a search by price from the cached flights,
+  // or returns null if the cache is off or cannot answer it
+  private List<Itinerary> cachedSearch(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, SearchOrder order) {
+    FlightCache cache = FlightCache.shared();
+    if (cache == null) {
+      return null;
+    }
+    if (!directFlight && maxFlights > 2) {
+      FlightSnapshot flights = cache.flights();
+      return flights == null ? null
+          : new PathSearch(flights).search(originCity, destinationCity, dayOfMonth, maxFlights,
+              numberOfItineraries, order);
+    }
+    FareIndex fares = order == SearchOrder.PRICE ? cache.fares() : null;
+    return fares == null ? null
+        : fares.cheapest(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+  }
+
+  // Runs a search on the cached flights where they can answer it, otherwise
+  // on a replica if one is available, otherwise on the primary
+  private List<Itinerary> findItineraries(String originCity, String destinationCity, boolean directFlight,
+      int dayOfMonth, int numberOfItineraries, SearchOrder order) throws SQLException {
+    List<Itinerary> cached = cachedSearch(originCity, destinationCity, directFlight, dayOfMonth,
+        numberOfItineraries, order);
+    if (cached != null) {
+      return cached;
+    }
+    ReplicaRouter.Replica replica = acquireReplica(false);
+    if (replica != null) {
+      try {
+        return search(replicaConnection(replica), originCity, destinationCity, directFlight, dayOfMonth,
+            numberOfItineraries, order);
+      } catch (SQLException se) {
+        replicaFailed(replica, se);
+      } finally {
+        replicaRouter.release(replica);
+      }
     }
-    return F;
+    return search(conn, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, order);
+  }
+
+  /**
+   * Render search results, numbering itineraries from 0
+   */
+  private static void render(List<Itinerary> itineraries, Appendable out) throws IOException {
+    for (int i = 0; i < itineraries.size(); i++) {
+      itineraries.get(i).appendTo(out, i);
+    }
+  }
+
+  // Renders a response into the session's reused buffer, for the methods that
+  // return it as a String
+  private String respond(ResponseWriter.Response response) {
+    responseBuffer.setLength(0);
+    ResponseWriter.writeTo(responseBuffer, response);
+    String text = responseBuffer.toString();
+    if (responseBuffer.capacity() > MAX_RETAINED_RESPONSE) {
+      // do not hold on to the space of one unusually large response
+      responseBuffer.setLength(0);
+      responseBuffer.trimToSize();
+    }
+    return text;
+  }
+
+  private List<Itinerary> search(Connection readConn, String originCity, String destinationCity,
+      boolean directFlight, int dayOfMonth, int numberOfItineraries, SearchOrder order) throws SQLException {
+    if (!directFlight && maxFlights > 2) {
+      // more stops than the joins below can express, and the flight cache is
+      // stale or failed to load; search the day's flights as a graph instead
+      return new PathSearch(FlightSnapshot.scanDay(readConn, dayOfMonth)).search(originCity, destinationCity,
+          dayOfMonth, maxFlights, numberOfItineraries, order);
+    }
+    boolean byPrice = order == SearchOrder.PRICE;
+    ArrayList<Flight> FlightList = new ArrayList<Flight>();
+    PreparedStatement directStatement = prepare(readConn, searchDirectSql(byPrice));
+    directStatement.clearParameters();
+    directStatement.setInt(1, numberOfItineraries);
+    directStatement.setString(2, originCity);
+    directStatement.setString(3, destinationCity);
+    directStatement.setInt(4, dayOfMonth);
+    ResultSet results = directStatement.executeQuery();
+    while (results.next()) {
+      Flight itinerary = helper(results);
+      FlightList.add(itinerary);
+    }
+    results.close();
+    directStatement.close();
+    List<Itinerary> itineraries = new ArrayList<>();
+    if (directFlight || !byPrice && FlightList.size() >= numberOfItineraries) {
+      for (Flight flight : FlightList) {
+        itineraries.add(new Itinerary(flight));
+      }
+      return itineraries;
+    }
+
+    // Fill the remaining places with two-hop itineraries
+    List<Itinerary> indirect = new ArrayList<>();
+    PreparedStatement indirectStatement = prepare(readConn, searchIndirectSql(byPrice));
+    indirectStatement.clearParameters();
+    // by price, any of the cheapest connections may beat a direct flight
+    indirectStatement.setInt(1, byPrice ? numberOfItineraries : numberOfItineraries - FlightList.size());
+    indirectStatement.setString(2, originCity);
+    indirectStatement.setString(3, destinationCity);
+    indirectStatement.setInt(4, dayOfMonth);
+    ResultSet result2 = indirectStatement.executeQuery();
+    FlightRegistry flights = FlightRegistry.shared();
+    while (result2.next()) {
+      Flight Itinerary1 = flights.flight(result2.getInt("fid1"), result2.getInt("Day1"),
+          result2.getString("Carrier1"), result2.getString("Number1"), result2.getString("Origin1"),
+          result2.getString("Destination1"), result2.getInt("Duration1"), result2.getInt("capacity1"),
+          result2.getInt("Price1"));
+      Flight Itinerary2 = flights.flight(result2.getInt("fid2"), result2.getInt("Day2"),
+          result2.getString("Carrier2"), result2.getString("Number2"), result2.getString("Origin2"),
+          result2.getString("Destination2"), result2.getInt("Duration2"), result2.getInt("capacity2"),
+          result2.getInt("Price2"));
+      indirect.add(new Itinerary(Itinerary1, Itinerary2));
+    }
+    result2.close();
+    indirectStatement.close();
+
+    if (byPrice) {
+      for (Flight flight : FlightList) {
+        itineraries.add(new Itinerary(flight));
+      }
+      itineraries.addAll(indirect);
+      itineraries.sort(Itinerary.BY_PRICE);
+      return new ArrayList<>(itineraries.subList(0, Math.min(numberOfItineraries, itineraries.size())));
+    }
+
+    // Merge by total time; a direct flight goes first on a tie
+    int next = 0;
+    for (Itinerary twoHop : indirect) {
+      while (next < FlightList.size() && FlightList.get(next).time <= twoHop.totalTime()) {
+        itineraries.add(new Itinerary(FlightList.get(next++)));
+      }
+      itineraries.add(twoHop);
+    }
+    while (next < FlightList.size()) {
+      itineraries.add(new Itinerary(FlightList.get(next++)));
+    }
+    return itineraries;
+  }
+
+  private static String searchDirectSql(boolean byPrice) {
+    return "SELECT TOP (?) F.day_of_month as Day, "
+      + "F.carrier_id as Carrier, F.flight_num as Number, F.fid as fid, "
+      + "F.origin_city as Origin, F.dest_city as Destination, "
+      + "F.actual_time as Duration, F.capacity as Capacity, F.price as Price\n " + "FROM FLIGHTS as F "
+      + "WHERE F.origin_city = ? AND F.dest_city = ? AND F.day_of_month = ? " + "AND F.canceled != 1 "
+      + (byPrice ? "ORDER BY F.price, F.actual_time, F.fid ASC" : "ORDER BY F.actual_time, F.fid ASC");
+  }
+
+  private static String searchIndirectSql(boolean byPrice) {
+    return "SELECT TOP (?) F1.day_of_month as Day1, "
+      + "F1.carrier_id as Carrier1, F1.flight_num as Number1, F1.origin_city as Origin1, "
+      + "F1.dest_city as Destination1, F1.actual_time as Duration1, F1.capacity as Capacity1, "
+      + "F1.price as Price1, F2.day_of_month as Day2, F2.carrier_id as Carrier2, "
+      + "F2.flight_num as Number2, F2.origin_city as Origin2, F2.dest_city as Destination2, "
+      + "F2.actual_time as Duration2, F2.capacity as Capacity2, F2.price as Price2, "
+      + "F1.fid as fid1, F2.fid as fid2, F1.actual_time + F2.actual_time as Total_time "
+      + "FROM FLIGHTS as F1, FLIGHTS as F2 "
+      + "WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? "
+      + "AND F1.day_of_month = ? AND F2.day_of_month = F1.day_of_month AND F1.canceled != 1 "
+      + "AND F2.canceled != 1 "
+      + (byPrice ? "ORDER BY F1.price + F2.price, Total_time, F1.fid, F2.fid ASC"
+          : "ORDER BY Total_time, F1.fid, F2.fid ASC");
+  }
+
+  private static Flight helper(ResultSet results) throws SQLException {
+    return FlightRegistry.shared().flight(results.getInt("fid"), results.getInt("Day"), results.getString("Carrier"),
+        results.getString("Number"), results.getString("Origin"), results.getString("Destination"),
+        results.getInt("Duration"), results.getInt("capacity"), results.getInt("Price"));
   }
 
   /**
@@ -455,122 +1011,349 @@ public class Query {
       return "Cannot book reservations, not logged in\n";
     }
     try {
-      conn.setAutoCommit(true);
-      conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-      PreparedStatement ps = conn.prepareStatement("SELECT count(*) AS count FROM Reservations");
-      PreparedStatement insert = conn.prepareStatement("INSERT INTO Reservations VALUES(?, ?, ?, ?, ?, ?, ?)");
-      PreparedStatement searchDate = conn   // finds if the user has already booked a flight on the same day
-          .prepareStatement("SELECT count(*) AS count FROM Reservations WHERE username = ? AND day = ? AND cancellationStatus = ?");
+      userConn.setAutoCommit(true);
+      userConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
 //      PreparedStatement insertCapacity = conn.prepareStatement("UPDATE Flights SET capacity = ? WHERE fid = ?");
-      searchDate.setString(1, username);        
-      searchDate.setString(3, "no");
-      conn.setAutoCommit(false);
-      ResultSet rs = ps.executeQuery();
-      rs.next();
-      int reservationID = rs.getInt("count");
-      int updated = reservationID + 1;
-      rs.close();
-      insert.setString(2, username);
-      insert.setString(3, "no");
-      insert.setString(4, "no");
-      insert.setInt(5, reservationID + 1);
-      Scanner scr = new Scanner(searchResult);
-      String query = "Itinerary " + itineraryId;
-      String question1 = "2 flight(s)";
-      String question2 = "1 flight(s)";
-      while (scr.hasNextLine()) {
-        String search = scr.nextLine();
-        if (search.contains(query) && search.contains(question2)) {
-          String finished = scr.nextLine();
-          int fidFrom = finished.indexOf("ID: ");
-          String fidMatch = finished.substring(fidFrom + 4, finished.indexOf(" Day:"));
-//            insertCapacity.clearParameters();
-//            insertCapacity.setInt(2, Integer.parseInt(fidMatch));
-          insert.setString(7, fidMatch);
-          int priceFrom = finished.indexOf("Price: ");
-          String priceMatch = finished.substring(priceFrom + 7);
-          int totalCost = Integer.parseInt(priceMatch);
-          insert.setInt(1, totalCost);
-          int pFromCap = finished.indexOf("Capacity: ");
-          String matchCap = finished.substring(pFromCap + 10, finished.indexOf(" Price: "));
-          int i = Integer.parseInt(matchCap);
-          if (i == 0) {
-            return "Booking failed\n"; // finds if capacity is 0
-          }
-          int dayFrom = finished.indexOf("Day: ");
-          String dayMatch = finished.substring(dayFrom + 5, finished.indexOf(" Carrier"));
-          int date = Integer.parseInt(dayMatch);
-          conn.setAutoCommit(true);
-          searchDate.setInt(2, date);
-          ResultSet dateResult = searchDate.executeQuery();
-          dateResult.next();
-          int dateDup = dateResult.getInt("count");
-          if (dateDup > 0) {
-            return "You cannot book two flights in the same day\n";
-          }
-          insert.setInt(6, date);
-          insert.executeUpdate();
-          conn.commit();
-          insert.close();
-          conn.setAutoCommit(true);
-          return "Booked flight(s), reservation ID: " + updated + "\n";
-        } else if (search.contains(query) && search.contains(question1)) {
-          String finished1 = scr.nextLine();
-          String finished2 = scr.nextLine();
-          int fidFrom1 = finished1.indexOf("ID: ");
-          String fidMatch1 = finished1.substring(fidFrom1 + 4, finished1.indexOf(" Day:"));
-          int fidFrom2 = finished2.indexOf("ID: ");
-          String fidMatch2 = finished2.substring(fidFrom2 + 4, finished2.indexOf(" Day:"));
-          String fidnum = fidMatch1 + "-" + fidMatch2;
-          insert.setString(7, fidnum);
-          int priceFrom1 = finished1.indexOf("Price: ");
-          String priceMatch1 = finished1.substring(priceFrom1 + 7);
-          int priceFrom2 = finished2.indexOf("Price: ");
-          String priceMatch2 = finished2.substring(priceFrom2 + 7);
-          int cost1 = Integer.parseInt(priceMatch1);
-          int cost2 = Integer.parseInt(priceMatch2);
-          int totalCost = cost1 + cost2;
-          insert.setInt(1, totalCost);
-
-          int pFromCap1 = finished1.indexOf("Capacity: ");
-          String matchCap1 = finished1.substring(pFromCap1 + 10, finished1.indexOf(" Price: "));
-          int pFromCap2 = finished2.indexOf("Capacity: ");
-          String matchCap2 = finished2.substring(pFromCap2 + 10, finished2.indexOf(" Price: "));
-          int i1 = Integer.parseInt(matchCap1);
-          int i2 = Integer.parseInt(matchCap2);
-          if (i1 < 1 || i2 < 1) {
-            return "Booking failed\n"; // finds if capacity is ok on both flights
-          }
-          int dayFrom = finished1.indexOf("Day: ");
-          String dayMatch = finished1.substring(dayFrom + 5, finished1.indexOf(" Carrier"));
-          int date = Integer.parseInt(dayMatch);
-          conn.setAutoCommit(true);
-          searchDate.setInt(2, date);
-          ResultSet dateResult = searchDate.executeQuery();
-          dateResult.next();
-          int dateDup = dateResult.getInt("count");
-          if (dateDup > 0) {
-            return "You cannot book two flights in the same day\n";
-          }
-          insert.setInt(6, date);
-          insert.executeUpdate();
-          conn.commit();
-          insert.close();
-          conn.setAutoCommit(true);
-          return "Booked flight(s), reservation ID: " + updated + "\n";
+      Itinerary itinerary = findItinerary(itineraryId);
+      if (itinerary == null || !itinerary.seatsAvailable()) {
+        return "Booking failed\n"; // finds if capacity is ok on every flight
+      }
+      return bookItinerary(itinerary);
+    } catch (SQLException se) {
+      se.getErrorCode();
+      se.printStackTrace();
+      rollback(userConn);
+      invalidateReservations();
+      return "Booking failed\n";
+    } catch (IOException | InterruptedException e) {
+      e.printStackTrace();
+      invalidateReservations();
+      return "Booking failed\n";
+    } finally {
+      lastWriteMillis = System.currentTimeMillis();
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Find an itinerary in the last search result
+   *
+   * @return the itinerary, or null if the last search did not return it
+   */
+  private Itinerary findItinerary(int itineraryId) {
+    if (itineraryId < 0 || itineraryId >= searchResult.size()) {
+      return null;
+    }
+    return searchResult.get(itineraryId);
+  }
+
+  /**
+   * Reserve an itinerary for the logged in user, unless they already have a
+   * reservation on that day
+   */
+  private String bookItinerary(Itinerary itinerary) throws SQLException, IOException, InterruptedException {
+    String fids = itinerary.fids();
+    int cost = itinerary.cost();
+    int date = itinerary.day();
+    if (journal != null) {
+      synchronized (journal.userLock(username)) {
+        journal.awaitApplied(username);
+        if (bookedDays().contains(date)) {
+          return "You cannot book two flights in the same day\n";
+        }
+        int reservationId = seatHolds == null ? allocateReservationIds(1)
+            : holdSeats(Collections.singletonList(itinerary));
+        if (reservationId == 0) {
+          return "Booking failed\n";
+        }
+        try {
+          journal.append(BookingJournal.BOOK, reservationId, username, cost, date, fids);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          releaseSeats(reservationId, 1);
+          throw e;
         }
+        cacheBooked(reservationId, itinerary);
+        return "Booked flight(s), reservation ID: " + reservationId + "\n";
       }
-      scr.close();
+    }
+    if (bookingCoordinator != null) {
+      // the coordinator only reports the id in its message
+      String result = bookingCoordinator.book(username, fids, cost, date);
+      invalidateReservations();
+      return result;
+    }
+    if (seatHolds != null) {
+      return bookWithHold(itinerary);
+    }
+    // ids drawn from shard 0 are not given back when the procedure rejects a
+    // booking, so the same-day rule is checked on the user's shard first
+    if (shardRouter != null && bookedDays().contains(date)) {
+      return "You cannot book two flights in the same day\n";
+    }
+    try (CallableStatement book = prepareCall(userConn, BOOK_RESERVATION)) {
+      book.setString(1, username);
+      book.setInt(2, date);
+      book.setString(3, fids);
+      book.setInt(4, cost);
+      // ids come from shard 0 when sharded, otherwise the procedure allocates one
+      if (shardRouter == null) {
+        book.setNull(5, Types.INTEGER);
+      } else {
+        book.setInt(5, allocateReservationIds(1));
+      }
+      book.registerOutParameter(5, Types.INTEGER);
+      book.registerOutParameter(6, Types.INTEGER);
+      book.execute();
+      if (book.getInt(6) == BOOK_SAME_DAY) {
+        return "You cannot book two flights in the same day\n";
+      }
+      cacheBooked(book.getInt(5), itinerary);
+      return "Booked flight(s), reservation ID: " + book.getInt(5) + "\n";
+    }
+  }
+
+  // Holds the seats first in a short transaction of their own, so the
+  // reservation insert does not have to check capacity. The same-day rule is
+  // checked before the hold so a rejected booking does not use an id; the
+  // procedure checks it again.
+  private String bookWithHold(Itinerary itinerary) throws SQLException {
+    if (bookedDays().contains(itinerary.day())) {
+      return "You cannot book two flights in the same day\n";
+    }
+    int reservationId = holdSeats(Collections.singletonList(itinerary));
+    if (reservationId == 0) {
       return "Booking failed\n";
+    }
+    try (CallableStatement book = prepareCall(userConn, BOOK_RESERVATION)) {
+      book.setString(1, username);
+      book.setInt(2, itinerary.day());
+      book.setString(3, itinerary.fids());
+      book.setInt(4, itinerary.cost());
+      book.setInt(5, reservationId);
+      book.registerOutParameter(5, Types.INTEGER);
+      book.registerOutParameter(6, Types.INTEGER);
+      book.execute();
+      if (book.getInt(6) == BOOK_SAME_DAY) {
+        releaseSeats(reservationId, 1);
+        return "You cannot book two flights in the same day\n";
+      }
+      cacheBooked(reservationId, itinerary);
+      return "Booked flight(s), reservation ID: " + reservationId + "\n";
+    } catch (SQLException | RuntimeException e) {
+      releaseSeats(reservationId, 1);
+      throw e;
+    }
+  }
+
+  // Hold seats for the itineraries and reserve their ids, the first of which
+  // is returned; 0 if a flight is full
+  private int holdSeats(List<Itinerary> itineraries) throws SQLException {
+    List<String> fids = new ArrayList<>();
+    for (Itinerary itinerary : itineraries) {
+      fids.add(itinerary.fids());
+    }
+    return seatHolds.hold(globalConnection(), username, fids);
+  }
+
+  // Give back the seats held for reservations that were not made. A release
+  // that fails is left for the sweeper to expire.
+  private void releaseSeats(int firstId, int count) {
+    for (int i = 0; i < count; i++) {
+      try {
+        seatHolds.release(globalConnection(), firstId + i);
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Implements the bookmany function, booking several itineraries from the
+   * current search in one transaction. Either every itinerary is booked or
+   * none is.
+   *
+   * @param itineraryIds IDs of the itineraries to book, from the last search
+   *
+   * @return If the user is not logged in, then return "Cannot book reservations,
+   *         not logged in\n". If an ID is not in the last search, then return
+   *         "No such itinerary [itineraryId]\n". If the user already has a
+   *         reservation on the day of one of the itineraries, or two of them
+   *         are on the same day, then return "You cannot book two flights in
+   *         the same day\n". For all other errors, return "Booking failed\n".
+   *
+   *         Otherwise return "Booked flight(s), reservation ID:
+   *         [reservationId]\n" for each itinerary, in the order given.
+   */
+  public String transaction_bookMany(List<Integer> itineraryIds) {
+    return respond(out -> transaction_bookMany(itineraryIds, out));
+  }
+
+  /**
+   * Implement the bookmany function, writing the response into {@code out}
+   * once the bookings have committed
+   *
+   * @see #transaction_bookMany(List)
+   */
+  public void transaction_bookMany(List<Integer> itineraryIds, Appendable out) throws IOException {
+    Map<Integer, Itinerary> booked = new LinkedHashMap<>();
+    String failure = bookMany(itineraryIds, booked);
+    if (failure != null) {
+      out.append(failure);
+      return;
+    }
+    for (int reservationId : booked.keySet()) {
+      out.append("Booked flight(s), reservation ID: ");
+      ResponseWriter.appendInt(out, reservationId);
+      out.append('\n');
+    }
+  }
+
+  // Books the itineraries in one transaction, adding each to booked by
+  // reservation id. Returns null once committed, or the response if nothing
+  // was booked.
+  private String bookMany(List<Integer> itineraryIds, Map<Integer, Itinerary> booked) {
+    if (username == null) {
+      return "Cannot book reservations, not logged in\n";
+    }
+    if (searchResult == null) {
+      return "No such itinerary " + itineraryIds.get(0) + "\n";
+    }
+    try {
+      List<Itinerary> itineraries = new ArrayList<>();
+      Set<Integer> seen = new HashSet<>();
+      for (int itineraryId : itineraryIds) {
+        Itinerary itinerary = findItinerary(itineraryId);
+        if (itinerary == null) {
+          return "No such itinerary " + itineraryId + "\n";
+        }
+        if (!itinerary.seatsAvailable() || !seen.add(itineraryId)) {
+          return "Booking failed\n";
+        }
+        itineraries.add(itinerary);
+      }
+      if (journal != null) {
+        synchronized (journal.userLock(username)) {
+          journal.awaitApplied(username);
+          String failure = bookAll(itineraries, booked);
+          booked.forEach(this::cacheBooked);
+          return failure;
+        }
+      }
+      userConn.setAutoCommit(false);
+      userConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      String failure = bookAll(itineraries, booked);
+      userConn.commit();
+      userConn.setAutoCommit(true);
+      booked.forEach(this::cacheBooked);
+      return failure;
     } catch (SQLException se) {
-      se.getErrorCode();
       se.printStackTrace();
+      rollback(userConn);
+      invalidateReservations();
+      return "Booking failed\n";
+    } catch (IOException | InterruptedException e) {
+      e.printStackTrace();
+      invalidateReservations();
       return "Booking failed\n";
     } finally {
+      lastWriteMillis = System.currentTimeMillis();
       checkDanglingTransaction();
     }
   }
 
+  // Checks the same-day rule for the whole group, then reserves every id with
+  // one update, holding the seats in the same transaction when seat holds are
+  // on, and inserts every reservation with one batch. Adds each booked
+  // itinerary to booked, by reservation id. Returns null if all are booked,
+  // or the response if none is.
+  private String bookAll(List<Itinerary> itineraries, Map<Integer, Itinerary> booked)
+      throws SQLException, IOException, InterruptedException {
+    Set<Integer> bookedDays = bookedDays();
+    for (Itinerary itinerary : itineraries) {
+      if (!bookedDays.add(itinerary.day())) {
+        return "You cannot book two flights in the same day\n";
+      }
+    }
+    int firstId = seatHolds == null ? allocateReservationIds(itineraries.size()) : holdSeats(itineraries);
+    if (firstId == 0) {
+      return "Booking failed\n";
+    }
+    if (journal != null) {
+      for (int i = 0; i < itineraries.size(); i++) {
+        Itinerary itinerary = itineraries.get(i);
+        try {
+          journal.append(BookingJournal.BOOK, firstId + i, username, itinerary.cost(), itinerary.day(),
+              itinerary.fids());
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          // the reservations already journaled keep their seats
+          if (seatHolds != null) {
+            releaseSeats(firstId + i, itineraries.size() - i);
+          }
+          throw e;
+        }
+        booked.put(firstId + i, itinerary);
+      }
+      return null;
+    }
+    try {
+      PreparedStatement insert = prepare(userConn, "INSERT INTO Reservations VALUES(?, ?, ?, ?, ?, ?, ?)");
+      for (int i = 0; i < itineraries.size(); i++) {
+        Itinerary itinerary = itineraries.get(i);
+        insert.setInt(1, itinerary.cost());
+        insert.setString(2, username);
+        insert.setString(3, "no");
+        insert.setString(4, "no");
+        insert.setInt(5, firstId + i);
+        insert.setInt(6, itinerary.day());
+        insert.setString(7, itinerary.fids());
+        insert.addBatch();
+        booked.put(firstId + i, itinerary);
+      }
+      insert.executeBatch();
+      insert.close();
+    } catch (SQLException | RuntimeException e) {
+      booked.clear();
+      if (seatHolds != null) {
+        releaseSeats(firstId, itineraries.size());
+      }
+      throw e;
+    }
+    return null;
+  }
+
+  // Days the user already has a reservation on, archived ones included. Live
+  // ones are taken from the cache only under the journal's user lock;
+  // otherwise the query's range locks are what keep a second session of the
+  // user from booking the same day.
+  private Set<Integer> bookedDays() throws SQLException {
+    Set<Integer> bookedDays = new HashSet<>();
+    List<ReservationCache.Reservation> cached = journal == null ? null : cachedReservations();
+    if (cached != null) {
+      for (ReservationCache.Reservation reservation : cached) {
+        bookedDays.add(reservation.day);
+      }
+      // the cache only holds reservations still in Reservations
+      readDays(ARCHIVED_DAYS, 1, bookedDays);
+      return bookedDays;
+    }
+    readDays(BOOKED_DAYS, 2, bookedDays);
+    return bookedDays;
+  }
+
+  // Adds the days read by a query whose parameters are all the username
+  private void readDays(String sql, int parameters, Set<Integer> days) throws SQLException {
+    PreparedStatement statement = prepare(userConn, sql);
+    for (int i = 1; i <= parameters; i++) {
+      statement.setString(i, username);
+    }
+    ResultSet rs = statement.executeQuery();
+    while (rs.next()) {
+      days.add(rs.getInt("day"));
+    }
+    rs.close();
+    statement.close();
+  }
+
   /**
    * Implements the pay function.
    *
@@ -593,49 +1376,310 @@ public class Query {
       return "Cannot pay, not logged in\n";
     }
     try {
-      String sql = "SELECT cost FROM Reservations WHERE reservationID = ? AND payStatus = ? AND cancellationStatus = ? AND username = ?";
-      PreparedStatement ps = conn.prepareStatement(sql);
-      ps.setInt(1, reservationId);
-      ps.setString(2, "no");
-      ps.setString(3, "no");
-      ps.setString(4, username);
-      conn.setAutoCommit(false);
-      ResultSet rs = ps.executeQuery();
-      while (rs.next()) {
-        int cost = rs.getInt("cost");
-        String sql2 = "SELECT * FROM Users WHERE username = ?";
-        PreparedStatement ps2 = conn.prepareStatement(sql2);
-        ps2.setString(1, this.username);
-        ResultSet rs2 = ps2.executeQuery();
-        rs2.next();
-        int money = rs2.getInt("balance");
-        if (money >= cost) {
-          int update = money - cost;
-          PreparedStatement moneyUpdate = conn.prepareStatement("UPDATE Users SET balance = ? WHERE username = ?");
-          moneyUpdate.setInt(1, update);
-          moneyUpdate.setString(2, this.username);
-          moneyUpdate.executeUpdate();
-          PreparedStatement p = conn.prepareStatement("UPDATE Reservations SET payStatus = ? WHERE reservationId = ?");
-          p.setString(1, "yes");
-          p.setInt(2, reservationId);
-          p.executeUpdate();
-          conn.setAutoCommit(true);
-          return "Paid reservation: " + reservationId + " remaining balance: " + update + "\n";
-        } else {
-          return "User has only " + money + " in account but itinerary costs " + cost + "\n";
-        }
+      if (journal != null) {
+        return payThroughJournal(reservationId);
       }
-      return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+      if (seatHolds == null || shardRouter != null) {
+        return pay(reservationId);
+      }
+      // the holds are in this database, so they are confirmed in the same
+      // transaction as the payment
+      userConn.setAutoCommit(false);
+      String response = pay(reservationId);
+      userConn.commit();
+      userConn.setAutoCommit(true);
+      return response;
     } catch (SQLException se) {
       se.getErrorCode();
       se.getMessage();
       se.printStackTrace();
+      rollback(userConn);
+      invalidateReservations();
+      return "Failed to pay for reservation " + reservationId + "\n";
+    } catch (IOException | InterruptedException e) {
+      e.printStackTrace();
+      invalidateReservations();
       return "Failed to pay for reservation " + reservationId + "\n";
     } finally {
+      lastWriteMillis = System.currentTimeMillis();
       checkDanglingTransaction();
     }
   }
 
+  // Pays through the stored procedure
+  private String pay(int reservationId) throws SQLException {
+    try (CallableStatement pay = prepareCall(userConn, PAY_RESERVATION)) {
+      pay.setString(1, username);
+      pay.setInt(2, reservationId);
+      pay.registerOutParameter(3, Types.INTEGER);
+      pay.registerOutParameter(4, Types.INTEGER);
+      pay.registerOutParameter(5, Types.INTEGER);
+      pay.execute();
+      int status = pay.getInt(5);
+      if (status == PAY_PAID) {
+        if (seatHolds != null && shardRouter == null) {
+          seatHolds.confirm(userConn, reservationId);
+        } else if (seatHolds != null) {
+          confirmPaidHold(reservationId);
+        }
+        if (reservationCache != null) {
+          reservationCache.paid(username, reservationId);
+        }
+        return "Paid reservation: " + reservationId + " remaining balance: " + pay.getInt(3) + "\n";
+      } else if (status == PAY_INSUFFICIENT_BALANCE) {
+        return "User has only " + pay.getInt(3) + " in account but itinerary costs " + pay.getInt(4) + "\n";
+      }
+    }
+    return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+  }
+
+  // Confirms the hold of a reservation whose payment is already committed or
+  // journaled. The payment stands if this fails, so the sweeper is left to
+  // try again.
+  private void confirmPaidHold(int reservationId) {
+    try {
+      seatHolds.confirm(globalConnection(), reservationId);
+    } catch (SQLException se) {
+      se.printStackTrace();
+      seatHolds.confirmLater(reservationId);
+    }
+  }
+
+  // Validates a payment against the applied state and journals it
+  private String payThroughJournal(int reservationId) throws SQLException, IOException, InterruptedException {
+    synchronized (journal.userLock(username)) {
+      journal.awaitApplied(username);
+      int cost;
+      // the cache may only vouch for a reservation; one it lacks may have been
+      // booked by another process
+      List<ReservationCache.Reservation> cached = cachedReservations();
+      ReservationCache.Reservation reservation = cached == null ? null : find(cached, reservationId);
+      if (reservation != null && !reservation.paid) {
+        cost = reservation.cost;
+      } else {
+        PreparedStatement ps = prepare(userConn, "SELECT cost FROM Reservations "
+            + "WHERE reservationID = ? AND payStatus = ? AND cancellationStatus = ? AND username = ?");
+        ps.setInt(1, reservationId);
+        ps.setString(2, "no");
+        ps.setString(3, "no");
+        ps.setString(4, username);
+        ResultSet rs = ps.executeQuery();
+        if (!rs.next()) {
+          return "Cannot find unpaid reservation " + reservationId + " under user: " + username + "\n";
+        }
+        cost = rs.getInt("cost");
+      }
+      PreparedStatement ps2 = prepare(userConn, "SELECT balance FROM Users WHERE username = ?");
+      ps2.setString(1, username);
+      ResultSet rs2 = ps2.executeQuery();
+      rs2.next();
+      int money = rs2.getInt("balance");
+      if (money < cost) {
+        return "User has only " + money + " in account but itinerary costs " + cost + "\n";
+      }
+      journal.append(BookingJournal.PAY, reservationId, username, cost, 0, null);
+      if (seatHolds != null) {
+        confirmPaidHold(reservationId);
+      }
+      if (reservationCache != null) {
+        reservationCache.paid(username, reservationId);
+      }
+      return "Paid reservation: " + reservationId + " remaining balance: " + (money - cost) + "\n";
+    }
+  }
+
+  /**
+   * Implements the payall function, paying several reservations in one
+   * transaction.
+   *
+   * Unpaid reservations are paid in ascending id order until one costs more
+   * than the remaining balance; that one and every later one are left unpaid.
+   *
+   * @param reservationIds the reservations to pay, or null or empty to pay
+   *                       all of the user's unpaid reservations
+   *
+   * @return If no user has logged in, then return "Cannot pay, not logged in\n"
+   *         If there is nothing to pay, then return "No unpaid reservations
+   *         under user: [username]\n" For all other errors, return "Failed to
+   *         pay for reservations\n"
+   *
+   *         Otherwise return one line per reservation, in ascending id order,
+   *         in the same format {@link #transaction_pay} uses for that outcome.
+   */
+  public String transaction_payAll(List<Integer> reservationIds) {
+    return respond(out -> transaction_payAll(reservationIds, out));
+  }
+
+  /**
+   * Implement the payall function, writing the response into {@code out}
+   * once the payments have committed
+   *
+   * @see #transaction_payAll(List)
+   */
+  public void transaction_payAll(List<Integer> reservationIds, Appendable out) throws IOException {
+    TreeMap<Integer, Payment> payments = new TreeMap<>();
+    String failure = payMany(reservationIds, payments);
+    if (failure != null) {
+      out.append(failure);
+      return;
+    }
+    for (Map.Entry<Integer, Payment> payment : payments.entrySet()) {
+      payment.getValue().appendTo(out, payment.getKey(), username);
+    }
+  }
+
+  /**
+   * What payall did with one reservation
+   */
+  private static final class Payment {
+    static final int PAID = 0;
+    static final int INSUFFICIENT_BALANCE = 1;
+    static final int NOT_FOUND = 2;
+
+    final int outcome;
+    // balance left after paying, or before failing to
+    final int balance;
+    final int cost;
+
+    Payment(int outcome, int balance, int cost) {
+      this.outcome = outcome;
+      this.balance = balance;
+      this.cost = cost;
+    }
+
+    // Write the line transaction_pay would have returned
+    void appendTo(Appendable out, int reservationId, String username) throws IOException {
+      if (outcome == PAID) {
+        out.append("Paid reservation: ");
+        ResponseWriter.appendInt(out, reservationId);
+        out.append(" remaining balance: ");
+        ResponseWriter.appendInt(out, balance);
+      } else if (outcome == INSUFFICIENT_BALANCE) {
+        out.append("User has only ");
+        ResponseWriter.appendInt(out, balance);
+        out.append(" in account but itinerary costs ");
+        ResponseWriter.appendInt(out, cost);
+      } else {
+        out.append("Cannot find unpaid reservation ");
+        ResponseWriter.appendInt(out, reservationId);
+        out.append(" under user: ").append(username);
+      }
+      out.append('\n');
+    }
+  }
+
+  // Pays the reservations in one transaction, adding what happened to each
+  // to payments by id. Returns null once committed, or the response if
+  // nothing was paid.
+  private String payMany(List<Integer> reservationIds, TreeMap<Integer, Payment> payments) {
+    if (username == null) {
+      return "Cannot pay, not logged in\n";
+    }
+    try {
+      List<Integer> paid = new ArrayList<>();
+      if (journal != null) {
+        synchronized (journal.userLock(username)) {
+          journal.awaitApplied(username);
+          String failure = payAll(reservationIds, paid, payments);
+          cachePaid(paid);
+          return failure;
+        }
+      }
+      userConn.setAutoCommit(false);
+      userConn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      String failure = payAll(reservationIds, paid, payments);
+      userConn.commit();
+      userConn.setAutoCommit(true);
+      cachePaid(paid);
+      return failure;
+    } catch (SQLException se) {
+      se.printStackTrace();
+      rollback(userConn);
+      invalidateReservations();
+      return "Failed to pay for reservations\n";
+    } catch (IOException | InterruptedException e) {
+      e.printStackTrace();
+      invalidateReservations();
+      return "Failed to pay for reservations\n";
+    } finally {
+      lastWriteMillis = System.currentTimeMillis();
+      checkDanglingTransaction();
+    }
+  }
+
+  // Reads the balance once, then charges and marks paid with one update each.
+  // Adds the id of each reservation paid to paid, and the outcome for each
+  // reservation to outcomes. Returns null, or the response if there was
+  // nothing to pay.
+  private String payAll(List<Integer> reservationIds, List<Integer> paid, TreeMap<Integer, Payment> outcomes)
+      throws SQLException, IOException, InterruptedException {
+    Set<Integer> wanted = reservationIds == null || reservationIds.isEmpty() ? null : new HashSet<>(reservationIds);
+    PreparedStatement unpaid = prepare(userConn, "SELECT reservationID, cost FROM Reservations WITH (UPDLOCK) "
+        + "WHERE username = ? AND payStatus = 'no' AND cancellationStatus = 'no' ORDER BY reservationID");
+    unpaid.setString(1, username);
+    PreparedStatement balanceStatement = prepare(userConn,
+        "SELECT balance FROM Users WITH (UPDLOCK) WHERE username = ?");
+    balanceStatement.setString(1, username);
+    ResultSet balanceResult = balanceStatement.executeQuery();
+    balanceResult.next();
+    int balance = balanceResult.getInt("balance");
+    balanceResult.close();
+    int total = 0;
+    boolean outOfMoney = false;
+    ResultSet rs = unpaid.executeQuery();
+    while (rs.next()) {
+      int reservationId = rs.getInt("reservationID");
+      int cost = rs.getInt("cost");
+      if (wanted != null && !wanted.contains(reservationId)) {
+        continue;
+      }
+      if (outOfMoney || cost > balance - total) {
+        outOfMoney = true;
+        outcomes.put(reservationId, new Payment(Payment.INSUFFICIENT_BALANCE, balance - total, cost));
+      } else {
+        total += cost;
+        paid.add(reservationId);
+        outcomes.put(reservationId, new Payment(Payment.PAID, balance - total, cost));
+        if (journal != null) {
+          journal.append(BookingJournal.PAY, reservationId, username, cost, 0, null);
+          if (seatHolds != null) {
+            confirmPaidHold(reservationId);
+          }
+        }
+      }
+    }
+    rs.close();
+    if (wanted != null) {
+      for (int reservationId : wanted) {
+        outcomes.putIfAbsent(reservationId, new Payment(Payment.NOT_FOUND, 0, 0));
+      }
+    }
+    if (outcomes.isEmpty()) {
+      return "No unpaid reservations under user: " + username + "\n";
+    }
+    if (journal == null && !paid.isEmpty()) {
+      PreparedStatement charge = prepare(userConn, "UPDATE Users SET balance = balance - ? WHERE username = ?");
+      charge.setInt(1, total);
+      charge.setString(2, username);
+      charge.executeUpdate();
+      charge.close();
+      StringBuilder markPaid = new StringBuilder("UPDATE Reservations SET payStatus = 'yes' WHERE reservationID IN (");
+      for (int i = 0; i < paid.size(); i++) {
+        markPaid.append(i == 0 ? "?" : ", ?");
+      }
+      PreparedStatement mark = prepare(userConn, markPaid.append(")").toString());
+      for (int i = 0; i < paid.size(); i++) {
+        mark.setInt(i + 1, paid.get(i));
+      }
+      mark.executeUpdate();
+      mark.close();
+      for (int i = 0; seatHolds != null && i < paid.size(); i++) {
+        seatHolds.confirm(globalConnection(), paid.get(i));
+      }
+    }
+    return null;
+  }
+
   /**
    * Implements the reservations function.
    *
@@ -657,93 +1701,179 @@ public class Query {
    * @see Flight#toString()
    */
   public String transaction_reservations() {
+    return transaction_reservations(false);
+  }
+
+  /**
+   * Implements the reservations operation, also listing paid reservations that
+   * {@link ReservationArchiver} moved to the archive when
+   * {@code includeArchived} is set.
+   *
+   * @see #transaction_reservations()
+   */
+  public String transaction_reservations(boolean includeArchived) {
+    return respond(out -> transaction_reservations(includeArchived, out));
+  }
+
+  /**
+   * Implement the reservations operation, writing the response into
+   * {@code out}
+   *
+   * @see #transaction_reservations(boolean)
+   */
+  public void transaction_reservations(boolean includeArchived, Appendable out) throws IOException {
     if (this.username == null) {
-      return "Cannot view reservations, not logged in\n";
+      out.append("Cannot view reservations, not logged in\n");
+      return;
     }
     try {
-      StringBuffer sb = new StringBuffer();
-      PreparedStatement ps = conn
-          .prepareStatement("SELECT * FROM Reservations WHERE username = ? AND cancellationStatus = ?");
-      PreparedStatement flights = conn.prepareStatement("SELECT * FROM Flights WHERE fid = ?");
-      ps.setString(1, username);
-      ps.setString(2, "no");
-      ResultSet rs = ps.executeQuery();
-      while (rs.next()) {
-        String paid = rs.getString("payStatus");
-        String fid = rs.getString("fid");
-        if (paid.contains("no")) {
-          paid = "false";
-        } else {
-          paid = "true";
-        }
-        int rid = rs.getInt("reservationId");
-        sb.append("Reservation " + rid + " paid: " + paid + ":\n");
-        if (fid.contains("-")) {
-          String fid1 = fid.substring(0, fid.indexOf("-"));
-          String fid2 = fid.substring(fid.indexOf("-") + 1);
-          flights.clearParameters();
-          flights.setInt(1, Integer.parseInt(fid1));
-          ResultSet flightList1 = flights.executeQuery();
-          flightList1.next();
-          int day1 = flightList1.getInt("day_of_month");
-          String carrier1 = flightList1.getString("carrier_id");
-          int flightNum1 = flightList1.getInt("flight_num");
-          String origin1 = flightList1.getString("origin_city");
-          String destination1 = flightList1.getString("dest_city");
-          int time1 = flightList1.getInt("actual_time");
-          int cap1 = flightList1.getInt("capacity");
-          int price1 = flightList1.getInt("price");
-          sb.append("ID: " + fid1 + " Day: " + day1 + " Carrier: " + carrier1 + " Number: " + flightNum1 + " Origin: "
-              + origin1 + " Dest: " + destination1 + " Duration: " + time1 + " Capacity: " + cap1 + " Price: " + price1
-              + "\n");
-          flights.clearParameters();
-          flights.setInt(1, Integer.parseInt(fid2));
-          ResultSet flightList2 = flights.executeQuery();
-          flightList2.next();
-          int day2 = flightList2.getInt("day_of_month");
-          String carrier2 = flightList2.getString("carrier_id");
-          int flightNum2 = flightList2.getInt("flight_num");
-          String origin2 = flightList2.getString("origin_city");
-          String destination2 = flightList2.getString("dest_city");
-          int time2 = flightList2.getInt("actual_time");
-          int cap2 = flightList2.getInt("capacity");
-          int price2 = flightList2.getInt("price");
-          sb.append("ID: " + fid2 + " Day: " + day2 + " Carrier: " + carrier2 + " Number: " + flightNum2 + " Origin: "
-              + origin2 + " Dest: " + destination2 + " Duration: " + time2 + " Capacity: " + cap2 + " Price: " + price2
-              + "\n");
-        } else {
-          flights.clearParameters();
-          flights.setInt(1, Integer.parseInt(fid));
-          ResultSet flightList = flights.executeQuery();
-          flightList.next();
-          int day = flightList.getInt("day_of_month");
-          String carrier = flightList.getString("carrier_id");
-          int flightNum = flightList.getInt("flight_num");
-          String origin = flightList.getString("origin_city");
-          String destination = flightList.getString("dest_city");
-          int time = flightList.getInt("actual_time");
-          int cap = flightList.getInt("capacity");
-          int price = flightList.getInt("price");
-          sb.append(
-              "ID: " + fid + " Day: " + day + " Carrier: " + carrier + " Number: " + flightNum + " Origin: " + origin
-                  + " Dest: " + destination + " Duration: " + time + " Capacity: " + cap + " Price: " + price + "\n");
-        }
+      if (reservationCache != null && !includeArchived) {
+        renderReservations(liveReservations(), out);
+        return;
       }
-      if (sb.length() == 0) {
-        return "Failed to retrieve reservations\n";
-      } else {
-        return sb.toString();
+      if (journal != null) {
+        journal.awaitApplied(username);
+      }
+      ReplicaRouter.Replica replica = acquireReplica(true);
+      if (replica != null) {
+        try {
+          renderReservations(loadReservations(replicaConnection(replica), includeArchived), out);
+          return;
+        } catch (SQLException se) {
+          replicaFailed(replica, se);
+        } finally {
+          replicaRouter.release(replica);
+        }
       }
+      renderReservations(loadReservations(conn, includeArchived), out);
     } catch (SQLException se) {
       se.getErrorCode();
       se.getMessage();
       se.printStackTrace();
-      return "Failed to retrieve reservations\n";
+      out.append("Failed to retrieve reservations\n");
+    } catch (InterruptedException e) {
+      e.printStackTrace();
+      out.append("Failed to retrieve reservations\n");
     } finally {
       checkDanglingTransaction();
     }
   }
 
+  // The user's live reservations from the cache, loading them from the
+  // primary into it on a miss
+  private List<ReservationCache.Reservation> liveReservations() throws SQLException, InterruptedException {
+    List<ReservationCache.Reservation> cached = reservationCache.get(username);
+    if (cached != null) {
+      return cached;
+    }
+    if (journal != null) {
+      // no write of the user can be accepted but not yet applied while loading
+      synchronized (journal.userLock(username)) {
+        journal.awaitApplied(username);
+        long generation = reservationCache.generation(username);
+        List<ReservationCache.Reservation> loaded = loadReservations(conn, false);
+        reservationCache.put(username, generation, loaded);
+        return loaded;
+      }
+    }
+    long generation = reservationCache.generation(username);
+    List<ReservationCache.Reservation> loaded = loadReservations(conn, false);
+    reservationCache.put(username, generation, loaded);
+    return loaded;
+  }
+
+  private List<ReservationCache.Reservation> loadReservations(Connection readConn, boolean includeArchived)
+      throws SQLException {
+    List<ReservationCache.Reservation> reservations = new ArrayList<>();
+    // Flights are on every shard, but the user's reservations only on theirs
+    Connection reservationsConn = shardRouter == null ? readConn : userConn;
+    PreparedStatement ps = prepare(reservationsConn, includeArchived
+        ? "SELECT * FROM Reservations WHERE username = ? AND cancellationStatus = ? UNION ALL "
+            + "SELECT * FROM ReservationsArchive WHERE username = ? AND cancellationStatus = ? ORDER BY reservationID"
+        : LIVE_RESERVATIONS);
+    PreparedStatement flights = prepare(readConn, FLIGHT_BY_FID);
+    ps.setString(1, username);
+    ps.setString(2, "no");
+    if (includeArchived) {
+      ps.setString(3, username);
+      ps.setString(4, "no");
+    }
+    ResultSet rs = ps.executeQuery();
+    while (rs.next()) {
+      String fid = rs.getString("fid");
+      List<Flight> legs = new ArrayList<>();
+      for (String legFid : fid.split("-")) {
+        flights.clearParameters();
+        flights.setInt(1, Integer.parseInt(legFid));
+        ResultSet flightList = flights.executeQuery();
+        flightList.next();
+        legs.add(FlightRegistry.shared().flight(flightList.getInt("fid"), flightList.getInt("day_of_month"),
+            flightList.getString("carrier_id"), String.valueOf(flightList.getInt("flight_num")),
+            flightList.getString("origin_city"), flightList.getString("dest_city"), flightList.getInt("actual_time"),
+            flightList.getInt("capacity"), flightList.getInt("price")));
+        flightList.close();
+      }
+      reservations.add(new ReservationCache.Reservation(rs.getInt("reservationId"), rs.getInt("cost"),
+          rs.getInt("day"), !rs.getString("payStatus").contains("no"), fid, legs));
+    }
+    rs.close();
+    ps.close();
+    flights.close();
+    return reservations;
+  }
+
+  private static void renderReservations(List<ReservationCache.Reservation> reservations, Appendable out)
+      throws IOException {
+    if (reservations.isEmpty()) {
+      out.append("Failed to retrieve reservations\n");
+      return;
+    }
+    for (ReservationCache.Reservation reservation : reservations) {
+      out.append("Reservation ");
+      ResponseWriter.appendInt(out, reservation.reservationId);
+      out.append(reservation.paid ? " paid: true:\n" : " paid: false:\n");
+      for (Flight flight : reservation.flights) {
+        flight.appendTo(out);
+        out.append('\n');
+      }
+    }
+  }
+
+  // The user's live reservations if cached, otherwise null
+  private List<ReservationCache.Reservation> cachedReservations() {
+    return reservationCache == null ? null : reservationCache.get(username);
+  }
+
+  private static ReservationCache.Reservation find(List<ReservationCache.Reservation> reservations,
+      int reservationId) {
+    for (ReservationCache.Reservation reservation : reservations) {
+      if (reservation.reservationId == reservationId) {
+        return reservation;
+      }
+    }
+    return null;
+  }
+
+  private void cacheBooked(int reservationId, Itinerary itinerary) {
+    if (reservationCache != null) {
+      reservationCache.booked(username, new ReservationCache.Reservation(reservationId, itinerary.cost(),
+          itinerary.day(), false, itinerary.fids(), itinerary.flights()));
+    }
+  }
+
+  private void cachePaid(List<Integer> reservationIds) {
+    for (int i = 0; reservationCache != null && i < reservationIds.size(); i++) {
+      reservationCache.paid(username, reservationIds.get(i));
+    }
+  }
+
+  // Forget the user's cached reservations after a write that failed part way
+  private void invalidateReservations() {
+    if (reservationCache != null) {
+      reservationCache.invalidate(username);
+    }
+  }
+
   /**
    * Implements the cancel operation.
    *
@@ -763,34 +1893,71 @@ public class Query {
       return "Cannot cancel reservations, not logged in\n";
     }
     try {
-      PreparedStatement ps = conn.prepareStatement(
-          "SELECT * FROM Reservations WHERE reservationID = ? AND username = ? AND cancellationStatus = ?");
-      PreparedStatement delete = conn
-          .prepareStatement("UPDATE Reservations SET cancellationStatus = ? WHERE reservationID = ?");
-      ps.setInt(1, reservationId);
-      ps.setString(2, username);
-      ps.setString(3, "no");
-      delete.setString(1, "yes");
-      delete.setInt(2, reservationId);
-      conn.setAutoCommit(false);
-      ResultSet rs = ps.executeQuery();
-      if (rs.next()) {
-        delete.executeUpdate();
-        conn.setAutoCommit(true);
-        delete.close();
-        return "Canceled reservation " + reservationId + "\n";
+      if (journal != null) {
+        return cancelThroughJournal(reservationId);
+      }
+      try (CallableStatement cancel = prepareCall(userConn, CANCEL_RESERVATION)) {
+        cancel.setString(1, username);
+        cancel.setInt(2, reservationId);
+        cancel.registerOutParameter(3, Types.INTEGER);
+        cancel.execute();
+        if (cancel.getInt(3) == CANCEL_CANCELED) {
+          if (seatHolds != null) {
+            seatHolds.release(globalConnection(), reservationId);
+          }
+          if (reservationCache != null) {
+            reservationCache.canceled(username, reservationId);
+          }
+          return "Canceled reservation " + reservationId + "\n";
+        }
       }
       return "Failed to cancel reservation " + reservationId + "\n";
     } catch (SQLException se) {
       se.getErrorCode();
       se.getMessage();
       se.printStackTrace();
+      rollback(userConn);
+      invalidateReservations();
+      return "Failed to cancel reservation " + reservationId + "\n";
+    } catch (IOException | InterruptedException e) {
+      e.printStackTrace();
+      invalidateReservations();
       return "Failed to cancel reservation " + reservationId + "\n";
     } finally {
+      lastWriteMillis = System.currentTimeMillis();
       checkDanglingTransaction();
     }
   }
 
+  // Validates a cancellation against the applied state and journals it
+  private String cancelThroughJournal(int reservationId) throws SQLException, IOException, InterruptedException {
+    synchronized (journal.userLock(username)) {
+      journal.awaitApplied(username);
+      // the cache may only vouch for a reservation; one it lacks may have been
+      // booked by another process
+      List<ReservationCache.Reservation> cached = cachedReservations();
+      if (cached == null || find(cached, reservationId) == null) {
+        PreparedStatement ps = prepare(userConn,
+            "SELECT * FROM Reservations WHERE reservationID = ? AND username = ? AND cancellationStatus = ?");
+        ps.setInt(1, reservationId);
+        ps.setString(2, username);
+        ps.setString(3, "no");
+        ResultSet rs = ps.executeQuery();
+        if (!rs.next()) {
+          return "Failed to cancel reservation " + reservationId + "\n";
+        }
+      }
+      journal.append(BookingJournal.CANCEL, reservationId, username, 0, 0, null);
+      if (seatHolds != null) {
+        seatHolds.release(globalConnection(), reservationId);
+      }
+      if (reservationCache != null) {
+        reservationCache.canceled(username, reservationId);
+      }
+      return "Canceled reservation " + reservationId + "\n";
+    }
+  }
+
   /**
    * Example utility function that uses prepared statements
    */
@@ -811,43 +1978,41 @@ public class Query {
    */
   private void checkDanglingTransaction() {
     try {
-      try (ResultSet rs = tranCountStatement.executeQuery()) {
-        rs.next();
-        int count = rs.getInt("tran_count");
-        if (count > 0) {
-          throw new IllegalStateException(
-              "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+      checkDanglingTransaction(tranCountStatement, conn);
+      if (userConn != conn) {
+        try (PreparedStatement userTranCount = userConn.prepareStatement(TRANCOUNT_SQL)) {
+          checkDanglingTransaction(userTranCount, userConn);
         }
-      } finally {
-        conn.setAutoCommit(true);
       }
     } catch (SQLException e) {
       throw new IllegalStateException("Database error", e);
     }
   }
 
+  private static void checkDanglingTransaction(PreparedStatement tranCount, Connection c) throws SQLException {
+    try (ResultSet rs = tranCount.executeQuery()) {
+      rs.next();
+      int count = rs.getInt("tran_count");
+      if (count > 0) {
+        throw new IllegalStateException(
+            "Transaction not fully commit/rollback. Number of transaction in process: " + count);
+      }
+    } finally {
+      c.setAutoCommit(true);
+    }
+  }
+
   private static boolean isDeadLock(SQLException ex) {
     return ex.getErrorCode() == 1205;
   }
 
   /**
-   * A class to store flight information.
+   * How search ranks itineraries
    */
-  class Flight {
-    public int fid;
-    public int dayOfMonth;
-    public String carrierId;
-    public String flightNum;
-    public String originCity;
-    public String destCity;
-    public int time;
-    public int capacity;
-    public int price;
-
-    @Override
-    public String toString() {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId + " Number: " + flightNum + " Origin: "
-          + originCity + " Dest: " + destCity + " Duration: " + time + " Capacity: " + capacity + " Price: " + price;
-    }
+  public enum SearchOrder {
+    // shortest total flight time first
+    TIME,
+    // cheapest total price first
+    PRICE
   }
 }
@@ -0,0 +1,203 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Chooses a read replica for read-only transactions.
+ *
+ * Configured in dbconn.properties, using the same username and password as
+ * the primary:
+ *
+ * <pre>
+ * flightapp.replicas = server1/database1, server2/database2
+ * flightapp.replica_policy = round_robin | least_loaded (default)
+ * flightapp.replica_health_check_ms = 5000
+ * </pre>
+ *
+ * A replica that fails a query or a periodic health check is skipped until a
+ * later health check succeeds. Locally, a second database holding a copy of
+ * the tables can stand in for a replica.
+ */
+public class ReplicaRouter implements Closeable {
+  private static final int HEALTH_CHECK_TIMEOUT_SECONDS = 2;
+
+  private static ReplicaRouter shared;
+  private static boolean sharedLoaded;
+
+  public enum Policy {
+    ROUND_ROBIN, LEAST_LOADED
+  }
+
+  /**
+   * A read replica and the number of transactions currently running on it
+   */
+  public static class Replica {
+    private final String name;
+    private final ConnectionFactory connections;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile boolean healthy = true;
+    private Connection probe;
+
+    public Replica(String name, ConnectionFactory connections) {
+      this.name = name;
+      this.connections = connections;
+    }
+
+    /**
+     * Open a new connection to this replica
+     */
+    public Connection open() throws SQLException, IOException {
+      Connection conn = connections.open();
+      conn.setReadOnly(true);
+      return conn;
+    }
+
+    public boolean isHealthy() {
+      return healthy;
+    }
+
+    public int inFlight() {
+      return inFlight.get();
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  private final List<Replica> replicas;
+  private final Policy policy;
+  private final AtomicInteger next = new AtomicInteger();
+  private final ScheduledExecutorService healthChecker;
+
+  public ReplicaRouter(List<Replica> replicas, Policy policy, long healthCheckMillis) {
+    this.replicas = new ArrayList<>(replicas);
+    this.policy = policy;
+    this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r, "replica-health-check");
+      thread.setDaemon(true);
+      return thread;
+    });
+    healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckMillis, healthCheckMillis,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Return the router configured in dbconn.properties, or null if no replicas
+   * are configured
+   */
+  public static synchronized ReplicaRouter shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String replicaList = config.getProperty("flightapp.replicas");
+      if (replicaList != null && !replicaList.trim().isEmpty()) {
+        String adminName = config.getProperty("flightapp.username");
+        String password = config.getProperty("flightapp.password");
+        List<Replica> replicas = new ArrayList<>();
+        for (String replica : replicaList.split(",")) {
+          String[] serverAndDb = replica.trim().split("/");
+          replicas.add(new Replica(replica.trim(),
+              ConnectionFactory.fromCredential(serverAndDb[0], serverAndDb[1], adminName, password)));
+        }
+        Policy policy = Policy.valueOf(config.getProperty("flightapp.replica_policy", "least_loaded").trim()
+            .toUpperCase());
+        long healthCheckMillis = Long.parseLong(config.getProperty("flightapp.replica_health_check_ms", "5000").trim());
+        shared = new ReplicaRouter(replicas, policy, healthCheckMillis);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Pick a healthy replica and count a transaction against it. Every replica
+   * returned must be handed back to {@link #release}.
+   *
+   * @return the replica, or null if no replica is healthy
+   */
+  public Replica acquire() {
+    int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+    Replica chosen = null;
+    for (int i = 0; i < replicas.size(); i++) {
+      Replica replica = replicas.get((start + i) % replicas.size());
+      if (!replica.healthy) {
+        continue;
+      }
+      if (policy == Policy.ROUND_ROBIN) {
+        chosen = replica;
+        break;
+      }
+      if (chosen == null || replica.inFlight() < chosen.inFlight()) {
+        chosen = replica;
+      }
+    }
+    if (chosen != null) {
+      chosen.inFlight.incrementAndGet();
+    }
+    return chosen;
+  }
+
+  /**
+   * Finish a transaction started on {@link #acquire}
+   */
+  public void release(Replica replica) {
+    if (replica != null) {
+      replica.inFlight.decrementAndGet();
+    }
+  }
+
+  /**
+   * Take a replica out of rotation until its next successful health check
+   */
+  public void markFailed(Replica replica) {
+    replica.healthy = false;
+  }
+
+  public List<Replica> replicas() {
+    return Collections.unmodifiableList(replicas);
+  }
+
+  private void checkHealth() {
+    for (Replica replica : replicas) {
+      synchronized (replica) {
+        try {
+          if (replica.probe == null) {
+            replica.probe = replica.open();
+          }
+          replica.healthy = replica.probe.isValid(HEALTH_CHECK_TIMEOUT_SECONDS);
+        } catch (SQLException | IOException e) {
+          replica.healthy = false;
+        }
+        if (!replica.healthy) {
+          closeProbe(replica);
+        }
+      }
+    }
+  }
+
+  private static void closeProbe(Replica replica) {
+    if (replica.probe != null) {
+      try {
+        replica.probe.close();
+      } catch (SQLException e) {
+        // already broken
+      }
+      replica.probe = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    healthChecker.shutdownNow();
+    for (Replica replica : replicas) {
+      synchronized (replica) {
+        closeProbe(replica);
+      }
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Moves reservations that can no longer change out of Reservations and into
+ * ReservationsArchive, so the per-user scans of the hot table only see live
+ * rows.
+ *
+ * Canceled reservations are always archived. Paid reservations are archived
+ * too once their day is before {@code flightapp.archive_completed_before_day},
+ * when that is set; they still count for the one-booking-a-day rule, which
+ * checks both tables. Rows move in batches of {@code flightapp.archive_batch}
+ * (default 1000), each a single DELETE ... OUTPUT INTO statement so a row is
+ * never in both tables or in neither, with a pause of
+ * {@code flightapp.archive_pause_ms} (default 100) between batches to leave
+ * room for bookings. Reservation ids are never reused, so they stay unique
+ * across both tables.
+ *
+ * Setting {@code flightapp.archive_interval_seconds} runs the archiver in the
+ * background on that interval; it can also be run once by hand.
+ *
+ * Usage: ReservationArchiver
+ */
+public class ReservationArchiver implements Closeable {
+  private static final String COLUMNS = "cost, username, payStatus, cancellationStatus, reservationID, day, fid";
+  private static final String ARCHIVE_BATCH = "DELETE TOP (?) FROM Reservations OUTPUT " + prefixed("deleted.")
+      + " INTO ReservationsArchive (" + COLUMNS + ") "
+      + "WHERE cancellationStatus = 'yes' OR (payStatus = 'yes' AND day < ?)";
+  private static final String COUNT_HOT = "SELECT COUNT_BIG(*) AS hot FROM Reservations";
+  private static final int HISTORY = 1024;
+
+  private static ReservationArchiver shared;
+  private static boolean sharedLoaded;
+
+  /**
+   * The size of the hot table at one point in time
+   */
+  public static class Sample {
+    public final long timeMillis;
+    public final long hotRows;
+
+    Sample(long timeMillis, long hotRows) {
+      this.timeMillis = timeMillis;
+      this.hotRows = hotRows;
+    }
+  }
+
+  private final List<ConnectionFactory> databases;
+  private final int batchSize;
+  private final long pauseMillis;
+  private final int completedBeforeDay;
+  private Thread worker;
+  private volatile boolean closed;
+
+  // Metrics
+  private final AtomicLong archived = new AtomicLong();
+  private final AtomicLong batches = new AtomicLong();
+  private final ArrayDeque<Sample> history = new ArrayDeque<>();
+
+  /**
+   * @param databases          every database holding Reservations, one per
+   *                           shard
+   * @param completedBeforeDay paid reservations on earlier days are archived;
+   *                           0 to archive only canceled ones
+   */
+  public ReservationArchiver(List<ConnectionFactory> databases, int batchSize, long pauseMillis,
+      int completedBeforeDay) {
+    this.databases = new ArrayList<>(databases);
+    this.batchSize = batchSize;
+    this.pauseMillis = pauseMillis;
+    this.completedBeforeDay = completedBeforeDay;
+  }
+
+  /**
+   * Return the archiver configured in dbconn.properties, running in the
+   * background, or null if it is not scheduled
+   */
+  public static synchronized ReservationArchiver shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      String interval = Query.config().getProperty("flightapp.archive_interval_seconds");
+      if (interval != null) {
+        shared = fromConfig();
+        shared.start(Long.parseLong(interval.trim()) * 1000);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Archive everything that can be archived now
+   */
+  public static void main(String[] args) throws Exception {
+    ReservationArchiver archiver = fromConfig();
+    long start = System.nanoTime();
+    long moved = archiver.runOnce();
+    System.out.println(String.format("Archived %d reservations in %.2f s, %d left in Reservations", moved,
+        (System.nanoTime() - start) / 1e9, archiver.hotRows()));
+  }
+
+  private static ReservationArchiver fromConfig() {
+    Properties config = Query.config();
+    ShardRouter shardRouter = ShardRouter.shared();
+    List<ConnectionFactory> databases = new ArrayList<>();
+    if (shardRouter == null) {
+      databases.add(ConnectionFactory.fromDbConn());
+    } else {
+      for (int shard = 0; shard < shardRouter.size(); shard++) {
+        databases.add(shardRouter.shard(shard));
+      }
+    }
+    return new ReservationArchiver(databases,
+        Integer.parseInt(config.getProperty("flightapp.archive_batch", "1000").trim()),
+        Long.parseLong(config.getProperty("flightapp.archive_pause_ms", "100").trim()),
+        Integer.parseInt(config.getProperty("flightapp.archive_completed_before_day", "0").trim()));
+  }
+
+  /**
+   * Run the archiver every {@code intervalMillis} on a background thread
+   */
+  public synchronized void start(long intervalMillis) {
+    worker = new Thread(() -> {
+      while (!closed) {
+        try {
+          runOnce();
+          Thread.sleep(intervalMillis);
+        } catch (InterruptedException e) {
+          return;
+        } catch (SQLException | IOException e) {
+          e.printStackTrace();
+          try {
+            Thread.sleep(intervalMillis);
+          } catch (InterruptedException ie) {
+            return;
+          }
+        }
+      }
+    }, "reservation-archiver");
+    worker.setDaemon(true);
+    worker.start();
+  }
+
+  /**
+   * Archive in batches until nothing is left to archive, then record the size
+   * of the hot table
+   *
+   * @return the number of reservations archived
+   */
+  public long runOnce() throws SQLException, IOException, InterruptedException {
+    long moved = 0;
+    for (ConnectionFactory database : databases) {
+      try (Connection conn = database.open(); PreparedStatement archive = conn.prepareStatement(ARCHIVE_BATCH)) {
+        archive.setInt(1, batchSize);
+        archive.setInt(2, completedBeforeDay);
+        int batch;
+        do {
+          batch = archive.executeUpdate();
+          moved += batch;
+          archived.addAndGet(batch);
+          batches.incrementAndGet();
+          if (batch == batchSize && pauseMillis > 0) {
+            Thread.sleep(pauseMillis);
+          }
+        } while (batch == batchSize && !closed);
+      }
+    }
+    ReservationCache reservationCache = ReservationCache.shared();
+    if (moved > 0 && reservationCache != null) {
+      // paid reservations that left the hot table are still in the cache
+      reservationCache.invalidateAll();
+    }
+    long hot = hotRows();
+    synchronized (history) {
+      if (history.size() == HISTORY) {
+        history.removeFirst();
+      }
+      history.addLast(new Sample(System.currentTimeMillis(), hot));
+    }
+    return moved;
+  }
+
+  /**
+   * Number of rows in Reservations now, across all shards
+   */
+  public long hotRows() throws SQLException, IOException {
+    long hot = 0;
+    for (ConnectionFactory database : databases) {
+      try (Connection conn = database.open();
+          Statement statement = conn.createStatement();
+          ResultSet rs = statement.executeQuery(COUNT_HOT)) {
+        rs.next();
+        hot += rs.getLong("hot");
+      }
+    }
+    return hot;
+  }
+
+  /**
+   * Size of the hot table after each run, oldest first, for the last 1024 runs
+   */
+  public List<Sample> history() {
+    synchronized (history) {
+      return new ArrayList<>(history);
+    }
+  }
+
+  /**
+   * Number of reservations archived
+   */
+  public long archived() {
+    return archived.get();
+  }
+
+  /**
+   * Number of batches run
+   */
+  public long batches() {
+    return batches.get();
+  }
+
+  private static String prefixed(String prefix) {
+    StringBuilder sb = new StringBuilder();
+    for (String column : COLUMNS.split(", ")) {
+      if (sb.length() > 0) {
+        sb.append(", ");
+      }
+      sb.append(prefix).append(column);
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public synchronized void close() {
+    closed = true;
+    if (worker != null) {
+      worker.interrupt();
+    }
+  }
+}
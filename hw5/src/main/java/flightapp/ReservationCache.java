@@ -0,0 +1,235 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Process-wide cache of each user's live reservations, shared by all sessions.
+ *
+ * Enabled by setting {@code flightapp.reservation_cache_users} in
+ * dbconn.properties to the number of users to keep; the least recently used
+ * are dropped first. A user's list is loaded from the database on the first
+ * {@code reservations} after it was dropped, and then kept current by the
+ * sessions of this process as they book, pay and cancel, after each write is
+ * committed. Through the journal, pay and cancel take a reservation found in
+ * a cached list as it is, but look up one the list lacks in the database, as
+ * another process may have booked it.
+ *
+ * Every change to a user bumps their generation. A list loaded from the
+ * database is only kept if no change happened while it was being read, and a
+ * change that cannot be applied to the cached list (say, paying a reservation
+ * it does not have yet) drops the list instead, so two sessions of the same
+ * user never leave a stale list behind. Writes made by other processes are not
+ * seen, so the cache stays off when {@code flightapp.session_store} is a
+ * directory, as any process may then serve any user.
+ */
+public class ReservationCache {
+  private static final int GENERATION_STRIPES = 256;
+
+  private static ReservationCache shared;
+  private static boolean sharedLoaded;
+
+  /**
+   * One live reservation
+   */
+  public static class Reservation {
+    public final int reservationId;
+    public final int cost;
+    public final int day;
+    public final boolean paid;
+    // fid of each flight, joined by "-"
+    public final String fids;
+    // Each flight as of when the reservation was cached
+    public final List<Flight> flights;
+
+    public Reservation(int reservationId, int cost, int day, boolean paid, String fids, List<Flight> flights) {
+      this.reservationId = reservationId;
+      this.cost = cost;
+      this.day = day;
+      this.paid = paid;
+      this.fids = fids;
+      this.flights = Collections.unmodifiableList(new ArrayList<>(flights));
+    }
+
+    Reservation withPaid() {
+      return new Reservation(reservationId, cost, day, true, fids, flights);
+    }
+  }
+
+  private final LinkedHashMap<String, TreeMap<Integer, Reservation>> users;
+  private final long[] generations = new long[GENERATION_STRIPES];
+
+  // Metrics
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+
+  /**
+   * @param maxUsers most users whose reservations are kept
+   */
+  public ReservationCache(int maxUsers) {
+    this.users = new LinkedHashMap<String, TreeMap<Integer, Reservation>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, TreeMap<Integer, Reservation>> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * Return the cache configured in dbconn.properties, or null if the cache is
+   * not enabled or sessions are shared between processes
+   */
+  public static synchronized ReservationCache shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      String maxUsers = Query.config().getProperty("flightapp.reservation_cache_users");
+      String sessionStore = Query.config().getProperty("flightapp.session_store", "memory").trim();
+      if (maxUsers != null && sessionStore.equals("memory")) {
+        shared = new ReservationCache(Integer.parseInt(maxUsers.trim()));
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Return a user's live reservations in id order, or null if they are not
+   * cached
+   */
+  public synchronized List<Reservation> get(String username) {
+    TreeMap<Integer, Reservation> reservations = users.get(key(username));
+    if (reservations == null) {
+      misses.incrementAndGet();
+      return null;
+    }
+    hits.incrementAndGet();
+    return new ArrayList<>(reservations.values());
+  }
+
+  /**
+   * Return the user's generation, to be read before loading their list
+   */
+  public synchronized long generation(String username) {
+    return generations[stripe(key(username))];
+  }
+
+  /**
+   * Cache a list loaded from the database, unless the user changed since
+   * {@code generation} was read
+   */
+  public synchronized void put(String username, long generation, List<Reservation> reservations) {
+    String key = key(username);
+    if (generations[stripe(key)] != generation) {
+      return;
+    }
+    TreeMap<Integer, Reservation> byId = new TreeMap<>();
+    for (Reservation reservation : reservations) {
+      byId.put(reservation.reservationId, reservation);
+    }
+    users.put(key, byId);
+  }
+
+  /**
+   * Add a reservation the user booked
+   */
+  public synchronized void booked(String username, Reservation reservation) {
+    TreeMap<Integer, Reservation> reservations = change(username);
+    if (reservations != null) {
+      reservations.put(reservation.reservationId, reservation);
+    }
+  }
+
+  /**
+   * Mark a reservation of the user paid
+   */
+  public synchronized void paid(String username, int reservationId) {
+    TreeMap<Integer, Reservation> reservations = change(username);
+    if (reservations != null) {
+      Reservation reservation = reservations.get(reservationId);
+      if (reservation == null) {
+        drop(username);
+      } else {
+        reservations.put(reservationId, reservation.withPaid());
+      }
+    }
+  }
+
+  /**
+   * Remove a reservation the user canceled
+   */
+  public synchronized void canceled(String username, int reservationId) {
+    TreeMap<Integer, Reservation> reservations = change(username);
+    if (reservations != null && reservations.remove(reservationId) == null) {
+      drop(username);
+    }
+  }
+
+  /**
+   * Forget a user's list, for changes made without the details to apply them
+   */
+  public synchronized void invalidate(String username) {
+    if (change(username) != null) {
+      drop(username);
+    }
+  }
+
+  /**
+   * Forget every user's list
+   */
+  public synchronized void invalidateAll() {
+    for (int i = 0; i < generations.length; i++) {
+      generations[i]++;
+    }
+    dropped.addAndGet(users.size());
+    users.clear();
+  }
+
+  // Bump the user's generation and return their cached list, or null
+  private TreeMap<Integer, Reservation> change(String username) {
+    String key = key(username);
+    generations[stripe(key)]++;
+    return users.get(key);
+  }
+
+  private void drop(String username) {
+    users.remove(key(username));
+    dropped.incrementAndGet();
+  }
+
+  // Usernames are not case sensitive in the database
+  private static String key(String username) {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  private static int stripe(String key) {
+    return (key.hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+  }
+
+  /**
+   * Number of users whose reservations are cached
+   */
+  public synchronized int size() {
+    return users.size();
+  }
+
+  /**
+   * Number of lookups answered from the cache
+   */
+  public long hits() {
+    return hits.get();
+  }
+
+  /**
+   * Number of lookups of users not cached
+   */
+  public long misses() {
+    return misses.get();
+  }
+
+  /**
+   * Number of lists dropped because a change could not be applied
+   */
+  public long dropped() {
+    return dropped.get();
+  }
+}
@@ -0,0 +1,53 @@
+package flightapp;
+
+import java.io.*;
+
+/**
+ * Helpers for writing command responses straight into a caller's
+ * {@link Appendable}, such as a buffered writer on the console or a reused
+ * StringBuilder, without building each line as a String first.
+ */
+public final class ResponseWriter {
+
+  /**
+   * A response that can be written to any sink
+   */
+  public interface Response {
+    void writeTo(Appendable out) throws IOException;
+  }
+
+  private ResponseWriter() {
+  }
+
+  /**
+   * Append the decimal digits of a number one char at a time
+   */
+  public static void appendInt(Appendable out, int value) throws IOException {
+    if (value < 0) {
+      out.append('-');
+      if (value == Integer.MIN_VALUE) {
+        out.append("2147483648");
+        return;
+      }
+      value = -value;
+    }
+    int divisor = 1;
+    while (value / divisor >= 10) {
+      divisor *= 10;
+    }
+    for (; divisor > 0; divisor /= 10) {
+      out.append((char) ('0' + value / divisor % 10));
+    }
+  }
+
+  /**
+   * Write a response into a StringBuilder, which never fails to append
+   */
+  static void writeTo(StringBuilder sb, Response response) {
+    try {
+      response.writeTo(sb);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
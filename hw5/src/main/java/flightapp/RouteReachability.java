@@ -0,0 +1,236 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Per-day bitsets of which city pairs are joined by a direct flight or by two
+ * flights on the same day, so searches that cannot match anything skip the
+ * database.
+ *
+ * Enabled by setting {@code flightapp.route_precheck = true} in
+ * dbconn.properties. Built from the cached flights if there are any and
+ * otherwise from the Flights table, then rebuilt from the Flights table every
+ * {@code flightapp.route_precheck_refresh_seconds} (300 by default, 0 to
+ * never rebuild). The change feed only reports updates to existing flights,
+ * so a flight inserted while the process runs is not seen until the next
+ * rebuild and searches for its route may be answered empty until then.
+ * Canceled flights are included, so a flight being reinstated never makes a
+ * route look unreachable: apart from such new flights the check has false
+ * positives but no false negatives. The false positive rate is measured from
+ * searches that pass the check and then find nothing.
+ */
+public class RouteReachability {
+  private static final String ROUTES = "SELECT DISTINCT day_of_month, origin_city, dest_city FROM Flights";
+
+  private static RouteReachability shared;
+  private static boolean sharedLoaded;
+
+  // Replaced as a whole by refresh, so a check never sees half of a rebuild
+  private volatile Routes routes;
+
+  // Metrics
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong passed = new AtomicLong();
+  private final AtomicLong falsePositives = new AtomicLong();
+
+  private static class Routes {
+    // City names are compared case insensitively, as the database does
+    final Map<String, Integer> cityIds;
+    // [day][origin] -> destinations reachable by one flight
+    final BitSet[][] direct;
+    // [day][origin] -> destinations reachable by two flights
+    final BitSet[][] twoHop;
+
+    Routes(Map<String, Integer> cityIds, BitSet[][] direct, BitSet[][] twoHop) {
+      this.cityIds = cityIds;
+      this.direct = direct;
+      this.twoHop = twoHop;
+    }
+  }
+
+  /**
+   * Collects the routes flown on each day
+   */
+  public static class Builder {
+    private final Map<String, Integer> cityIds = new HashMap<>();
+    private final List<int[]> routes = new ArrayList<>();
+    private int maxDay;
+
+    public Builder add(int dayOfMonth, String originCity, String destCity) {
+      routes.add(new int[] { dayOfMonth, cityId(originCity), cityId(destCity) });
+      maxDay = Math.max(maxDay, dayOfMonth);
+      return this;
+    }
+
+    private int cityId(String city) {
+      return cityIds.computeIfAbsent(normalize(city), c -> cityIds.size());
+    }
+
+    public RouteReachability build() {
+      int cities = cityIds.size();
+      BitSet[][] direct = new BitSet[maxDay + 1][cities];
+      for (BitSet[] day : direct) {
+        for (int city = 0; city < cities; city++) {
+          day[city] = new BitSet(cities);
+        }
+      }
+      for (int[] route : routes) {
+        if (route[0] >= 0) {
+          direct[route[0]][route[1]].set(route[2]);
+        }
+      }
+      BitSet[][] twoHop = new BitSet[maxDay + 1][cities];
+      for (int day = 0; day <= maxDay; day++) {
+        for (int origin = 0; origin < cities; origin++) {
+          BitSet reachable = new BitSet(cities);
+          BitSet stops = direct[day][origin];
+          for (int stop = stops.nextSetBit(0); stop >= 0; stop = stops.nextSetBit(stop + 1)) {
+            reachable.or(direct[day][stop]);
+          }
+          twoHop[day][origin] = reachable;
+        }
+      }
+      return new RouteReachability(new Routes(cityIds, direct, twoHop));
+    }
+  }
+
+  private RouteReachability(Routes routes) {
+    this.routes = routes;
+  }
+
+  // The database ignores case and trailing spaces when comparing cities
+  private static String normalize(String city) {
+    int end = city.length();
+    while (end > 0 && city.charAt(end - 1) == ' ') {
+      end--;
+    }
+    return city.substring(0, end).toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * Return the pre-check configured in dbconn.properties, building it on first
+   * use, or null if it is not enabled or could not be built
+   */
+  public static synchronized RouteReachability shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      if (Boolean.parseBoolean(Query.config().getProperty("flightapp.route_precheck", "false").trim())) {
+        FlightCache cache = FlightCache.shared();
+        FlightSnapshot flights = cache == null ? null : cache.flights();
+        if (flights != null) {
+          shared = build(flights);
+        } else {
+          try (Connection conn = Query.openConnectionFromDbConn()) {
+            shared = build(conn);
+          } catch (SQLException | IOException e) {
+            e.printStackTrace();
+          }
+        }
+        long refreshSeconds = Long.parseLong(
+            Query.config().getProperty("flightapp.route_precheck_refresh_seconds", "300").trim());
+        if (shared != null && refreshSeconds > 0) {
+          ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "route-reachability");
+            thread.setDaemon(true);
+            return thread;
+          });
+          refresher.scheduleWithFixedDelay(RouteReachability::refreshShared, refreshSeconds, refreshSeconds,
+              TimeUnit.SECONDS);
+        }
+      }
+    }
+    return shared;
+  }
+
+  // Rebuild from the table rather than the cached flights, which never gain
+  // the flights inserted after they were loaded. A failed rebuild keeps the
+  // old routes and is tried again on schedule.
+  private static void refreshShared() {
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      shared.refresh(build(conn));
+    } catch (SQLException | IOException | RuntimeException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Start answering from the routes of {@code rebuilt}, keeping the metrics
+   * collected so far
+   */
+  public void refresh(RouteReachability rebuilt) {
+    routes = rebuilt.routes;
+  }
+
+  /**
+   * Build from every row of the Flights table
+   */
+  public static RouteReachability build(Connection conn) throws SQLException {
+    Builder builder = new Builder();
+    try (Statement statement = conn.createStatement(); ResultSet rs = statement.executeQuery(ROUTES)) {
+      while (rs.next()) {
+        builder.add(rs.getInt("day_of_month"), rs.getString("origin_city"), rs.getString("dest_city"));
+      }
+    }
+    return builder.build();
+  }
+
+  /**
+   * Build from cached flights
+   */
+  public static RouteReachability build(FlightSnapshot flights) {
+    Builder builder = new Builder();
+    for (int row = 0; row < flights.size(); row++) {
+      builder.add(flights.dayOfMonth(row), flights.originCity(row), flights.destCity(row));
+    }
+    return builder.build();
+  }
+
+  /**
+   * Whether a search could return any itinerary. A false answer is always
+   * right; a true answer may not be.
+   */
+  public boolean mayMatch(String originCity, String destinationCity, boolean directFlight, int dayOfMonth) {
+    Routes routes = this.routes;
+    Integer origin = routes.cityIds.get(normalize(originCity));
+    Integer dest = routes.cityIds.get(normalize(destinationCity));
+    boolean reachable = origin != null && dest != null && dayOfMonth >= 0 && dayOfMonth < routes.direct.length
+        && (routes.direct[dayOfMonth][origin].get(dest)
+            || !directFlight && routes.twoHop[dayOfMonth][origin].get(dest));
+    (reachable ? passed : rejected).incrementAndGet();
+    return reachable;
+  }
+
+  /**
+   * Record that a search which passed {@link #mayMatch} found nothing
+   */
+  public void recordFalsePositive() {
+    falsePositives.incrementAndGet();
+  }
+
+  /**
+   * Searches answered without the database
+   */
+  public long rejected() {
+    return rejected.get();
+  }
+
+  public long passed() {
+    return passed.get();
+  }
+
+  public long falsePositives() {
+    return falsePositives.get();
+  }
+
+  /**
+   * Fraction of searches with no match that the check let through
+   */
+  public double falsePositiveRate() {
+    long negatives = falsePositives.get() + rejected.get();
+    return negatives == 0 ? 0 : (double) falsePositives.get() / negatives;
+  }
+}
@@ -0,0 +1,119 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lets concurrent identical searches share one execution.
+ *
+ * The first session to start a search runs it; sessions asking for the same
+ * search while it is running wait for that result instead of querying the
+ * database themselves, but no longer than the deadline of their own command.
+ * Each caller gets its own copy of the result list. On by default; set
+ * {@code flightapp.search_coalescing = false} in dbconn.properties to turn it
+ * off.
+ */
+public class SearchCoalescer {
+  private static SearchCoalescer shared;
+  private static boolean sharedLoaded;
+
+  /**
+   * A search to run on behalf of every waiting caller
+   */
+  public interface Search {
+    List<Itinerary> run() throws SQLException;
+  }
+
+  private final ConcurrentHashMap<String, CompletableFuture<List<Itinerary>>> inFlight = new ConcurrentHashMap<>();
+
+  // Metrics
+  private final AtomicLong executions = new AtomicLong();
+  private final AtomicLong coalesced = new AtomicLong();
+
+  /**
+   * Return the coalescer shared by all sessions, or null if coalescing is
+   * turned off
+   */
+  public static synchronized SearchCoalescer shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      if (Boolean.parseBoolean(Query.config().getProperty("flightapp.search_coalescing", "true").trim())) {
+        shared = new SearchCoalescer();
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Key identifying a search. City names are compared case insensitively, as
+   * the database does.
+   */
+  public static String key(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+      int numberOfItineraries, Query.SearchOrder order) {
+    return originCity.trim().toLowerCase(Locale.ROOT) + "\n" + destinationCity.trim().toLowerCase(Locale.ROOT) + "\n"
+        + directFlight + "\n" + dayOfMonth + "\n" + numberOfItineraries + "\n" + order;
+  }
+
+  /**
+   * Run {@code search}, or wait for a running search with the same key
+   *
+   * @return a list the caller may keep
+   */
+  public List<Itinerary> search(String key, Search search) throws SQLException {
+    CompletableFuture<List<Itinerary>> mine = new CompletableFuture<>();
+    CompletableFuture<List<Itinerary>> running = inFlight.putIfAbsent(key, mine);
+    if (running != null) {
+      coalesced.incrementAndGet();
+      try {
+        return new ArrayList<>(Deadline.await(running));
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof SQLException) {
+          throw (SQLException) e.getCause();
+        }
+        throw (RuntimeException) e.getCause();
+      } catch (TimeoutException e) {
+        throw new SQLTimeoutException("Command deadline passed waiting for a coalesced search");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted waiting for a coalesced search", e);
+      }
+    }
+    executions.incrementAndGet();
+    try {
+      List<Itinerary> result = search.run();
+      mine.complete(result);
+      return new ArrayList<>(result);
+    } catch (SQLException | RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      inFlight.remove(key, mine);
+    }
+  }
+
+  /**
+   * Number of searches sent to the database
+   */
+  public long executions() {
+    return executions.get();
+  }
+
+  /**
+   * Number of searches answered by another caller's execution
+   */
+  public long executionsSaved() {
+    return coalesced.get();
+  }
+
+  /**
+   * Describe how many searches ran and how many executions were saved
+   */
+  public String report() {
+    long saved = executionsSaved();
+    long total = executions() + saved;
+    return "Search coalescing: " + executions() + " executions, " + saved + " saved ("
+        + (total == 0 ? 0 : saved * 100 / total) + "% of searches)\n";
+  }
+}
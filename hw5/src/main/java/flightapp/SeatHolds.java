@@ -0,0 +1,377 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Seats taken by bookings, held for a limited time until the reservation is
+ * paid.
+ *
+ * Enabled by setting {@code flightapp.seat_hold_seconds} in dbconn.properties.
+ * Every booking, single or bookmany, direct or through the
+ * {@link BookingJournal}, first inserts one SeatHolds row per flight, only if
+ * the rows already held on that flight are fewer than its capacity. The same
+ * transaction reserves the reservation id, so a refused booking uses none.
+ * Paying confirms the rows so they no longer expire, and canceling deletes
+ * them. Without shards the confirmation is part of the payment's
+ * transaction; otherwise a confirmation that fails after the payment
+ * committed is left to the sweeper, which tries again on every tick. Seats
+ * are counted from SeatHolds alone, never from Reservations.
+ * Group commit does not take holds, so it cannot be enabled with them.
+ *
+ * Unconfirmed holds are also kept in a {@link TimerWheel}. A sweeper thread
+ * advances the wheel every {@code flightapp.seat_hold_tick_ms} (default 1000)
+ * and releases everything that expired with one update per shard, canceling
+ * the unpaid reservations, and one delete, then drops the cached reservations
+ * of their owners. Holds left from an earlier run are loaded into the wheel on
+ * start; those whose reservation turns out to be paid when they expire are
+ * confirmed instead.
+ *
+ * SeatHolds lives in the database that allocates reservation ids, shard 0 when
+ * sharded, so seats are counted across all users.
+ */
+public class SeatHolds implements Closeable {
+  private static final String HOLD_SEAT = "INSERT INTO SeatHolds (fid, reservationID, username, confirmed, expiresAt) "
+      + "SELECT ?, ?, ?, 0, ? WHERE (SELECT COUNT(*) FROM SeatHolds WITH (UPDLOCK, HOLDLOCK) WHERE fid = ?) "
+      + "< (SELECT capacity FROM Flights WHERE fid = ?)";
+  private static final String CONFIRM = "UPDATE SeatHolds SET confirmed = 1, expiresAt = NULL WHERE reservationID = ?";
+  private static final String RELEASE = "DELETE FROM SeatHolds WHERE reservationID = ?";
+  private static final String PENDING = "SELECT DISTINCT reservationID, username, expiresAt FROM SeatHolds "
+      + "WHERE confirmed = 0";
+
+  private static SeatHolds shared;
+  private static boolean sharedLoaded;
+
+  private final ConnectionFactory primary;
+  private final ShardRouter shardRouter;
+  private final long holdMillis;
+  private final long tickMillis;
+  private final TimerWheel<Integer> wheel;
+  // Owner of each unconfirmed hold, to find the shard of its reservation
+  private final Map<Integer, String> owners = new HashMap<>();
+  // Paid reservations whose holds the sweeper still has to confirm
+  private final Set<Integer> toConfirm = new HashSet<>();
+  private Thread sweeper;
+  private volatile boolean closed;
+
+  // Metrics
+  private final AtomicLong held = new AtomicLong();
+  private final AtomicLong refused = new AtomicLong();
+  private final AtomicLong expired = new AtomicLong();
+
+  /**
+   * @param shardRouter shards holding Reservations, or null if not sharded
+   */
+  public SeatHolds(ConnectionFactory primary, ShardRouter shardRouter, long holdMillis, long tickMillis) {
+    this.primary = primary;
+    this.shardRouter = shardRouter;
+    this.holdMillis = holdMillis;
+    this.tickMillis = tickMillis;
+    this.wheel = new TimerWheel<>(tickMillis, 512, System.currentTimeMillis());
+  }
+
+  /**
+   * Return the seat holds configured in dbconn.properties, started, or null if
+   * seat holds are not enabled
+   */
+  public static synchronized SeatHolds shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String seconds = config.getProperty("flightapp.seat_hold_seconds");
+      if (seconds != null) {
+        SeatHolds holds = new SeatHolds(ConnectionFactory.fromDbConn(), ShardRouter.shared(),
+            Long.parseLong(seconds.trim()) * 1000,
+            Long.parseLong(config.getProperty("flightapp.seat_hold_tick_ms", "1000").trim()));
+        try {
+          holds.start();
+          shared = holds;
+        } catch (SQLException | IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Load the unconfirmed holds left in the table and start the sweeper
+   */
+  public void start() throws SQLException, IOException {
+    try (Connection conn = holdsFactory().open();
+        PreparedStatement ps = conn.prepareStatement(PENDING);
+        ResultSet rs = ps.executeQuery()) {
+      while (rs.next()) {
+        track(rs.getInt("reservationID"), rs.getString("username"), rs.getLong("expiresAt"));
+      }
+    }
+    sweeper = new Thread(this::sweep, "seat-hold-sweeper");
+    sweeper.setDaemon(true);
+    sweeper.start();
+  }
+
+  /**
+   * Hold a seat on every flight of each itinerary and reserve an id for each
+   * itinerary's reservation, all or nothing. {@code holdsConn} is the
+   * connection to the database that allocates reservation ids. With auto
+   * commit on, the holds are committed in one short transaction of their own;
+   * otherwise they join the caller's transaction, which commits them.
+   *
+   * @param itineraryFids fids of each itinerary's flights, joined by "-"
+   * @return the id reserved for the first itinerary, the others following in
+   *         order, or 0 if a flight has no seat left, in which case nothing is
+   *         held and no id is used
+   */
+  public int hold(Connection holdsConn, String username, List<String> itineraryFids) throws SQLException {
+    long expiresAt = System.currentTimeMillis() + holdMillis;
+    boolean ownTransaction = holdsConn.getAutoCommit();
+    holdsConn.setAutoCommit(false);
+    Savepoint start = ownTransaction ? null : holdsConn.setSavepoint();
+    int firstId;
+    try (PreparedStatement ps = Deadline.bind(holdsConn.prepareStatement(HOLD_SEAT))) {
+      // the id is given back with the holds if a flight is full
+      firstId = Query.allocateReservationIds(holdsConn, itineraryFids.size());
+      for (int i = 0; i < itineraryFids.size(); i++) {
+        for (String fid : itineraryFids.get(i).split("-")) {
+          ps.setInt(1, Integer.parseInt(fid));
+          ps.setInt(2, firstId + i);
+          ps.setString(3, username);
+          ps.setLong(4, expiresAt);
+          ps.setInt(5, Integer.parseInt(fid));
+          ps.setInt(6, Integer.parseInt(fid));
+          if (ps.executeUpdate() == 0) {
+            rollback(holdsConn, start);
+            refused.incrementAndGet();
+            return 0;
+          }
+        }
+      }
+      if (ownTransaction) {
+        holdsConn.commit();
+      }
+    } catch (SQLException e) {
+      rollback(holdsConn, start);
+      throw e;
+    } finally {
+      if (ownTransaction) {
+        holdsConn.setAutoCommit(true);
+      }
+    }
+    for (int i = 0; i < itineraryFids.size(); i++) {
+      track(firstId + i, username, expiresAt);
+    }
+    held.addAndGet(itineraryFids.size());
+    return firstId;
+  }
+
+  private static void rollback(Connection holdsConn, Savepoint start) throws SQLException {
+    if (start == null) {
+      holdsConn.rollback();
+    } else {
+      holdsConn.rollback(start);
+    }
+  }
+
+  /**
+   * Keep the seats of a paid reservation for good
+   */
+  public void confirm(Connection holdsConn, int reservationId) throws SQLException {
+    untrack(reservationId);
+    try (PreparedStatement ps = holdsConn.prepareStatement(CONFIRM)) {
+      ps.setInt(1, reservationId);
+      ps.executeUpdate();
+    }
+  }
+
+  /**
+   * Have the sweeper confirm the holds of a paid reservation on its next tick,
+   * and on every tick after until it succeeds
+   */
+  public synchronized void confirmLater(int reservationId) {
+    untrack(reservationId);
+    toConfirm.add(reservationId);
+  }
+
+  /**
+   * Give back the seats of a canceled or failed reservation
+   */
+  public void release(Connection holdsConn, int reservationId) throws SQLException {
+    untrack(reservationId);
+    try (PreparedStatement ps = holdsConn.prepareStatement(RELEASE)) {
+      ps.setInt(1, reservationId);
+      ps.executeUpdate();
+    }
+  }
+
+  private synchronized void track(int reservationId, String username, long expiresAt) {
+    owners.put(reservationId, username);
+    wheel.schedule(reservationId, expiresAt);
+  }
+
+  private synchronized void untrack(int reservationId) {
+    owners.remove(reservationId);
+    wheel.cancel(reservationId);
+  }
+
+  private void sweep() {
+    while (!closed) {
+      try {
+        Thread.sleep(tickMillis);
+      } catch (InterruptedException e) {
+        return;
+      }
+      confirmPending();
+      Map<Integer, Map<Integer, String>> dueByShard = new HashMap<>();
+      synchronized (this) {
+        for (int reservationId : wheel.advance(System.currentTimeMillis())) {
+          String username = owners.remove(reservationId);
+          int shard = shardRouter == null ? 0 : shardRouter.shardOf(username);
+          dueByShard.computeIfAbsent(shard, s -> new HashMap<>()).put(reservationId, username);
+        }
+      }
+      for (Map.Entry<Integer, Map<Integer, String>> due : dueByShard.entrySet()) {
+        try {
+          expire(due.getKey(), new ArrayList<>(due.getValue().keySet()));
+          ReservationCache reservationCache = ReservationCache.shared();
+          for (String username : due.getValue().values()) {
+            if (reservationCache != null && username != null) {
+              reservationCache.invalidate(username);
+            }
+          }
+        } catch (SQLException | IOException e) {
+          // put them back to be tried on the next tick
+          e.printStackTrace();
+          for (Map.Entry<Integer, String> hold : due.getValue().entrySet()) {
+            track(hold.getKey(), hold.getValue(), 0);
+          }
+        }
+      }
+    }
+  }
+
+  // Confirm the holds queued by confirmLater, in one update
+  void confirmPending() {
+    List<Integer> reservationIds;
+    synchronized (this) {
+      if (toConfirm.isEmpty()) {
+        return;
+      }
+      reservationIds = new ArrayList<>(toConfirm);
+    }
+    try (Connection conn = holdsFactory().open();
+        PreparedStatement confirm = conn.prepareStatement("UPDATE SeatHolds SET confirmed = 1, expiresAt = NULL "
+            + "WHERE reservationID IN (" + placeholders(reservationIds.size()) + ")")) {
+      for (int i = 0; i < reservationIds.size(); i++) {
+        confirm.setInt(i + 1, reservationIds.get(i));
+      }
+      confirm.executeUpdate();
+      synchronized (this) {
+        toConfirm.removeAll(reservationIds);
+      }
+    } catch (SQLException | IOException e) {
+      // tried again on the next tick
+      e.printStackTrace();
+    }
+  }
+
+  // Cancel the reservations of expired holds that are still unpaid, then
+  // delete their holds along with holds whose reservation was never created.
+  // A reservation paid in the meantime keeps its hold, which is confirmed on
+  // the next tick in case its payment could not.
+  private void expire(int shard, List<Integer> reservationIds) throws SQLException, IOException {
+    String ids = placeholders(reservationIds.size());
+    Set<Integer> release = new HashSet<>(reservationIds);
+    ConnectionFactory reservationsFactory = shardRouter == null ? primary : shardRouter.shard(shard);
+    try (Connection conn = reservationsFactory.open()) {
+      try (PreparedStatement cancel = conn.prepareStatement("UPDATE Reservations SET cancellationStatus = 'yes' "
+          + "WHERE reservationID IN (" + ids + ") AND payStatus = 'no' AND cancellationStatus = 'no'");
+          PreparedStatement paid = conn.prepareStatement("SELECT reservationID FROM Reservations "
+              + "WHERE reservationID IN (" + ids + ") AND payStatus = 'yes'")) {
+        for (int i = 0; i < reservationIds.size(); i++) {
+          cancel.setInt(i + 1, reservationIds.get(i));
+          paid.setInt(i + 1, reservationIds.get(i));
+        }
+        conn.setAutoCommit(false);
+        conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        cancel.executeUpdate();
+        List<Integer> paidIds = new ArrayList<>();
+        try (ResultSet rs = paid.executeQuery()) {
+          while (rs.next()) {
+            paidIds.add(rs.getInt("reservationID"));
+          }
+        }
+        conn.commit();
+        release.removeAll(paidIds);
+        for (int reservationId : paidIds) {
+          confirmLater(reservationId);
+        }
+      } catch (SQLException e) {
+        conn.rollback();
+        throw e;
+      }
+    }
+    if (release.isEmpty()) {
+      return;
+    }
+    try (Connection conn = holdsFactory().open();
+        PreparedStatement delete = conn.prepareStatement("DELETE FROM SeatHolds WHERE confirmed = 0 "
+            + "AND reservationID IN (" + placeholders(release.size()) + ")")) {
+      int parameter = 1;
+      for (int reservationId : release) {
+        delete.setInt(parameter++, reservationId);
+      }
+      delete.executeUpdate();
+    }
+    expired.addAndGet(release.size());
+  }
+
+  private ConnectionFactory holdsFactory() {
+    return shardRouter == null ? primary : shardRouter.shard(0);
+  }
+
+  private static String placeholders(int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      sb.append(i == 0 ? "?" : ", ?");
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Number of itineraries given seats
+   */
+  public long held() {
+    return held.get();
+  }
+
+  /**
+   * Number of itineraries refused because a flight was full
+   */
+  public long refused() {
+    return refused.get();
+  }
+
+  /**
+   * Number of holds released by the sweeper
+   */
+  public long expired() {
+    return expired.get();
+  }
+
+  /**
+   * Number of holds waiting to expire
+   */
+  public synchronized int pending() {
+    return wheel.size();
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (sweeper != null) {
+      sweeper.interrupt();
+    }
+  }
+}
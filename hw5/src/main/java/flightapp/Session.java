@@ -0,0 +1,216 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The state a client builds up across commands: who is logged in and the
+ * itineraries of their last search, which later book commands refer to by
+ * number.
+ *
+ * Sessions are kept in a {@link SessionStore} between commands in a compact
+ * binary form, so any process can serve the next command of a client. Each
+ * flight is written once per itinerary as varints, with its carrier, number
+ * and city strings written once per session and referred to by index.
+ *
+ * Usage: Session [itineraries] [rounds] times encoding and decoding, and
+ * saving and loading with each store, for a search result of that size.
+ */
+public class Session {
+  private static final int VERSION = 1;
+
+  private final String username;
+  private final List<Itinerary> searchResult;
+
+  /**
+   * @param username     the logged in user, or null
+   * @param searchResult the itineraries of the last search, or null
+   */
+  public Session(String username, List<Itinerary> searchResult) {
+    this.username = username;
+    this.searchResult = searchResult == null ? null : Collections.unmodifiableList(new ArrayList<>(searchResult));
+  }
+
+  public String username() {
+    return username;
+  }
+
+  public List<Itinerary> searchResult() {
+    return searchResult;
+  }
+
+  /**
+   * Encode the session for a store
+   */
+  public byte[] encode() {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      out.writeBoolean(username != null);
+      if (username != null) {
+        out.writeUTF(username);
+      }
+      if (searchResult == null) {
+        writeVarint(out, 0);
+        return bytes.toByteArray();
+      }
+      writeVarint(out, searchResult.size() + 1);
+      Map<String, Integer> strings = new HashMap<>();
+      for (Itinerary itinerary : searchResult) {
+        writeVarint(out, itinerary.flights().size());
+        for (Flight flight : itinerary.flights()) {
+          writeVarint(out, flight.fid);
+          writeVarint(out, flight.dayOfMonth);
+          writeString(out, strings, flight.carrierId);
+          writeString(out, strings, flight.flightNum);
+          writeString(out, strings, flight.originCity);
+          writeString(out, strings, flight.destCity);
+          writeVarint(out, flight.time);
+          writeVarint(out, flight.capacity);
+          writeVarint(out, flight.price);
+        }
+      }
+      return bytes.toByteArray();
+    } catch (IOException e) {
+      // cannot happen writing to memory
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Decode a session written by {@link #encode}, sharing its flights through
+   * the {@link FlightRegistry}
+   *
+   * @throws IOException if the bytes are not an encoded session
+   */
+  public static Session decode(byte[] encoded) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+    int version = in.readUnsignedByte();
+    if (version != VERSION) {
+      throw new IOException("Unknown session version " + version);
+    }
+    String username = in.readBoolean() ? in.readUTF() : null;
+    int itineraries = readVarint(in) - 1;
+    if (itineraries < 0) {
+      return new Session(username, null);
+    }
+    FlightRegistry registry = FlightRegistry.shared();
+    List<String> strings = new ArrayList<>();
+    List<Itinerary> searchResult = new ArrayList<>(itineraries);
+    for (int i = 0; i < itineraries; i++) {
+      int count = readVarint(in);
+      List<Flight> flights = new ArrayList<>(count);
+      for (int f = 0; f < count; f++) {
+        flights.add(registry.flight(readVarint(in), readVarint(in), readString(in, strings),
+            readString(in, strings), readString(in, strings), readString(in, strings), readVarint(in),
+            readVarint(in), readVarint(in)));
+      }
+      searchResult.add(new Itinerary(flights));
+    }
+    return new Session(username, searchResult);
+  }
+
+  // A string is its index among those already written, or the count of those
+  // followed by the string the first time it appears
+  private static void writeString(DataOutputStream out, Map<String, Integer> strings, String value)
+      throws IOException {
+    Integer index = strings.get(value);
+    if (index != null) {
+      writeVarint(out, index);
+      return;
+    }
+    writeVarint(out, strings.size());
+    out.writeUTF(value);
+    strings.put(value, strings.size());
+  }
+
+  private static String readString(DataInputStream in, List<String> strings) throws IOException {
+    int index = readVarint(in);
+    if (index < strings.size()) {
+      return strings.get(index);
+    }
+    if (index != strings.size()) {
+      throw new IOException("Bad string reference " + index);
+    }
+    String value = in.readUTF();
+    strings.add(value);
+    return value;
+  }
+
+  // Seven bits per byte, low bits first; negative values take five bytes
+  private static void writeVarint(DataOutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte(value);
+  }
+
+  private static int readVarint(DataInputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  /**
+   * Time encoding, decoding and a round trip through each store
+   */
+  public static void main(String[] args) throws IOException {
+    int itineraries = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+    List<Itinerary> searchResult = new ArrayList<>();
+    for (int i = 0; i < itineraries; i++) {
+      Flight first = new Flight(700000 + i, 12, "AA", String.valueOf(1000 + i), "Seattle WA", "Chicago IL",
+          180 + i, 10, 300 + i);
+      Flight second = new Flight(800000 + i, 12, "UA", String.valueOf(2000 + i), "Chicago IL", "Boston MA",
+          150 + i, 5, 200 + i);
+      searchResult.add(i % 2 == 0 ? new Itinerary(first) : new Itinerary(first, second));
+    }
+    Session session = new Session("user1", searchResult);
+    byte[] encoded = session.encode();
+    StringBuilder rendered = new StringBuilder();
+    for (int i = 0; i < searchResult.size(); i++) {
+      searchResult.get(i).appendTo(rendered, i);
+    }
+    System.out.println(String.format("%d itineraries: %d bytes encoded (%d chars as search output)", itineraries,
+        encoded.length, rendered.length()));
+
+    long start = System.nanoTime();
+    int sink = 0;
+    for (int i = 0; i < rounds; i++) {
+      sink += session.encode().length;
+    }
+    report("encode", start, rounds);
+    start = System.nanoTime();
+    for (int i = 0; i < rounds; i++) {
+      sink += decode(encoded).searchResult().size();
+    }
+    report("decode", start, rounds);
+
+    java.nio.file.Path dir = java.nio.file.Files.createTempDirectory("sessions");
+    SessionStore[] stores = { new InMemorySessionStore(), new FileSessionStore(dir) };
+    for (SessionStore store : stores) {
+      int storeRounds = store instanceof FileSessionStore ? Math.min(rounds, 2000) : rounds;
+      start = System.nanoTime();
+      for (int i = 0; i < storeRounds; i++) {
+        store.save("s" + (i % 100), session);
+        sink += store.load("s" + (i % 100)).searchResult().size();
+      }
+      report(store.getClass().getSimpleName() + " save+load", start, storeRounds);
+    }
+    if (sink == 42) {
+      System.out.println();
+    }
+  }
+
+  private static void report(String operation, long start, int rounds) {
+    System.out.println(String.format("  %-32s %8.2f us", operation, (System.nanoTime() - start) / 1e3 / rounds));
+  }
+}
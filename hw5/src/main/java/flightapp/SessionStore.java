@@ -0,0 +1,73 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+
+/**
+ * Where {@link Session}s are kept between commands, keyed by session id.
+ *
+ * A FlightService process holds no session state of its own when given a
+ * session id: it loads the session before each command and saves it after a
+ * command that changed it. With a store every process can reach, any process
+ * can serve any command of a client, and sessions outlive a restart.
+ *
+ * {@code flightapp.session_store} in dbconn.properties picks the store:
+ * {@code memory} (the default) keeps sessions in this process; any other
+ * value is a directory where {@link FileSessionStore} writes one file per
+ * session.
+ */
+public interface SessionStore {
+
+  /**
+   * Return the session with this id, or null if there is none
+   */
+  Session load(String sessionId) throws IOException;
+
+  /**
+   * Replace the session with this id
+   */
+  void save(String sessionId, Session session) throws IOException;
+
+  /**
+   * Forget the session with this id, if there is one
+   */
+  void remove(String sessionId) throws IOException;
+
+  /**
+   * Return the store configured in dbconn.properties
+   */
+  static SessionStore shared() {
+    return SharedStore.get();
+  }
+
+  /**
+   * Check that a session id is safe to use as a key and a file name
+   *
+   * @throws IllegalArgumentException if it is empty or has characters other
+   *                                  than letters, digits, '-' and '_'
+   */
+  static String checkId(String sessionId) {
+    if (sessionId == null || !sessionId.matches("[A-Za-z0-9_-]{1,128}")) {
+      throw new IllegalArgumentException("Bad session id " + sessionId);
+    }
+    return sessionId;
+  }
+
+  /**
+   * Holder for the configured store, created on first use
+   */
+  final class SharedStore {
+    private static SessionStore shared;
+
+    private SharedStore() {
+    }
+
+    static synchronized SessionStore get() {
+      if (shared == null) {
+        String store = Query.config().getProperty("flightapp.session_store", "memory").trim();
+        shared = store.equals("memory") ? new InMemorySessionStore() : new FileSessionStore(Paths.get(store));
+      }
+      return shared;
+    }
+  }
+}
@@ -0,0 +1,82 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.CRC32;
+
+/**
+ * Maps users to the database shard that holds their Users and Reservations
+ * rows.
+ *
+ * Configured in dbconn.properties, using the same username and password as
+ * the primary:
+ *
+ * <pre>
+ * flightapp.shards = server1/database1, server2/database2, ...
+ * </pre>
+ *
+ * Every shard runs createTables.sql and holds a full read-only copy of
+ * Flights. A user lives on shard {@code crc32(lowercase username) mod N}.
+ * Reservation ids are drawn from the ReservationIds table on shard 0 so they
+ * stay unique across shards. Several local databases can stand in for the
+ * shards.
+ */
+public class ShardRouter {
+  private static ShardRouter shared;
+  private static boolean sharedLoaded;
+
+  private final List<ConnectionFactory> shards;
+
+  public ShardRouter(List<ConnectionFactory> shards) {
+    if (shards.isEmpty()) {
+      throw new IllegalArgumentException("At least one shard is required");
+    }
+    this.shards = new ArrayList<>(shards);
+  }
+
+  /**
+   * Return the router configured in dbconn.properties, or null if the
+   * database is not sharded
+   */
+  public static synchronized ShardRouter shared() {
+    if (!sharedLoaded) {
+      sharedLoaded = true;
+      Properties config = Query.config();
+      String shardList = config.getProperty("flightapp.shards");
+      if (shardList != null && !shardList.trim().isEmpty()) {
+        String adminName = config.getProperty("flightapp.username");
+        String password = config.getProperty("flightapp.password");
+        List<ConnectionFactory> shards = new ArrayList<>();
+        for (String shard : shardList.split(",")) {
+          String[] serverAndDb = shard.trim().split("/");
+          shards.add(ConnectionFactory.fromCredential(serverAndDb[0], serverAndDb[1], adminName, password));
+        }
+        shared = new ShardRouter(shards);
+      }
+    }
+    return shared;
+  }
+
+  /**
+   * Return the shard holding the given user. Usernames are case insensitive.
+   */
+  public int shardOf(String username) {
+    CRC32 crc = new CRC32();
+    crc.update(username.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+    return (int) (crc.getValue() % shards.size());
+  }
+
+  /**
+   * Number of shards
+   */
+  public int size() {
+    return shards.size();
+  }
+
+  /**
+   * Return a factory for connections to the given shard
+   */
+  public ConnectionFactory shard(int shard) {
+    return shards.get(shard);
+  }
+}
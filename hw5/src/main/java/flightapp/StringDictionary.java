@@ -0,0 +1,157 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Assigns dense integer ids to distinct strings and hands back one shared
+ * {@code String} instance per distinct value.
+ *
+ * Lookups can be made directly against a range of a {@code char[]}, so a
+ * parser only allocates a new {@code String} the first time a value is seen.
+ * Not thread safe.
+ */
+public class StringDictionary {
+  private static final int INITIAL_SLOTS = 256;
+
+  // open addressing table of (id + 1), 0 marks an empty slot
+  private int[] slots;
+  private String[] values;
+  private int size;
+
+  public StringDictionary() {
+    slots = new int[INITIAL_SLOTS];
+    values = new String[INITIAL_SLOTS / 2];
+  }
+
+  /**
+   * Return the dictionary id of the string held in {@code chars[start, end)},
+   * adding it if it has not been seen before.
+   */
+  public int id(char[] chars, int start, int end) {
+    int hash = hash(chars, start, end);
+    int mask = slots.length - 1;
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return add(new String(chars, start, end - start), slot);
+      }
+      if (matches(values[entry - 1], chars, start, end)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Return the dictionary id of {@code s}, adding it if it has not been seen
+   * before.
+   */
+  public int id(String s) {
+    int hash = s.hashCode();
+    int mask = slots.length - 1;
+    for (int slot = hash & mask;; slot = (slot + 1) & mask) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return add(s, slot);
+      }
+      if (values[entry - 1].equals(s)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Return the dictionary id of {@code s}, or -1 if it has not been added
+   */
+  public int find(String s) {
+    int mask = slots.length - 1;
+    for (int slot = s.hashCode() & mask;; slot = (slot + 1) & mask) {
+      int entry = slots[slot];
+      if (entry == 0) {
+        return -1;
+      }
+      if (values[entry - 1].equals(s)) {
+        return entry - 1;
+      }
+    }
+  }
+
+  /**
+   * Return the shared instance of the string held in {@code chars[start, end)}
+   */
+  public String intern(char[] chars, int start, int end) {
+    return values[id(chars, start, end)];
+  }
+
+  /**
+   * Return the shared instance equal to {@code s}
+   */
+  public String intern(String s) {
+    return values[id(s)];
+  }
+
+  /**
+   * Return the string with the given id
+   */
+  public String get(int id) {
+    return values[id];
+  }
+
+  /**
+   * Number of distinct strings in the dictionary
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Return all strings in id order
+   */
+  public String[] toArray() {
+    return Arrays.copyOf(values, size);
+  }
+
+  private int add(String value, int slot) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+    }
+    values[size] = value;
+    slots[slot] = ++size;
+    if (size * 2 > slots.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    int mask = slots.length - 1;
+    for (int id = 0; id < size; id++) {
+      int slot = values[id].hashCode() & mask;
+      while (slots[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      slots[slot] = id + 1;
+    }
+  }
+
+  // Same function as String.hashCode() so both lookups land on the same slot
+  private static int hash(char[] chars, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h;
+  }
+
+  private static boolean matches(String value, char[] chars, int start, int end) {
+    if (value.length() != end - start) {
+      return false;
+    }
+    for (int i = start; i < end; i++) {
+      if (value.charAt(i - start) != chars[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
@@ -0,0 +1,94 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * A hashed timer wheel: items are scheduled to expire at a time and collected
+ * in bulk as the clock advances.
+ *
+ * Time is divided into ticks, and each tick maps to one of a fixed number of
+ * slots. Scheduling and canceling an item cost O(1); advancing the clock looks
+ * only at the slots of the ticks that passed, where items due in a later
+ * rotation of the wheel are left in place.
+ */
+public class TimerWheel<T> {
+  private final long tickMillis;
+  private final List<Map<T, Long>> slots;
+  private final Map<T, Long> deadlines = new HashMap<>();
+  private long currentTick;
+
+  /**
+   * @param slots number of slots, rounded up to a power of two
+   * @param startMillis the clock time to start from
+   */
+  public TimerWheel(long tickMillis, int slots, long startMillis) {
+    this.tickMillis = tickMillis;
+    int size = Integer.highestOneBit(Math.max(1, slots - 1)) << 1;
+    this.slots = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      this.slots.add(new LinkedHashMap<>());
+    }
+    this.currentTick = startMillis / tickMillis;
+  }
+
+  /**
+   * Schedule an item to expire at {@code deadlineMillis}, replacing any earlier
+   * schedule for it. An item already due expires on the next advance.
+   */
+  public synchronized void schedule(T item, long deadlineMillis) {
+    cancel(item);
+    long tick = Math.max(currentTick + 1, (deadlineMillis + tickMillis - 1) / tickMillis);
+    deadlines.put(item, tick);
+    slot(tick).put(item, tick);
+  }
+
+  /**
+   * Stop an item from expiring
+   *
+   * @return whether the item was scheduled
+   */
+  public synchronized boolean cancel(T item) {
+    Long tick = deadlines.remove(item);
+    if (tick == null) {
+      return false;
+    }
+    slot(tick).remove(item);
+    return true;
+  }
+
+  /**
+   * Move the clock forward to {@code nowMillis}
+   *
+   * @return the items that expired
+   */
+  public synchronized List<T> advance(long nowMillis) {
+    List<T> expired = new ArrayList<>();
+    long nowTick = nowMillis / tickMillis;
+    // after a full rotation every slot has been looked at
+    long last = Math.min(nowTick, currentTick + slots.size());
+    for (long tick = currentTick + 1; tick <= last; tick++) {
+      Iterator<Map.Entry<T, Long>> entries = slot(tick).entrySet().iterator();
+      while (entries.hasNext()) {
+        Map.Entry<T, Long> entry = entries.next();
+        if (entry.getValue() <= nowTick) {
+          expired.add(entry.getKey());
+          deadlines.remove(entry.getKey());
+          entries.remove();
+        }
+      }
+    }
+    currentTick = Math.max(currentTick, nowTick);
+    return expired;
+  }
+
+  /**
+   * Number of items waiting to expire
+   */
+  public synchronized int size() {
+    return deadlines.size();
+  }
+
+  private Map<T, Long> slot(long tick) {
+    return slots.get((int) (tick & (slots.size() - 1)));
+  }
+}
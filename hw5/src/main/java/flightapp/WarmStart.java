@@ -0,0 +1,153 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Gets a fresh process ready for traffic before {@link FlightService} serves
+ * its first command.
+ *
+ * Enabled by setting {@code flightapp.warm_start} to true in
+ * dbconn.properties. The phases run in order and each is timed:
+ *
+ * <ol>
+ * <li>pool: opens every connection of the {@link ConnectionPool}</li>
+ * <li>statements: prepares the canned reads on each pooled connection</li>
+ * <li>flights: loads the {@link FlightCache}, its fare index and the route
+ * pre-check, those that are configured</li>
+ * <li>routes: replays each search in {@code flightapp.warm_routes}, a file of
+ * {@code search} commands such as a command log; other lines are skipped</li>
+ * <li>workload: runs {@code flightapp.warm_iterations} (default 200) searches
+ * on those routes, direct and not, by time and by price, so the searches
+ * are compiled before real users hit them</li>
+ * </ol>
+ *
+ * Warming only reads; no users or reservations are created.
+ */
+public class WarmStart {
+  private final Properties config;
+  // Time taken by each phase, in milliseconds, in the order run
+  private final Map<String, Long> timings = new LinkedHashMap<>();
+  private int statements;
+  private int routes;
+  private int searches;
+
+  public WarmStart(Properties config) {
+    this.config = config;
+  }
+
+  /**
+   * Warm up the process if dbconn.properties asks for it, printing the timing
+   * of each phase once ready
+   */
+  public static void runIfEnabled() throws SQLException, IOException {
+    if (Boolean.parseBoolean(Query.config().getProperty("flightapp.warm_start", "false").trim())) {
+      System.out.print(new WarmStart(Query.config()).run().report());
+    }
+  }
+
+  /**
+   * Run every phase
+   */
+  public WarmStart run() throws SQLException, IOException {
+    long start = System.nanoTime();
+    ConnectionPool pool = ConnectionPool.shared();
+    List<Connection> pooled = new ArrayList<>();
+    try {
+      for (int i = 0; i < pool.size(); i++) {
+        pooled.add(pool.acquire());
+      }
+      start = lap("pool", start);
+      for (Connection conn : pooled) {
+        statements += Query.prepareCanned(conn);
+      }
+      start = lap("statements", start);
+    } finally {
+      for (Connection conn : pooled) {
+        pool.release(conn);
+      }
+    }
+
+    FlightCache cache = FlightCache.shared();
+    if (cache != null) {
+      cache.fares();
+    }
+    RouteReachability.shared();
+    start = lap("flights", start);
+
+    List<String> searchCommands = loadRoutes();
+    Query q = new Query();
+    try {
+      for (String command : searchCommands) {
+        FlightService.execute(q, command);
+      }
+      routes = searchCommands.size();
+      start = lap("routes", start);
+
+      int iterations = Integer.parseInt(config.getProperty("flightapp.warm_iterations", "200").trim());
+      for (int i = 0; !searchCommands.isEmpty() && i < iterations; i++) {
+        FlightService.execute(q, variant(searchCommands.get(i / 4 % searchCommands.size()), i % 4));
+        searches++;
+      }
+      lap("workload", start);
+    } finally {
+      q.closeConnection();
+    }
+    return this;
+  }
+
+  // The search commands of the route list
+  private List<String> loadRoutes() throws IOException {
+    List<String> searchCommands = new ArrayList<>();
+    String path = config.getProperty("flightapp.warm_routes");
+    if (path == null) {
+      return searchCommands;
+    }
+    for (String line : Files.readAllLines(Paths.get(path.trim()))) {
+      String[] tokens = FlightService.tokenize(line.trim());
+      if (tokens.length >= 6 && tokens[0].equals("search")) {
+        searchCommands.add(line.trim());
+      }
+    }
+    return searchCommands;
+  }
+
+  // The search on the same route and days, direct or not and by time or
+  // price depending on the variant
+  private static String variant(String command, int variant) {
+    String[] tokens = FlightService.tokenize(command);
+    return "search \"" + tokens[1] + "\" \"" + tokens[2] + "\" " + (variant & 1) + " " + tokens[4] + " " + tokens[5]
+        + ((variant & 2) == 0 ? " time" : " price");
+  }
+
+  private long lap(String phase, long start) {
+    long now = System.nanoTime();
+    timings.put(phase, (now - start) / 1_000_000);
+    return now;
+  }
+
+  /**
+   * Time taken by each phase, in milliseconds, in the order run
+   */
+  public Map<String, Long> timings() {
+    return Collections.unmodifiableMap(timings);
+  }
+
+  /**
+   * Describe the phases and their timings, ending with the line "Ready"
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder("Warm start:");
+    long total = 0;
+    for (Map.Entry<String, Long> phase : timings.entrySet()) {
+      sb.append(' ').append(phase.getKey()).append(' ').append(phase.getValue()).append(" ms,");
+      total += phase.getValue();
+    }
+    sb.append(" total ").append(total).append(" ms\n");
+    sb.append("  " + statements + " statements prepared, " + routes + " routes replayed, " + searches
+        + " warm-up searches\n");
+    return sb.append("Ready\n").toString();
+  }
+}
@@ -0,0 +1,84 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import flightapp.AdmissionController.WorkClass;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks ordering, rejection and deadlines of admission with one slot
+ */
+public class AdmissionControllerTest {
+  private final ExecutorService threads = Executors.newCachedThreadPool();
+
+  @After
+  public void stopThreads() {
+    threads.shutdownNow();
+  }
+
+  private static void awaitDepth(AdmissionController admission, WorkClass workClass, int depth)
+      throws InterruptedException {
+    for (int i = 0; i < 500 && admission.queueDepth(workClass) != depth; i++) {
+      Thread.sleep(10);
+    }
+    assertEquals(depth, admission.queueDepth(workClass));
+  }
+
+  @Test
+  public void admitsWritesAheadOfReads() throws Exception {
+    AdmissionController admission = new AdmissionController(1, new int[] { 4, 4 }, new long[] { 10000, 10000 });
+    assertTrue(admission.admit(WorkClass.READ));
+    List<WorkClass> order = Collections.synchronizedList(new ArrayList<>());
+    Callable<Boolean> read = () -> {
+      boolean admitted = admission.admit(WorkClass.READ);
+      order.add(WorkClass.READ);
+      admission.release();
+      return admitted;
+    };
+    Callable<Boolean> write = () -> {
+      boolean admitted = admission.admit(WorkClass.WRITE);
+      order.add(WorkClass.WRITE);
+      admission.release();
+      return admitted;
+    };
+    Future<Boolean> first = threads.submit(read);
+    awaitDepth(admission, WorkClass.READ, 1);
+    Future<Boolean> second = threads.submit(write);
+    awaitDepth(admission, WorkClass.WRITE, 1);
+    admission.release();
+    assertTrue(first.get() && second.get());
+    assertEquals(Arrays.asList(WorkClass.WRITE, WorkClass.READ), order);
+    assertEquals(0, admission.running());
+  }
+
+  @Test
+  public void rejectsWhenQueueIsFull() throws Exception {
+    AdmissionController admission = new AdmissionController(1, new int[] { 1, 0 }, new long[] { 10000, 10000 });
+    assertTrue(admission.admit(WorkClass.WRITE));
+    assertFalse(admission.admit(WorkClass.READ));
+    Future<Boolean> waiting = threads.submit(() -> admission.admit(WorkClass.WRITE));
+    awaitDepth(admission, WorkClass.WRITE, 1);
+    assertFalse(admission.admit(WorkClass.WRITE));
+    assertEquals(1, admission.rejected(WorkClass.WRITE));
+    assertEquals(1, admission.rejected(WorkClass.READ));
+    admission.release();
+    assertTrue(waiting.get());
+  }
+
+  @Test
+  public void turnsAwayCommandsPastTheirDeadline() throws Exception {
+    AdmissionController admission = new AdmissionController(1, new int[] { 4, 4 }, new long[] { 10000, 50 });
+    assertTrue(admission.admit(WorkClass.WRITE));
+    assertFalse(admission.admit(WorkClass.READ));
+    assertEquals(1, admission.timedOut(WorkClass.READ));
+    assertEquals(0, admission.queueDepth(WorkClass.READ));
+    assertEquals(1, admission.maxQueueDepth(WorkClass.READ));
+    String report = admission.report();
+    assertTrue(report.contains("1 of 1 running"));
+    assertTrue(report.contains("Admission read: 0 admitted, 0 rejected, 1 timed out, 0 queued (max 1)"));
+  }
+}
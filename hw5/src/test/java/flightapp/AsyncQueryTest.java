@@ -0,0 +1,68 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that calls of one session keep their order while sessions run in
+ * parallel, without a database
+ */
+public class AsyncQueryTest {
+  private final ExecutorService threads = Executors.newFixedThreadPool(4);
+
+  @After
+  public void stopThreads() {
+    threads.shutdownNow();
+  }
+
+  @Test
+  public void runsCallsOfOneSessionInOrder() throws Exception {
+    AsyncQuery session = new AsyncQuery(null, threads);
+    List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      int call = i;
+      results.add(session.submit(q -> {
+        order.add(call);
+        return call + "\n";
+      }));
+    }
+    assertEquals("99\n", results.get(99).get(10, TimeUnit.SECONDS));
+    for (int i = 0; i < 100; i++) {
+      assertEquals(Integer.valueOf(i), order.get(i));
+    }
+  }
+
+  @Test
+  public void runsSessionsInParallel() throws Exception {
+    CountDownLatch bothStarted = new CountDownLatch(2);
+    Callable<String> call = () -> {
+      bothStarted.countDown();
+      return bothStarted.await(10, TimeUnit.SECONDS) ? "ok\n" : "alone\n";
+    };
+    CompletableFuture<String> first = new AsyncQuery(null, threads).submit(q -> run(call));
+    CompletableFuture<String> second = new AsyncQuery(null, threads).submit(q -> run(call));
+    assertEquals("ok\n", first.get(10, TimeUnit.SECONDS));
+    assertEquals("ok\n", second.get(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void failsCallsWhenExecutorIsShutDown() {
+    ExecutorService stopped = Executors.newSingleThreadExecutor();
+    stopped.shutdown();
+    CompletableFuture<String> result = new AsyncQuery(null, stopped).submit(q -> "never\n");
+    assertTrue(result.isCompletedExceptionally());
+  }
+
+  private static String run(Callable<String> call) {
+    try {
+      return call.call();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,195 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how group commit batches, validates and fails bookings, with the
+ * database replaced by in-memory shards
+ */
+public class BookingCoordinatorTest {
+  private static final String BOOKED = "Booked flight(s), reservation ID: ";
+  private static final String SAME_DAY = "You cannot book two flights in the same day\n";
+  private static final String FAILED = "Booking failed\n";
+
+  // Shards keeping flights, reservations and ids in memory
+  private static class MemoryShards implements BookingCoordinator.Shards {
+    final Map<Integer, Integer> capacities = new HashMap<>();
+    final Set<String> bookedDays = ConcurrentHashMap.newKeySet();
+    final Set<Integer> failingShards = ConcurrentHashMap.newKeySet();
+    volatile boolean crash;
+    int nextId = 1;
+    int transactions;
+
+    @Override
+    public synchronized BookingCoordinator.ShardTransaction begin(int shard) {
+      transactions++;
+      List<String> inserted = new ArrayList<>();
+      return new BookingCoordinator.ShardTransaction() {
+        @Override
+        public Map<Integer, Integer> capacities(Set<Integer> fids) throws SQLException {
+          if (crash) {
+            throw new IllegalStateException("bug in the worker");
+          }
+          if (failingShards.contains(shard)) {
+            throw new SQLException("shard " + shard + " is down");
+          }
+          return new HashMap<>(MemoryShards.this.capacities);
+        }
+
+        @Override
+        public Set<String> bookedDays(Set<String> usernames) {
+          return new HashSet<>(MemoryShards.this.bookedDays);
+        }
+
+        @Override
+        public int allocateReservationIds(int count) {
+          synchronized (MemoryShards.this) {
+            nextId += count;
+            return nextId - count;
+          }
+        }
+
+        @Override
+        public void insert(int reservationId, String username, String fids, int cost, int day) {
+          inserted.add(BookingCoordinator.dayKey(username, day));
+        }
+
+        @Override
+        public void commit() {
+          bookedDays.addAll(inserted);
+        }
+
+        @Override
+        public void abort() {
+        }
+      };
+    }
+  }
+
+  private MemoryShards shards;
+  private ExecutorService callers;
+
+  @Before
+  public void setUp() {
+    shards = new MemoryShards();
+    shards.capacities.put(1, 5);
+    shards.capacities.put(2, 0);
+    shards.capacities.put(3, 5);
+    callers = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  // Book from separate threads at once, so the bookings share a batch
+  private List<String> bookTogether(BookingCoordinator coordinator, String... bookings) throws Exception {
+    List<Future<String>> results = new ArrayList<>();
+    for (String booking : bookings) {
+      String[] parts = booking.split(" ");
+      results.add(callers.submit(
+          () -> coordinator.book(parts[0], parts[1], 100, Integer.parseInt(parts[2]))));
+      // keep arrival order
+      Thread.sleep(20);
+    }
+    List<String> outcomes = new ArrayList<>();
+    for (Future<String> result : results) {
+      outcomes.add(result.get(5, TimeUnit.SECONDS));
+    }
+    return outcomes;
+  }
+
+  @Test
+  public void commitsConcurrentBookingsAsOneBatch() throws Exception {
+    BookingCoordinator coordinator = new BookingCoordinator(shards, null, 500, 256);
+    try {
+      List<String> outcomes = bookTogether(coordinator, "alice 1 1", "bob 1-3 1", "carol 3 2");
+      assertEquals(Arrays.asList(BOOKED + "1\n", BOOKED + "2\n", BOOKED + "3\n"), outcomes);
+      assertEquals(1, shards.transactions);
+      assertEquals(1, coordinator.batches());
+      assertEquals(3, coordinator.maxBatchSize());
+      assertTrue(coordinator.report().startsWith("Group commit: 1 batches"));
+    } finally {
+      coordinator.close();
+    }
+  }
+
+  @Test
+  public void checksTheSameDayWithinABatch() throws Exception {
+    shards.bookedDays.add(BookingCoordinator.dayKey("carol", 4));
+    BookingCoordinator coordinator = new BookingCoordinator(shards, null, 500, 256);
+    try {
+      List<String> outcomes = bookTogether(coordinator, "alice 1 1", "Alice 3 1", "alice 3 2", "bob 2 1",
+          "carol 1 4");
+      assertEquals(Arrays.asList(BOOKED + "1\n", SAME_DAY, BOOKED + "2\n", FAILED, SAME_DAY), outcomes);
+    } finally {
+      coordinator.close();
+    }
+  }
+
+  @Test
+  public void failsOnlyTheRequestsOfAFailingShard() throws Exception {
+    ShardRouter router = new ShardRouter(Arrays.<ConnectionFactory>asList(() -> null, () -> null));
+    String[] users = new String[2];
+    for (int i = 0; users[0] == null || users[1] == null; i++) {
+      users[router.shardOf("user" + i)] = "user" + i;
+    }
+    shards.failingShards.add(1);
+    BookingCoordinator coordinator = new BookingCoordinator(shards, router, 500, 256);
+    try {
+      List<String> outcomes = bookTogether(coordinator, users[0] + " 1 1", users[1] + " 1 1");
+      assertEquals(Arrays.asList(BOOKED + "1\n", FAILED), outcomes);
+      assertEquals(1, coordinator.failedBatches());
+      assertTrue(coordinator.report().endsWith(", 1 failed\n"));
+    } finally {
+      coordinator.close();
+    }
+  }
+
+  @Test
+  public void keepsServingAfterAWorkerError() throws Exception {
+    shards.crash = true;
+    BookingCoordinator coordinator = new BookingCoordinator(shards, null, 0, 256);
+    try {
+      assertEquals(FAILED, callers.submit(() -> coordinator.book("alice", "1", 100, 1)).get(5, TimeUnit.SECONDS));
+      shards.crash = false;
+      assertEquals(BOOKED + "1\n",
+          callers.submit(() -> coordinator.book("alice", "1", 100, 1)).get(5, TimeUnit.SECONDS));
+    } finally {
+      coordinator.close();
+    }
+  }
+
+  @Test
+  public void withdrawsABookingStillQueuedAtTheDeadline() throws Exception {
+    // a window longer than the deadline keeps the booking queued
+    BookingCoordinator coordinator = new BookingCoordinator(shards, null, 1000, 256);
+    try {
+      Deadline deadline = Deadline.after(100);
+      try {
+        deadline.run(() -> {
+          try {
+            return coordinator.book("alice", "1", 100, 1);
+          } catch (SQLException | InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        });
+        fail();
+      } catch (RuntimeException e) {
+        assertTrue(e.getCause() instanceof SQLTimeoutException);
+      }
+      assertTrue(deadline.passed());
+      Thread.sleep(1200);
+      assertEquals(0, shards.transactions);
+    } finally {
+      coordinator.close();
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks journaling and recovery without a database
+ */
+public class BookingJournalTest {
+  private static final int SEGMENT_BYTES = 4096;
+
+  private Path dir;
+
+  @Before
+  public void createDir() throws IOException {
+    dir = Files.createTempDirectory("journal");
+  }
+
+  @After
+  public void deleteDir() throws IOException {
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+      for (Path file : files) {
+        Files.delete(file);
+      }
+    }
+    Files.delete(dir);
+  }
+
+  /**
+   * Collects applied entries in place of the database
+   */
+  static class RecordingApplier implements BookingJournal.Applier {
+    final List<BookingJournal.Entry> applied = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void apply(List<BookingJournal.Entry> entries) {
+      applied.addAll(entries);
+    }
+  }
+
+  @Test
+  public void appliesEntriesInOrder() throws Exception {
+    RecordingApplier applier = new RecordingApplier();
+    BookingJournal journal = new BookingJournal(dir, SEGMENT_BYTES, 1, 500, applier);
+    // enough entries to roll over several segments
+    for (int i = 1; i <= 200; i++) {
+      journal.append(BookingJournal.BOOK, i, "user1", 140, 1, "60454");
+    }
+    journal.append(BookingJournal.PAY, 1, "user1", 140, 0, null);
+    journal.awaitApplied("user1");
+    journal.close();
+
+    assertEquals(201, applier.applied.size());
+    for (int i = 0; i < 200; i++) {
+      assertEquals(i + 1, applier.applied.get(i).reservationId);
+    }
+    BookingJournal.Entry pay = applier.applied.get(200);
+    assertEquals(BookingJournal.PAY, pay.type);
+    assertNull(pay.fids);
+    assertEquals(0, journal.backlog());
+  }
+
+  @Test
+  public void replaysUnappliedEntriesOnOpen() throws Exception {
+    BookingJournal.Applier down = entries -> {
+      throw new SQLException("database unavailable");
+    };
+    BookingJournal journal = new BookingJournal(dir, SEGMENT_BYTES, 1, 500, down);
+    journal.append(BookingJournal.BOOK, 1, "user1", 140, 1, "60454");
+    journal.append(BookingJournal.CANCEL, 1, "user1", 0, 0, null);
+    journal.close();
+
+    RecordingApplier applier = new RecordingApplier();
+    BookingJournal reopened = new BookingJournal(dir, SEGMENT_BYTES, 1, 500, applier);
+    reopened.awaitApplied("user1");
+    long seq = reopened.append(BookingJournal.BOOK, 2, "user1", 494, 10, "704749-726256");
+    reopened.awaitApplied("user1");
+    reopened.close();
+
+    assertEquals(3, applier.applied.size());
+    assertEquals(BookingJournal.BOOK, applier.applied.get(0).type);
+    assertEquals("60454", applier.applied.get(0).fids);
+    assertEquals(BookingJournal.CANCEL, applier.applied.get(1).type);
+    assertEquals(3, seq);
+    assertEquals("704749-726256", applier.applied.get(2).fids);
+  }
+
+  @Test
+  public void keepsWritingAfterReopeningWithoutAppends() throws Exception {
+    new BookingJournal(dir, SEGMENT_BYTES, 1, 500, new RecordingApplier()).close();
+
+    RecordingApplier applier = new RecordingApplier();
+    BookingJournal reopened = new BookingJournal(dir, SEGMENT_BYTES, 1, 500, applier);
+    reopened.append(BookingJournal.BOOK, 1, "user1", 140, 1, "60454");
+    reopened.awaitApplied("user1");
+    long seq = reopened.append(BookingJournal.BOOK, 2, "user1", 494, 10, "704749");
+    reopened.awaitApplied("user1");
+    reopened.close();
+
+    // the entry appended after the first apply is still in a segment on disk
+    List<Long> onDisk = new ArrayList<>();
+    try (DirectoryStream<Path> segments = Files.newDirectoryStream(dir, "journal-*.log")) {
+      for (Path segment : segments) {
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(segment));
+        for (BookingJournal.Entry entry; (entry = BookingJournal.decode(data)) != null;) {
+          onDisk.add(entry.seq);
+        }
+      }
+    }
+    assertTrue(onDisk.contains(seq));
+    assertEquals(1, applier.applied.get(0).reservationId);
+  }
+
+  @Test
+  public void closeReleasesWritersWaitingForDisk() throws Exception {
+    // the flusher never gets to force the entry
+    BookingJournal journal = new BookingJournal(dir, SEGMENT_BYTES, 60000, 500, new RecordingApplier());
+    ExecutorService writer = Executors.newSingleThreadExecutor();
+    try {
+      Future<Long> append = writer.submit(() -> journal.append(BookingJournal.BOOK, 1, "user1", 140, 1, "60454"));
+      while (journal.backlog() == 0) {
+        Thread.sleep(5);
+      }
+      journal.close();
+      assertEquals(1L, (long) append.get(5, TimeUnit.SECONDS));
+      try {
+        journal.append(BookingJournal.BOOK, 2, "user1", 140, 2, "60455");
+        fail();
+      } catch (IOException e) {
+        assertEquals("Journal is closed", e.getMessage());
+      }
+    } finally {
+      writer.shutdownNow();
+    }
+  }
+
+  @Test
+  public void setsAsideAnEntryThatKeepsFailing() throws Exception {
+    RecordingApplier recorder = new RecordingApplier();
+    BookingJournal.Applier applier = entries -> {
+      for (BookingJournal.Entry entry : entries) {
+        if (entry.reservationId == 2) {
+          throw new IllegalArgumentException("cannot apply 2");
+        }
+      }
+      recorder.apply(entries);
+    };
+    BookingJournal journal = new BookingJournal(dir, SEGMENT_BYTES, 1, 500, applier);
+    journal.setRetries(2, 1);
+    journal.append(BookingJournal.BOOK, 1, "user1", 140, 1, "60454");
+    journal.append(BookingJournal.BOOK, 2, "user1", 140, 2, "60455");
+    journal.append(BookingJournal.BOOK, 3, "user2", 140, 1, "60456");
+    try {
+      journal.awaitApplied("user1");
+      fail();
+    } catch (SQLException e) {
+      assertTrue(e.getMessage().contains("could not be applied"));
+    }
+    // reported once, then the user can go on
+    journal.awaitApplied("user1");
+    journal.awaitApplied("user2");
+    journal.close();
+
+    List<Integer> applied = new ArrayList<>();
+    for (BookingJournal.Entry entry : recorder.applied) {
+      applied.add(entry.reservationId);
+    }
+    assertEquals(Arrays.asList(1, 3), applied);
+    assertEquals(1, journal.poisoned());
+    BookingJournal.Entry poison = BookingJournal.decode(ByteBuffer.wrap(Files.readAllBytes(dir.resolve("poison"))));
+    assertEquals(2, poison.reservationId);
+  }
+
+  @Test
+  public void stopsAtTornEntry() {
+    byte[] first = BookingJournal.encode(new BookingJournal.Entry(1, BookingJournal.BOOK, 1, "user1", 140, 1, "60454"));
+    byte[] second = BookingJournal.encode(new BookingJournal.Entry(2, BookingJournal.PAY, 1, "user1", 140, 0, null));
+    ByteBuffer data = ByteBuffer.allocate(first.length + second.length + 16);
+    data.put(first).put(second).flip();
+    data.limit(data.capacity());
+    // damage the last byte of the second entry
+    data.put(first.length + second.length - 1, (byte) 0x7f);
+
+    BookingJournal.Entry entry = BookingJournal.decode(data);
+    assertNotNull(entry);
+    assertEquals("user1", entry.username);
+    assertNull(BookingJournal.decode(data));
+  }
+}
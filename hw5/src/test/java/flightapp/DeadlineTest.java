@@ -0,0 +1,155 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that statements get the time left to a deadline and are canceled
+ * when it passes, without a database
+ */
+public class DeadlineTest {
+
+  // A statement that only records the calls made on it
+  private static Statement recordingStatement(List<String> calls) {
+    return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { Statement.class },
+        (proxy, method, args) -> {
+          if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+          } else if (method.getName().equals("equals")) {
+            return proxy == args[0];
+          }
+          calls.add(method.getName() + (args == null ? "" : Arrays.toString(args)));
+          return method.getReturnType() == boolean.class ? false : null;
+        });
+  }
+
+  @Test
+  public void bindsRemainingTimeAsQueryTimeout() {
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    Deadline.after(2500).run(() -> {
+      try {
+        Deadline.bind(recordingStatement(calls));
+      } catch (SQLException e) {
+        throw new RuntimeException(e);
+      }
+      return null;
+    });
+    assertEquals(Arrays.asList("setQueryTimeout[3]"), calls);
+    assertNull(Deadline.current());
+  }
+
+  @Test
+  public void cancelsStatementsWhenTheDeadlinePasses() {
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    Deadline deadline = Deadline.after(50);
+    deadline.run(() -> {
+      try {
+        Deadline.bind(recordingStatement(calls));
+        Thread.sleep(500);
+      } catch (SQLException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return null;
+    });
+    assertTrue(deadline.passed());
+    assertTrue(deadline.gaveUp());
+    assertTrue(calls.contains("cancel"));
+  }
+
+  @Test
+  public void doesNotCountWorkThatFinishedInTime() {
+    List<String> calls = Collections.synchronizedList(new ArrayList<>());
+    Deadline deadline = Deadline.after(50);
+    deadline.run(() -> {
+      try {
+        // a statement used and closed before the deadline passes
+        Deadline.bind(closedStatement(calls));
+        Thread.sleep(200);
+      } catch (SQLException | InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      return null;
+    });
+    assertTrue(deadline.passed());
+    assertFalse(deadline.gaveUp());
+    assertFalse(calls.contains("cancel"));
+  }
+
+  // A statement that records the calls made on it and reports itself closed
+  private static Statement closedStatement(List<String> calls) {
+    return (Statement) Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] { Statement.class },
+        (proxy, method, args) -> {
+          if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+          } else if (method.getName().equals("equals")) {
+            return proxy == args[0];
+          }
+          calls.add(method.getName());
+          return method.getName().equals("isClosed") ? true : null;
+        });
+  }
+
+  @Test
+  public void refusesStatementsAfterTheDeadline() throws Exception {
+    List<String> calls = new ArrayList<>();
+    Deadline deadline = Deadline.after(0);
+    ExecutorService thread = Executors.newSingleThreadExecutor();
+    try {
+      Future<Statement> bound = thread.submit(deadline.wrap(() -> Deadline.bind(recordingStatement(calls))));
+      try {
+        bound.get();
+        fail();
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof SQLTimeoutException);
+      }
+      assertEquals(Arrays.asList("close"), calls);
+    } finally {
+      thread.shutdownNow();
+    }
+  }
+
+  @Test
+  public void stopsWaitingForOtherThreadsAtTheDeadline() throws Exception {
+    CompletableFuture<String> never = new CompletableFuture<>();
+    Object monitor = new Object();
+    Deadline deadline = Deadline.after(50);
+    List<String> outcomes = deadline.run(() -> {
+      List<String> timedOut = new ArrayList<>();
+      try {
+        Deadline.await(never);
+      } catch (TimeoutException e) {
+        timedOut.add("await");
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException(e);
+      }
+      synchronized (monitor) {
+        try {
+          while (true) {
+            Deadline.waitOn(monitor);
+          }
+        } catch (TimeoutException e) {
+          timedOut.add("waitOn");
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      return timedOut;
+    });
+    assertEquals(Arrays.asList("await", "waitOn"), outcomes);
+    assertTrue(deadline.passed());
+    assertTrue(deadline.gaveUp());
+  }
+
+  @Test
+  public void leavesStatementsAloneWithoutADeadline() throws Exception {
+    List<String> calls = new ArrayList<>();
+    Deadline.bind(recordingStatement(calls));
+    assertTrue(calls.isEmpty());
+  }
+}
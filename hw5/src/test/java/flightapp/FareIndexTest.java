@@ -0,0 +1,66 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks cheapest-fare ranking against a small set of flights on one day
+ */
+public class FareIndexTest {
+  private static FareIndex index;
+
+  @BeforeClass
+  public static void buildIndex() {
+    StringDictionary dictionary = new StringDictionary();
+    int seattle = dictionary.id("Seattle WA");
+    int boston = dictionary.id("Boston MA");
+    int chicago = dictionary.id("Chicago IL");
+    int denver = dictionary.id("Denver CO");
+    int as = dictionary.id("AS");
+    int rows = 7;
+    int[][] values = new int[11][];
+    values[FlightSnapshot.FID] = new int[] { 1, 2, 3, 4, 5, 6, 7 };
+    values[FlightSnapshot.DAY] = new int[] { 1, 1, 1, 1, 1, 1, 1 };
+    values[FlightSnapshot.CARRIER] = new int[] { as, as, as, as, as, as, as };
+    values[FlightSnapshot.FLIGHT_NUM] = new int[] { 10, 20, 30, 40, 50, 60, 70 };
+    values[FlightSnapshot.ORIGIN] = new int[] { seattle, seattle, chicago, chicago, seattle, denver, seattle };
+    values[FlightSnapshot.DEST] = new int[] { boston, chicago, boston, boston, denver, boston, boston };
+    values[FlightSnapshot.TIME] = new int[] { 300, 200, 150, 100, 100, 100, 400 };
+    values[FlightSnapshot.CAPACITY] = new int[] { 5, 5, 5, 5, 5, 5, 5 };
+    values[FlightSnapshot.PRICE] = new int[] { 500, 100, 150, 150, 50, 300, 250 };
+    values[FlightSnapshot.CANCELED] = new int[] { 0, 0, 0, 0, 0, 0, 1 };
+    values[FlightSnapshot.FID_ORDER] = new int[rows];
+    index = FareIndex.build(FlightSnapshot.of(values, rows, dictionary, 1L));
+  }
+
+  private static List<String> fids(List<Itinerary> itineraries) {
+    List<String> fids = new ArrayList<>();
+    for (Itinerary itinerary : itineraries) {
+      fids.add(itinerary.fids());
+    }
+    return fids;
+  }
+
+  @Test
+  public void ranksConnectionsAndDirectFlightsByPrice() {
+    List<Itinerary> cheapest = index.cheapest("Seattle WA", "Boston MA", false, 1, 10);
+    // equal prices are ranked by total time; fid 7 is canceled
+    assertEquals(Arrays.asList("2-4", "2-3", "5-6", "1"), fids(cheapest));
+    assertEquals(250, cheapest.get(0).cost());
+  }
+
+  @Test
+  public void stopsAtRequestedCount() {
+    assertEquals(Arrays.asList("2-4", "2-3"), fids(index.cheapest("Seattle WA", "Boston MA", false, 1, 2)));
+    assertEquals(Arrays.asList("1"), fids(index.cheapest("Seattle WA", "Boston MA", true, 1, 2)));
+    assertTrue(index.cheapest("Seattle WA", "Boston MA", false, 2, 2).isEmpty());
+  }
+
+  @Test
+  public void leavesUnknownCitiesToTheDatabase() {
+    assertNull(index.cheapest("seattle wa", "Boston MA", false, 1, 2));
+  }
+}
@@ -0,0 +1,110 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.sql.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks csv parsing and batch building of the flight loader without a
+ * database
+ */
+public class FlightLoaderTest {
+  private static final String FLIGHTS = "1,7,1,3,AA,100,Seattle WA,Washington,Boston MA,Massachusetts,-3,12,5,0,300,2496,10,400\r\n"
+      + "\n"
+      + "2,7,2,4,\"B6\",\"200\",\"Boston MA\",\"Massachusetts\",\"Seattle WA\",\"Washington\",,,,1,,2496,0,500\n"
+      + "3,7,2,4,AA,300,\"Portland, OR\",Oregon,Boston MA,Massachusetts,4.00,8,12.50,0,310,2537,2,450";
+
+  private static FlightLoader.CsvReader reader(String csv) {
+    return new FlightLoader.CsvReader(new StringReader(csv));
+  }
+
+  @Test
+  public void parsesFieldsInPlace() throws IOException {
+    StringDictionary dictionary = new StringDictionary();
+    try (FlightLoader.CsvReader csv = reader("12,-7,\"42\",,3.75,x\n\"say \"\"hi\"\"\",\"a,b\",plain")) {
+      assertTrue(csv.nextLine());
+      assertEquals(12, csv.nextInt());
+      assertEquals(-7, csv.nextInt());
+      assertEquals(42, csv.nextInt());
+      assertEquals(FlightLoader.NULL_INT, csv.nextInt());
+      assertEquals(3, csv.nextInt());
+      assertEquals(FlightLoader.NULL_INT, csv.nextInt());
+      assertTrue(csv.nextLine());
+      assertEquals("say \"hi\"", csv.nextString(dictionary));
+      assertEquals("a,b", csv.nextString(dictionary));
+      assertEquals("plain", csv.nextString(dictionary));
+      assertFalse(csv.nextLine());
+    }
+  }
+
+  @Test
+  public void readsLinesLongerThanItsBuffers() throws IOException {
+    StringBuilder csv = new StringBuilder();
+    for (int i = 0; i < 30000; i++) {
+      csv.append(i).append(',');
+    }
+    csv.append("end\n1\n");
+    try (FlightLoader.CsvReader reader = reader(csv.toString())) {
+      assertTrue(reader.nextLine());
+      for (int i = 0; i < 30000; i++) {
+        assertEquals(i, reader.nextInt());
+      }
+      assertEquals("end", reader.nextString(new StringDictionary()));
+      assertTrue(reader.nextLine());
+      assertEquals(1, reader.nextInt());
+      assertFalse(reader.nextLine());
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsAShortLine() throws IOException {
+    try (FlightLoader.CsvReader csv = reader("1,2\n")) {
+      csv.nextLine();
+      csv.nextInt();
+      csv.nextInt();
+      csv.nextInt();
+    }
+  }
+
+  @Test
+  public void buildsColumnarBatches() throws IOException {
+    StringDictionary dictionary = new StringDictionary();
+    FlightLoader.FlightBatch batch = new FlightLoader.FlightBatch(4);
+    try (FlightLoader.CsvReader csv = reader(FLIGHTS)) {
+      while (csv.nextLine()) {
+        batch.read(csv, dictionary);
+      }
+    }
+    assertEquals(3, batch.size);
+    assertArrayEquals(new int[] { 1, 2, 3, 0 }, batch.ints[0]);
+    assertEquals(200, batch.ints[5][1]);
+    assertEquals(FlightLoader.NULL_INT, batch.ints[10][1]);
+    assertEquals(4, batch.ints[10][2]);
+    assertEquals("Portland, OR", batch.strings[6][2]);
+    // repeated values share one instance
+    assertSame(batch.strings[6][0], batch.strings[8][1]);
+    assertSame(batch.strings[4][0], batch.strings[4][2]);
+    assertEquals(8, dictionary.size());
+
+    assertEquals(18, batch.getColumnOrdinals().size());
+    assertEquals("fid", batch.getColumnName(1));
+    assertEquals(Types.VARCHAR, batch.getColumnType(5));
+    assertEquals(Types.INTEGER, batch.getColumnType(6));
+    assertTrue(batch.next());
+    Object[] first = batch.getRowData();
+    assertEquals(1, first[0]);
+    assertEquals("AA", first[4]);
+    assertEquals(-3, first[10]);
+    assertTrue(batch.next());
+    Object[] second = batch.getRowData();
+    // empty numeric fields are written as NULL
+    assertNull(second[10]);
+    assertNull(second[14]);
+    assertEquals(1, second[13]);
+    assertTrue(batch.next());
+    assertFalse(batch.next());
+  }
+}
@@ -0,0 +1,61 @@
+package flightapp;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that flights and their strings are shared while unchanged and
+ * replaced when changed
+ */
+public class FlightRegistryTest {
+
+  private static Flight read(FlightRegistry registry, int fid, int capacity) {
+    // fresh strings, as each row of a result set has
+    return registry.flight(fid, 1, new String("UA"), new String("374"), new String("Chicago IL"),
+        new String("Houston TX"), 120, capacity, 157);
+  }
+
+  @Test
+  public void sharesUnchangedFlights() {
+    FlightRegistry registry = new FlightRegistry(10);
+    Flight first = read(registry, 1, 3);
+    assertSame(first, read(registry, 1, 3));
+    assertSame(first.originCity, read(registry, 2, 3).originCity);
+    assertEquals(2, registry.size());
+  }
+
+  @Test
+  public void dropsFlightsTheFeedReportsChanged() {
+    FlightRegistry registry = new FlightRegistry(10);
+    Flight before = read(registry, 1, 3);
+    read(registry, 2, 3);
+    registry.flightChanged(1, true, 0);
+    assertEquals(1, registry.size());
+    assertNotSame(before, read(registry, 1, 3));
+  }
+
+  @Test
+  public void replacesChangedFlights() {
+    FlightRegistry registry = new FlightRegistry(10);
+    Flight before = read(registry, 1, 3);
+    Flight after = read(registry, 1, 2);
+    assertNotSame(before, after);
+    assertEquals(2, after.capacity);
+    assertEquals(3, before.capacity);
+    assertSame(after, read(registry, 1, 2));
+    assertEquals(1, registry.size());
+  }
+
+  @Test
+  public void staysWithinItsBound() {
+    FlightRegistry registry = new FlightRegistry(3);
+    for (int fid = 0; fid < 10; fid++) {
+      read(registry, fid, 3);
+      assertTrue(registry.size() <= 3);
+    }
+    FlightRegistry none = new FlightRegistry(0);
+    assertNotSame(read(none, 1, 3), read(none, 1, 3));
+    assertEquals(0, none.size());
+  }
+}
@@ -0,0 +1,112 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the snapshot layout without a database
+ */
+public class FlightSnapshotTest {
+  private Path file;
+
+  @Before
+  public void createFile() throws IOException {
+    file = Files.createTempFile("flights", ".snapshot");
+  }
+
+  @After
+  public void deleteFile() throws IOException {
+    Files.deleteIfExists(file);
+  }
+
+  /**
+   * Three flights, read in fid order the way scan() reads them
+   */
+  static FlightSnapshot sample() {
+    StringDictionary dictionary = new StringDictionary();
+    int seattle = dictionary.id("Seattle WA");
+    int boston = dictionary.id("Boston MA");
+    int orlando = dictionary.id("Orlando FL");
+    int as = dictionary.id("AS");
+    int[][] values = new int[11][];
+    values[FlightSnapshot.FID] = new int[] { 60454, 704749, 726256 };
+    values[FlightSnapshot.DAY] = new int[] { 1, 10, 10 };
+    values[FlightSnapshot.CARRIER] = new int[] { as, as, as };
+    values[FlightSnapshot.FLIGHT_NUM] = new int[] { 24, 16, 52 };
+    values[FlightSnapshot.ORIGIN] = new int[] { seattle, seattle, orlando };
+    values[FlightSnapshot.DEST] = new int[] { boston, orlando, boston };
+    values[FlightSnapshot.TIME] = new int[] { 297, 159, 155 };
+    values[FlightSnapshot.CAPACITY] = new int[] { 14, 10, 5 };
+    values[FlightSnapshot.PRICE] = new int[] { 140, 494, 302 };
+    values[FlightSnapshot.CANCELED] = new int[] { 0, 0, 1 };
+    values[FlightSnapshot.FID_ORDER] = new int[3];
+    return FlightSnapshot.of(values, 3, dictionary, 42L);
+  }
+
+  @Test
+  public void roundTripsThroughFile() throws IOException {
+    sample().write(file);
+    FlightSnapshot snapshot = FlightSnapshot.open(file);
+    assertNotNull(snapshot);
+    assertEquals(3, snapshot.size());
+    assertEquals(42L, snapshot.fingerprint());
+
+    int row = snapshot.row(726256);
+    assertEquals("Orlando FL", snapshot.originCity(row));
+    assertEquals("Boston MA", snapshot.destCity(row));
+    assertEquals(155, snapshot.time(row));
+    assertTrue(snapshot.canceled(row));
+    assertEquals(-1, snapshot.row(1));
+
+    int seattle = snapshot.stringId("Seattle WA");
+    int first = snapshot.firstRow(10, seattle);
+    assertEquals(first + 1, snapshot.firstRow(10, seattle + 1));
+    assertEquals(704749, snapshot.fid(first));
+  }
+
+  @Test
+  public void rejectsCorruptFile() throws IOException {
+    sample().write(file);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      channel.write(ByteBuffer.wrap(new byte[] { 7 }), channel.size() - 1);
+    }
+    assertNull(FlightSnapshot.open(file));
+  }
+
+  @Test
+  public void appliesChangesInPlace() throws IOException {
+    sample().write(file);
+    byte[] written = Files.readAllBytes(file);
+    FlightSnapshot snapshot = FlightSnapshot.open(file);
+    FareIndex fares = FareIndex.build(snapshot);
+    assertEquals(1, fares.cheapest("Seattle WA", "Orlando FL", true, 10, 5).size());
+
+    int row = snapshot.row(704749);
+    snapshot.update(row, true, 0);
+    assertTrue(snapshot.canceled(row));
+    assertEquals(0, snapshot.capacity(row));
+    assertEquals(0, snapshot.flight(row).capacity);
+    // the other flights, the index built before and the file are untouched
+    assertEquals(14, snapshot.capacity(snapshot.row(60454)));
+    assertFalse(snapshot.canceled(snapshot.row(60454)));
+    assertTrue(fares.cheapest("Seattle WA", "Orlando FL", true, 10, 5).isEmpty());
+    assertArrayEquals(written, Files.readAllBytes(file));
+
+    snapshot.update(row, false, 3);
+    assertFalse(snapshot.canceled(row));
+    assertEquals(3, snapshot.capacity(row));
+    assertEquals(1, fares.cheapest("Seattle WA", "Orlando FL", true, 10, 5).size());
+  }
+
+  @Test
+  public void rejectsMissingFile() throws IOException {
+    Files.delete(file);
+    assertNull(FlightSnapshot.open(file));
+  }
+}
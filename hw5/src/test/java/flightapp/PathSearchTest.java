@@ -0,0 +1,73 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks multi-stop itineraries on a small set of flights on one day
+ */
+public class PathSearchTest {
+  private static PathSearch paths;
+
+  @BeforeClass
+  public static void buildGraph() {
+    StringDictionary dictionary = new StringDictionary();
+    int seattle = dictionary.id("Seattle WA");
+    int boston = dictionary.id("Boston MA");
+    int chicago = dictionary.id("Chicago IL");
+    int denver = dictionary.id("Denver CO");
+    int as = dictionary.id("AS");
+    int rows = 9;
+    int[][] values = new int[11][];
+    values[FlightSnapshot.FID] = new int[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    values[FlightSnapshot.DAY] = new int[] { 1, 1, 1, 1, 1, 1, 1, 1, 2 };
+    values[FlightSnapshot.CARRIER] = new int[] { as, as, as, as, as, as, as, as, as };
+    values[FlightSnapshot.FLIGHT_NUM] = new int[] { 10, 20, 30, 40, 50, 60, 70, 80, 90 };
+    values[FlightSnapshot.ORIGIN] = new int[] { seattle, seattle, chicago, seattle, denver, denver, chicago, boston,
+        seattle };
+    values[FlightSnapshot.DEST] = new int[] { boston, denver, boston, chicago, chicago, boston, seattle, chicago,
+        boston };
+    values[FlightSnapshot.TIME] = new int[] { 400, 50, 100, 300, 50, 330, 60, 10, 100 };
+    values[FlightSnapshot.CAPACITY] = new int[] { 5, 5, 5, 5, 5, 5, 5, 5, 5 };
+    values[FlightSnapshot.PRICE] = new int[] { 900, 100, 100, 100, 100, 100, 100, 100, 100 };
+    values[FlightSnapshot.CANCELED] = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+    values[FlightSnapshot.FID_ORDER] = new int[rows];
+    paths = new PathSearch(FlightSnapshot.of(values, rows, dictionary, 1L));
+  }
+
+  private static List<String> fids(List<Itinerary> itineraries) {
+    List<String> fids = new ArrayList<>();
+    for (Itinerary itinerary : itineraries) {
+      fids.add(itinerary.fids());
+    }
+    return fids;
+  }
+
+  @Test
+  public void findsShortestWithinStopLimit() {
+    // Seattle-Denver-Chicago-Boston is 200 minutes but needs three flights;
+    // on a tie the itinerary with fewer flights goes first
+    assertEquals(Arrays.asList("2-5-3", "2-6", "1", "4-3"),
+        fids(paths.search("Seattle WA", "Boston MA", 1, 3, 10, Query.SearchOrder.TIME)));
+    assertEquals(Arrays.asList("2-6", "1", "4-3"),
+        fids(paths.search("Seattle WA", "Boston MA", 1, 2, 10, Query.SearchOrder.TIME)));
+    assertEquals(Arrays.asList("1"), fids(paths.search("Seattle WA", "Boston MA", 1, 1, 10, Query.SearchOrder.TIME)));
+  }
+
+  @Test
+  public void stopsAtRequestedCount() {
+    assertEquals(Arrays.asList("2-5-3", "2-6"),
+        fids(paths.search("Seattle WA", "Boston MA", 1, 3, 2, Query.SearchOrder.TIME)));
+    assertEquals(Arrays.asList("2-6", "4-3", "2-5-3"),
+        fids(paths.search("Seattle WA", "Boston MA", 1, 3, 3, Query.SearchOrder.PRICE)));
+  }
+
+  @Test
+  public void matchesCitiesLikeTheDatabase() {
+    assertEquals(Arrays.asList("9"), fids(paths.search("seattle wa ", "BOSTON MA", 2, 3, 10, Query.SearchOrder.TIME)));
+    assertTrue(paths.search("Seattle WA", "Nowhere", 1, 3, 10, Query.SearchOrder.TIME).isEmpty());
+  }
+}
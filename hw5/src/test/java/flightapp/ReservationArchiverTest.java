@@ -0,0 +1,122 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how the archiver batches its moves and records the hot table size,
+ * with each database replaced by a stand-in that only answers the archiver's
+ * statements
+ */
+public class ReservationArchiverTest {
+
+  // A database whose archive batches move the given numbers of rows in turn
+  private static class FakeDatabase implements ConnectionFactory {
+    final Deque<Integer> batches;
+    final long hotRows;
+    final List<String> calls = new ArrayList<>();
+
+    FakeDatabase(long hotRows, Integer... batches) {
+      this.hotRows = hotRows;
+      this.batches = new ArrayDeque<>(Arrays.asList(batches));
+    }
+
+    @Override
+    public Connection open() {
+      return proxy(Connection.class, (method, args) -> {
+        switch (method.getName()) {
+        case "prepareStatement":
+          calls.add((String) args[0]);
+          return proxy(PreparedStatement.class, (m, a) -> {
+            if (m.getName().equals("setInt")) {
+              calls.add("setInt" + Arrays.toString(a));
+            } else if (m.getName().equals("executeUpdate")) {
+              return batches.isEmpty() ? 0 : batches.removeFirst();
+            }
+            return null;
+          });
+        case "createStatement":
+          return proxy(Statement.class, (m, a) -> m.getName().equals("executeQuery") ? hotResult() : null);
+        default:
+          return null;
+        }
+      });
+    }
+
+    private ResultSet hotResult() {
+      return proxy(ResultSet.class, (m, a) -> {
+        switch (m.getName()) {
+        case "next":
+          return true;
+        case "getLong":
+          return hotRows;
+        default:
+          return null;
+        }
+      });
+    }
+  }
+
+  private interface Handler {
+    Object invoke(Method method, Object[] args) throws Throwable;
+  }
+
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+      if (method.getName().equals("hashCode")) {
+        return System.identityHashCode(proxy);
+      } else if (method.getName().equals("equals")) {
+        return proxy == args[0];
+      }
+      Object result = handler.invoke(method, args);
+      return result == null && method.getReturnType() == boolean.class ? false : result;
+    }));
+  }
+
+  @Test
+  public void movesBatchesUntilOneComesUpShort() throws Exception {
+    FakeDatabase first = new FakeDatabase(7, 2, 2, 1, 2);
+    FakeDatabase second = new FakeDatabase(3, 0);
+    ReservationArchiver archiver = new ReservationArchiver(Arrays.asList(first, second), 2, 0, 10);
+
+    assertEquals(5, archiver.runOnce());
+    assertEquals(5, archiver.archived());
+    assertEquals(4, archiver.batches());
+    // the batch after the short one is left for the next run
+    assertEquals(1, first.batches.size());
+    assertTrue(first.calls.contains("setInt[1, 2]"));
+    assertTrue(first.calls.contains("setInt[2, 10]"));
+    assertEquals(1, archiver.history().size());
+    assertEquals(10, archiver.history().get(0).hotRows);
+  }
+
+  @Test
+  public void archivesCanceledAlwaysAndPaidOnlyBeforeTheDay() throws Exception {
+    FakeDatabase database = new FakeDatabase(0, 0);
+    new ReservationArchiver(Collections.singletonList(database), 1000, 0, 0).runOnce();
+    String archive = database.calls.get(0);
+    assertTrue(archive.startsWith("DELETE TOP (?) FROM Reservations OUTPUT deleted.cost, deleted.username, "
+        + "deleted.payStatus, deleted.cancellationStatus, deleted.reservationID, deleted.day, deleted.fid "
+        + "INTO ReservationsArchive (cost, username, payStatus, cancellationStatus, reservationID, day, fid)"));
+    assertTrue(archive.endsWith("WHERE cancellationStatus = 'yes' OR (payStatus = 'yes' AND day < ?)"));
+    assertTrue(database.calls.contains("setInt[2, 0]"));
+  }
+
+  @Test
+  public void keepsTheSizesOfTheLastRuns() throws Exception {
+    ReservationArchiver archiver = new ReservationArchiver(Collections.singletonList(new FakeDatabase(4)), 1000, 0,
+        0);
+    for (int i = 0; i < 1030; i++) {
+      archiver.runOnce();
+    }
+    List<ReservationArchiver.Sample> history = archiver.history();
+    assertEquals(1024, history.size());
+    assertEquals(4, history.get(1023).hotRows);
+    assertTrue(history.get(0).timeMillis <= history.get(1023).timeMillis);
+  }
+}
@@ -0,0 +1,78 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that cached reservation lists follow writes and are never left stale
+ * by a load racing a write
+ */
+public class ReservationCacheTest {
+
+  private static ReservationCache.Reservation reservation(int reservationId, int day) {
+    return new ReservationCache.Reservation(reservationId, 100, day, false, String.valueOf(reservationId),
+        Collections.<Flight>emptyList());
+  }
+
+  private static List<Integer> ids(List<ReservationCache.Reservation> reservations) {
+    List<Integer> ids = new ArrayList<>();
+    for (ReservationCache.Reservation reservation : reservations) {
+      ids.add(reservation.reservationId);
+    }
+    return ids;
+  }
+
+  @Test
+  public void appliesWritesToACachedList() {
+    ReservationCache cache = new ReservationCache(10);
+    assertNull(cache.get("alice"));
+    cache.put("alice", cache.generation("alice"), Arrays.asList(reservation(3, 1)));
+    cache.booked("alice", reservation(5, 2));
+    cache.booked("alice", reservation(4, 3));
+    cache.paid("alice", 5);
+    cache.canceled("alice", 3);
+    List<ReservationCache.Reservation> cached = cache.get("Alice");
+    assertEquals(Arrays.asList(4, 5), ids(cached));
+    assertFalse(cached.get(0).paid);
+    assertTrue(cached.get(1).paid);
+  }
+
+  @Test
+  public void dropsALoadThatRacedAWrite() {
+    ReservationCache cache = new ReservationCache(10);
+    long generation = cache.generation("alice");
+    // another session books while this one reads the database
+    cache.booked("alice", reservation(1, 1));
+    cache.put("alice", generation, Collections.<ReservationCache.Reservation>emptyList());
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void dropsAListAWriteCannotBeAppliedTo() {
+    ReservationCache cache = new ReservationCache(10);
+    cache.put("alice", cache.generation("alice"), Arrays.asList(reservation(1, 1)));
+    cache.paid("alice", 2);
+    assertNull(cache.get("alice"));
+    assertEquals(1, cache.dropped());
+
+    cache.put("alice", cache.generation("alice"), Arrays.asList(reservation(1, 1)));
+    cache.canceled("alice", 2);
+    assertNull(cache.get("alice"));
+  }
+
+  @Test
+  public void keepsTheMostRecentlyUsedUsers() {
+    ReservationCache cache = new ReservationCache(2);
+    cache.put("alice", cache.generation("alice"), Arrays.asList(reservation(1, 1)));
+    cache.put("bob", cache.generation("bob"), Arrays.asList(reservation(2, 1)));
+    cache.get("alice");
+    cache.put("carol", cache.generation("carol"), Arrays.asList(reservation(3, 1)));
+    assertEquals(2, cache.size());
+    assertNotNull(cache.get("alice"));
+    assertNull(cache.get("bob"));
+    assertNotNull(cache.get("carol"));
+  }
+}
@@ -0,0 +1,44 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.io.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that streamed responses match the String formats they replace
+ */
+public class ResponseWriterTest {
+
+  private static String digits(int value) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    ResponseWriter.appendInt(sb, value);
+    return sb.toString();
+  }
+
+  private static Flight flight(int fid, int time, int price) {
+    return new Flight(fid, 1, "UA", "374", "Chicago IL", "Houston TX", time, 3, price);
+  }
+
+  @Test
+  public void appendsIntsLikeToString() throws IOException {
+    for (int value : new int[] { 0, 7, 10, 99, 1021985, -42, Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+      assertEquals(String.valueOf(value), digits(value));
+    }
+  }
+
+  @Test
+  public void writesFlightsInTheSearchFormat() {
+    assertEquals("ID: 1021985 Day: 1 Carrier: UA Number: 374 Origin: Chicago IL Dest: Houston TX Duration: 0 "
+        + "Capacity: 3 Price: 157", flight(1021985, 0, 157).toString());
+  }
+
+  @Test
+  public void writesItinerariesIntoAnyAppendable() throws IOException {
+    StringWriter out = new StringWriter();
+    new Itinerary(flight(1, 60, 100), flight(2, 45, 50)).appendTo(out, 3);
+    assertEquals("Itinerary 3: 2 flight(s), 105 minutes\n" + flight(1, 60, 100) + "\n" + flight(2, 45, 50) + "\n",
+        out.toString());
+  }
+}
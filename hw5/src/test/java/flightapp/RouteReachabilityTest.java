@@ -0,0 +1,48 @@
+package flightapp;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the route pre-check against the sample flights
+ */
+public class RouteReachabilityTest {
+  @Test
+  public void findsDirectAndTwoHopRoutes() {
+    RouteReachability routes = RouteReachability.build(FlightSnapshotTest.sample());
+
+    assertTrue(routes.mayMatch("Seattle WA", "Boston MA", true, 1));
+    assertTrue(routes.mayMatch("seattle wa ", "BOSTON MA", true, 1));
+    // only connecting through Orlando on day 10, and that leg is canceled
+    assertFalse(routes.mayMatch("Seattle WA", "Boston MA", true, 10));
+    assertTrue(routes.mayMatch("Seattle WA", "Boston MA", false, 10));
+  }
+
+  @Test
+  public void rejectsUnknownCitiesAndDays() {
+    RouteReachability routes = RouteReachability.build(FlightSnapshotTest.sample());
+
+    assertFalse(routes.mayMatch("Boston MA", "Seattle WA", false, 1));
+    assertFalse(routes.mayMatch("Seattle WA", "Boston MA", false, 2));
+    assertFalse(routes.mayMatch("Seattle WA", "Boston MA", false, 31));
+    assertFalse(routes.mayMatch("Portland OR", "Boston MA", false, 1));
+    assertEquals(4, routes.rejected());
+
+    routes.recordFalsePositive();
+    assertEquals(0.2, routes.falsePositiveRate(), 1e-9);
+  }
+
+  @Test
+  public void refreshFindsAddedFlightsAndKeepsMetrics() {
+    RouteReachability routes = RouteReachability.build(FlightSnapshotTest.sample());
+    assertFalse(routes.mayMatch("Portland OR", "Boston MA", true, 1));
+
+    routes.refresh(new RouteReachability.Builder().add(1, "Portland OR", "Boston MA").build());
+
+    assertTrue(routes.mayMatch("Portland OR", "Boston MA", true, 1));
+    assertFalse(routes.mayMatch("Seattle WA", "Boston MA", true, 1));
+    assertEquals(2, routes.rejected());
+    assertEquals(1, routes.passed());
+  }
+}
@@ -0,0 +1,131 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that concurrent identical searches share one execution, without a
+ * database
+ */
+public class SearchCoalescerTest {
+  private static final String KEY = SearchCoalescer.key("Seattle WA", "Boston MA", true, 1, 3,
+      Query.SearchOrder.TIME);
+
+  private ExecutorService callers;
+
+  @Before
+  public void setUp() {
+    callers = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    callers.shutdownNow();
+  }
+
+  private static List<Itinerary> result() {
+    return new ArrayList<>(Arrays.asList(
+        new Itinerary(new Flight(1, 1, "AA", "100", "Seattle WA", "Boston MA", 300, 5, 400))));
+  }
+
+  // A search that waits for released before returning
+  private static SearchCoalescer.Search blocking(CountDownLatch started, CountDownLatch released,
+      SearchCoalescer.Search search) {
+    return () -> {
+      started.countDown();
+      try {
+        released.await();
+      } catch (InterruptedException e) {
+        throw new SQLException(e);
+      }
+      return search.run();
+    };
+  }
+
+  @Test
+  public void concurrentCallersShareOneExecution() throws Exception {
+    SearchCoalescer coalescer = new SearchCoalescer();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    Future<List<Itinerary>> leader = callers
+        .submit(() -> coalescer.search(KEY, blocking(started, released, SearchCoalescerTest::result)));
+    started.await();
+    List<Future<List<Itinerary>>> waiters = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      waiters.add(callers.submit(() -> coalescer.search(KEY, () -> {
+        throw new AssertionError("a waiter ran its own search");
+      })));
+    }
+    while (coalescer.executionsSaved() < 3) {
+      Thread.sleep(5);
+    }
+    released.countDown();
+
+    List<Itinerary> first = leader.get(5, TimeUnit.SECONDS);
+    for (Future<List<Itinerary>> waiter : waiters) {
+      List<Itinerary> copy = waiter.get(5, TimeUnit.SECONDS);
+      assertEquals(first, copy);
+      assertNotSame(first, copy);
+    }
+    // each caller's list is its own
+    first.clear();
+    assertEquals(1, waiters.get(0).get().size());
+    assertEquals(1, coalescer.executions());
+    assertEquals(3, coalescer.executionsSaved());
+    assertTrue(coalescer.report().contains("1 executions, 3 saved"));
+  }
+
+  @Test
+  public void waitersGetTheLeadersFailure() throws Exception {
+    SearchCoalescer coalescer = new SearchCoalescer();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    Future<List<Itinerary>> leader = callers.submit(() -> coalescer.search(KEY, blocking(started, released, () -> {
+      throw new SQLException("search failed");
+    })));
+    started.await();
+    Future<List<Itinerary>> waiter = callers.submit(() -> coalescer.search(KEY, SearchCoalescerTest::result));
+    while (coalescer.executionsSaved() < 1) {
+      Thread.sleep(5);
+    }
+    released.countDown();
+
+    for (Future<List<Itinerary>> caller : Arrays.asList(leader, waiter)) {
+      try {
+        caller.get(5, TimeUnit.SECONDS);
+        fail();
+      } catch (ExecutionException e) {
+        assertEquals("search failed", e.getCause().getMessage());
+      }
+    }
+    // the failed search is not remembered
+    assertEquals(1, coalescer.search(KEY, SearchCoalescerTest::result).size());
+  }
+
+  @Test
+  public void waitersStopAtTheirOwnDeadline() throws Exception {
+    SearchCoalescer coalescer = new SearchCoalescer();
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch released = new CountDownLatch(1);
+    Future<List<Itinerary>> leader = callers
+        .submit(() -> coalescer.search(KEY, blocking(started, released, SearchCoalescerTest::result)));
+    started.await();
+    Deadline deadline = Deadline.after(50);
+    Object outcome = deadline.run(() -> {
+      try {
+        return coalescer.search(KEY, SearchCoalescerTest::result);
+      } catch (SQLException e) {
+        return e;
+      }
+    });
+    assertTrue(outcome instanceof SQLTimeoutException);
+    assertTrue(deadline.passed());
+    released.countDown();
+    assertEquals(1, leader.get(5, TimeUnit.SECONDS).size());
+  }
+}
@@ -0,0 +1,72 @@
+package flightapp;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that sessions come back from their encoding, and from each store,
+ * as they were saved
+ */
+public class SessionTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static Session session() {
+    Flight first = new Flight(1, 3, "AA", "100", "Seattle WA", "Chicago IL", 180, 10, 300);
+    Flight second = new Flight(2, 3, "UA", "200", "Chicago IL", "Boston MA", 150, 0, 200);
+    Flight far = new Flight(300000, 3, "AA", "101", "Seattle WA", "Boston MA", 330, 2, 990);
+    return new Session("alice", Arrays.asList(new Itinerary(first, second), new Itinerary(far)));
+  }
+
+  private static List<String> rendered(Session session) {
+    List<String> lines = new ArrayList<>();
+    for (Itinerary itinerary : session.searchResult()) {
+      lines.add(itinerary.fids() + " " + itinerary.flights());
+    }
+    return lines;
+  }
+
+  @Test
+  public void decodesWhatWasEncoded() throws Exception {
+    Session decoded = Session.decode(session().encode());
+    assertEquals("alice", decoded.username());
+    assertEquals(rendered(session()), rendered(decoded));
+  }
+
+  @Test
+  public void keepsAnEmptyAndAMissingSearchApart() throws Exception {
+    assertNull(Session.decode(new Session(null, null).encode()).searchResult());
+    Session empty = Session.decode(new Session("bob", Collections.<Itinerary>emptyList()).encode());
+    assertEquals("bob", empty.username());
+    assertTrue(empty.searchResult().isEmpty());
+  }
+
+  @Test
+  public void fileSessionsOutliveTheStore() throws Exception {
+    new FileSessionStore(folder.getRoot().toPath()).save("client-1", session());
+    FileSessionStore restarted = new FileSessionStore(folder.getRoot().toPath());
+    assertEquals(rendered(session()), rendered(restarted.load("client-1")));
+    assertNull(restarted.load("client-2"));
+    restarted.remove("client-1");
+    assertNull(restarted.load("client-1"));
+  }
+
+  @Test
+  public void memorySessionsAreCopies() throws Exception {
+    InMemorySessionStore store = new InMemorySessionStore();
+    store.save("client-1", session());
+    assertNotSame(store.load("client-1"), store.load("client-1"));
+    assertEquals("alice", store.load("client-1").username());
+    assertEquals(1, store.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void rejectsIdsThatAreNotFileNames() throws Exception {
+    new FileSessionStore(folder.getRoot().toPath()).load("../etc/passwd");
+  }
+}
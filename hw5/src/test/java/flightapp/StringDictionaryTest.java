@@ -0,0 +1,54 @@
+package flightapp;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the string dictionary hands out one id and one instance per
+ * distinct string
+ */
+public class StringDictionaryTest {
+  @Test
+  public void givesEqualStringsOneIdAndInstance() {
+    StringDictionary dictionary = new StringDictionary();
+    char[] line = "Seattle WA,Boston MA,Seattle WA".toCharArray();
+    int seattle = dictionary.id(line, 0, 10);
+    int boston = dictionary.id(line, 11, 20);
+    assertEquals(0, seattle);
+    assertEquals(1, boston);
+    assertEquals(seattle, dictionary.id(line, 21, 31));
+    assertEquals(seattle, dictionary.id(new String("Seattle WA")));
+    assertSame(dictionary.intern(line, 0, 10), dictionary.intern(line, 21, 31));
+    assertSame(dictionary.get(boston), dictionary.intern(new String("Boston MA")));
+    assertEquals(2, dictionary.size());
+  }
+
+  @Test
+  public void findsOnlyStringsAlreadyAdded() {
+    StringDictionary dictionary = new StringDictionary();
+    assertEquals(-1, dictionary.find("AA"));
+    dictionary.id("AA");
+    assertEquals(0, dictionary.find("AA"));
+    assertEquals(-1, dictionary.find("A"));
+    // a prefix of a known string is a different string
+    assertEquals(1, dictionary.id("AAA".toCharArray(), 0, 1));
+    assertEquals(2, dictionary.size());
+  }
+
+  @Test
+  public void keepsIdsWhenItGrows() {
+    StringDictionary dictionary = new StringDictionary();
+    for (int i = 0; i < 10000; i++) {
+      assertEquals(i, dictionary.id("city " + i));
+    }
+    for (int i = 0; i < 10000; i++) {
+      char[] chars = ("x city " + i + "x").toCharArray();
+      assertEquals(i, dictionary.id(chars, 2, chars.length - 1));
+    }
+    assertEquals(10000, dictionary.size());
+    String[] values = dictionary.toArray();
+    assertEquals(10000, values.length);
+    assertEquals("city 1234", values[1234]);
+  }
+}
@@ -0,0 +1,50 @@
+package flightapp;
+
+import org.junit.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks expiry of items across ticks and rotations of the wheel
+ */
+public class TimerWheelTest {
+
+  @Test
+  public void expiresItemsWhenTheirTickPasses() {
+    TimerWheel<Integer> wheel = new TimerWheel<>(100, 8, 0);
+    wheel.schedule(1, 250);
+    wheel.schedule(2, 300);
+    wheel.schedule(3, 900);
+    assertTrue(wheel.advance(200).isEmpty());
+    assertEquals(Arrays.asList(1, 2), wheel.advance(300));
+    assertTrue(wheel.advance(800).isEmpty());
+    assertEquals(Arrays.asList(3), wheel.advance(900));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void keepsItemsDueInALaterRotation() {
+    TimerWheel<Integer> wheel = new TimerWheel<>(100, 4, 0);
+    wheel.schedule(1, 100);
+    wheel.schedule(2, 500);
+    assertEquals(Arrays.asList(1), wheel.advance(100));
+    assertTrue(wheel.advance(400).isEmpty());
+    assertEquals(Arrays.asList(2), wheel.advance(500));
+  }
+
+  @Test
+  public void canceledAndRescheduledItems() {
+    TimerWheel<Integer> wheel = new TimerWheel<>(100, 8, 0);
+    wheel.schedule(1, 200);
+    wheel.schedule(2, 200);
+    assertTrue(wheel.cancel(1));
+    assertFalse(wheel.cancel(1));
+    wheel.schedule(2, 600);
+    assertTrue(wheel.advance(500).isEmpty());
+    // a jump past a full rotation still finds every due item
+    wheel.schedule(3, 700);
+    assertEquals(new HashSet<>(Arrays.asList(2, 3)), new HashSet<>(wheel.advance(5000)));
+  }
+}